@@ -0,0 +1,62 @@
+#!/bin/sh
+#
+# Copyright (C) 2015 The Exodus Project
+#
+# * Licensed under the GNU GPLv2 license
+#
+# The text of the license can be found in the LICENSE file
+# or at https://www.gnu.org/licenses/gpl-2.0.txt
+#
+# Build and run the updater benchmarks on a plain JVM, no device or Android
+# SDK needed. Classes of the framework the measured code touches are
+# replaced by the small stand-ins in bench/stubs.
+#
+#   bench/run.sh                              run everything
+#   bench/run.sh --filter state               run the state benchmarks only
+#   bench/run.sh --save base.txt              keep the results as a baseline
+#   bench/run.sh --baseline base.txt          fail if slower than the baseline
+#   bench/run.sh --checks                     run the behavior checks instead
+#   bench/run.sh --checks --filter manifest   run the parser checks only
+#
+# See UpdaterBenchmarks and UpdaterChecks for all options. Fixtures are
+# generated in $BENCH_OUT/fixtures, replace them with real files to measure
+# those. Compiler warnings are shown, keep the build free of them.
+
+set -e
+
+BENCH_DIR=$(cd "$(dirname "$0")" && pwd)
+SRC="$BENCH_DIR/../src/com/exodus/updater"
+OUT=${BENCH_OUT:-$BENCH_DIR/out}
+
+rm -rf "$OUT/classes"
+mkdir -p "$OUT/classes" "$OUT/fixtures"
+
+javac -encoding UTF-8 -Xlint:all -d "$OUT/classes" \
+    $(find "$BENCH_DIR/stubs" "$BENCH_DIR/src" -name '*.java') \
+    "$SRC/misc/Constants.java" \
+    "$SRC/misc/Reversed.java" \
+    "$SRC/misc/State.java" \
+    "$SRC/misc/StateCodec.java" \
+    "$SRC/misc/UpdateInfo.java" \
+    "$SRC/misc/UpdateListMerger.java" \
+    "$SRC/utils/BuildListParser.java" \
+    "$SRC/utils/ChangelogBundleReader.java" \
+    "$SRC/utils/ChangelogFormatter.java" \
+    "$SRC/utils/CheckCoordinator.java" \
+    "$SRC/utils/CheckSchedulePolicy.java" \
+    "$SRC/utils/FetchPool.java" \
+    "$SRC/utils/FileHasher.java" \
+    "$SRC/utils/HttpConnector.java" \
+    "$SRC/utils/HttpDownloader.java" \
+    "$SRC/utils/MD5.java" \
+    "$SRC/utils/ManifestParser.java" \
+    "$SRC/utils/MirrorSelector.java"
+
+if [ "$1" = "--checks" ]; then
+    shift
+    exec java ${BENCH_JAVA_OPTS} -cp "$OUT/classes" \
+        com.exodus.updater.bench.UpdaterChecks "$@"
+fi
+
+exec java ${BENCH_JAVA_OPTS} -cp "$OUT/classes" \
+    com.exodus.updater.bench.UpdaterBenchmarks --fixtures "$OUT/fixtures" "$@"
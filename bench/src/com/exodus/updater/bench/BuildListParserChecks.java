@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.misc.UpdateInfo;
+import com.exodus.updater.utils.BuildListParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.exodus.updater.bench.CheckRunner.expect;
+import static com.exodus.updater.bench.CheckRunner.expectEquals;
+
+/**
+ * Checks of BuildListParser against a local stand-in of the build list API.
+ */
+public class BuildListParserChecks {
+    private static final String REQUEST = "{\"method\":\"get_all_builds\"}";
+
+    /**
+     * Keeps every reported build as one line of text, in order.
+     */
+    static class Recorder implements BuildListParser.Listener {
+        final List<String> records = new ArrayList<String>();
+
+        @Override
+        public void onUpdate(UpdateInfo info) {
+            records.add(info.getFileName() + " " + info.getType() + " " + info.getDate() + " "
+                    + info.getApiLevel() + " " + info.getMD5Sum() + " " + info.getFileSize()
+                    + " " + info.getDownloadUrl() + " " + info.getChangeLogUrl());
+        }
+
+        @Override
+        public void onMalformedEntry(String fileName) {
+            records.add("malformed " + fileName);
+        }
+    }
+
+    /**
+     * Answers a POST of REQUEST to /api with the response of the check, other
+     * requests with 400.
+     */
+    static class ApiHandler implements HttpHandler {
+        volatile String response;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                request.write(buffer, 0, count);
+            }
+            in.close();
+            if (!exchange.getRequestMethod().equals("POST")
+                    || !request.toString("UTF-8").equals(REQUEST)) {
+                LocalServer.respond(exchange, 400, new byte[0]);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            LocalServer.respond(exchange, 200, response.getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Ask the stand-in API for its builds the way the update check does.
+     */
+    private static List<String> fetch(LocalServer server, Recorder recorder) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(server.url("/api")).openConnection();
+        try {
+            byte[] body = REQUEST.getBytes("UTF-8");
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(body.length);
+            conn.setRequestProperty("Content-Type", "application/json");
+            OutputStream out = conn.getOutputStream();
+            out.write(body);
+            out.close();
+            expectEquals(200, conn.getResponseCode(), "response code");
+
+            InputStreamReader reader = new InputStreamReader(conn.getInputStream(), "UTF-8");
+            try {
+                int length = new BuildListParser(recorder).parse(reader);
+                recorder.records.add(length + " entries");
+            } finally {
+                reader.close();
+            }
+            return recorder.records;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static String entry(String fileName, String channel, String extra) {
+        return "{\"filename\": \"" + fileName + "\", \"url\": \"http://dl/" + fileName + "\","
+                + " \"md5sum\": \"0123456789abcdef\", \"api_level\": 22,"
+                + " \"timestamp\": 1433116800, \"channel\": " + channel + extra + "}";
+    }
+
+    /**
+     * The record of a build listed by entry(), with the given size and
+     * change log url.
+     */
+    private static String record(String fileName, String type, long size, String changes) {
+        return fileName + " " + type + " 1433116800 22 0123456789abcdef " + size
+                + " http://dl/" + fileName + " "
+                + (changes != null ? changes : "http://dl/" + fileName + ".changelog");
+    }
+
+    public static void register(CheckRunner runner) {
+        runner.add("buildlist.channels", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                ApiHandler api = new ApiHandler();
+                api.response = "{\"id\": null, \"result\": [\n"
+                        + entry("a.zip", "\"stable\"", "") + ",\n"
+                        + entry("b.zip", "\"RC\"", "") + ",\n"
+                        + entry("c.zip", "\"snapshot\"", "") + ",\n"
+                        + entry("d.zip", "\"nightly\"", "") + ",\n"
+                        + entry("e.zip", "\"experimental\"", "") + ",\n"
+                        + entry("f.zip", "null", "") + "\n"
+                        + "], \"error\": null}";
+                LocalServer server = new LocalServer();
+                server.handle("/api", api);
+                try {
+                    expectEquals(Arrays.asList(
+                            record("a.zip", "STABLE", -1, null),
+                            record("b.zip", "RC", -1, null),
+                            record("c.zip", "SNAPSHOT", -1, null),
+                            record("d.zip", "NIGHTLY", -1, null),
+                            record("e.zip", "UNKNOWN", -1, null),
+                            record("f.zip", "UNKNOWN", -1, null),
+                            "6 entries"), fetch(server, new Recorder()), "builds");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("buildlist.changeLogUrlAndSize", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                ApiHandler api = new ApiHandler();
+                api.response = "{\"result\": ["
+                        + entry("a.zip", "\"nightly\"",
+                                ", \"changes\": \"http://dl/a.txt\", \"size\": 312000000")
+                        // unknown fields are skipped, whatever their value
+                        + ", " + entry("b.zip", "\"nightly\"", ", \"changes\": null,"
+                                + " \"extra\": {\"list\": [1, [2], {\"x\": \"]}\"}]},"
+                                + " \"size\": \"42\"")
+                        + "]}";
+                LocalServer server = new LocalServer();
+                server.handle("/api", api);
+                try {
+                    expectEquals(Arrays.asList(
+                            record("a.zip", "NIGHTLY", 312000000, "http://dl/a.txt"),
+                            record("b.zip", "NIGHTLY", 42, null),
+                            "2 entries"), fetch(server, new Recorder()), "builds");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("buildlist.malformedEntries", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                ApiHandler api = new ApiHandler();
+                api.response = "{\"result\": ["
+                        + "{\"filename\": \"no-md5.zip\", \"url\": \"http://dl/no-md5.zip\","
+                        + " \"api_level\": 22, \"timestamp\": 1433116800},"
+                        + "{\"url\": \"http://dl/unnamed.zip\"},"
+                        + "{\"filename\": \"null-url.zip\", \"url\": null,"
+                        + " \"md5sum\": \"0123456789abcdef\", \"api_level\": 22,"
+                        + " \"timestamp\": 1433116800},"
+                        + "null, \"garbage\", [1, 2],"
+                        + entry("good.zip", "\"stable\"", "")
+                        + "]}";
+                LocalServer server = new LocalServer();
+                server.handle("/api", api);
+                try {
+                    expectEquals(Arrays.asList(
+                            "malformed no-md5.zip",
+                            "malformed null",
+                            "malformed null-url.zip",
+                            "malformed null",
+                            "malformed null",
+                            "malformed null",
+                            record("good.zip", "STABLE", -1, null),
+                            "7 entries"), fetch(server, new Recorder()), "builds");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("buildlist.brokenResponses", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                ApiHandler api = new ApiHandler();
+                LocalServer server = new LocalServer();
+                server.handle("/api", api);
+                try {
+                    // no result at all is an empty list
+                    api.response = "{\"error\": \"unknown device\"}";
+                    expectEquals(Arrays.asList("0 entries"), fetch(server, new Recorder()),
+                            "response without result");
+
+                    String[] broken = {
+                        // cut off after the first build
+                        "{\"result\": [" + entry("a.zip", "\"stable\"", "") + ",",
+                        "[]",
+                        "{\"result\": ["
+                                + entry("a.zip", "\"stable\"", ", \"api_level\": \"high\"") + "]}",
+                        "{\"result\": [" + entry("a.zip", "\"stable\"", ", \"timestamp\": {}")
+                                + "]}",
+                        "<html>Bad gateway</html>",
+                    };
+                    for (String response : broken) {
+                        api.response = response;
+                        Recorder recorder = new Recorder();
+                        try {
+                            fetch(server, recorder);
+                            throw new CheckRunner.CheckFailure("accepted " + response);
+                        } catch (IOException e) {
+                            // expected
+                        }
+                        expect(recorder.records.size() <= 1, "builds of " + response);
+                    }
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+    }
+}
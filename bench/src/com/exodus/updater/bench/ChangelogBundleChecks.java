@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.utils.ChangelogBundleReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.exodus.updater.bench.CheckRunner.expect;
+import static com.exodus.updater.bench.CheckRunner.expectEquals;
+
+/**
+ * Checks of ChangelogBundleReader against inline bundles.
+ */
+public class ChangelogBundleChecks {
+    /**
+     * Reads up to mLimit bytes of every section, all of it if mLimit is
+     * negative, and keeps "name: text" per section.
+     */
+    static class Recorder implements ChangelogBundleReader.Listener {
+        final List<String> sections = new ArrayList<String>();
+        private final int mLimit;
+
+        Recorder(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public void onChangelog(String fileName, InputStream content) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[7];
+            int count;
+            while ((mLimit < 0 || out.size() < mLimit)
+                    && (count = content.read(buffer, 0, mLimit < 0 ? buffer.length
+                            : Math.min(buffer.length, mLimit - out.size()))) >= 0) {
+                out.write(buffer, 0, count);
+            }
+            content.close();
+            sections.add(fileName + ": " + out.toString("UTF-8"));
+        }
+    }
+
+    private static String section(String fileName, String text) throws IOException {
+        return "@@file " + fileName + " " + text.getBytes("UTF-8").length + "\n" + text;
+    }
+
+    private static List<String> read(byte[] bundle, int limit) throws IOException {
+        Recorder recorder = new Recorder(limit);
+        int count = ChangelogBundleReader.read(new ByteArrayInputStream(bundle), recorder);
+        expectEquals(recorder.sections.size(), count, "returned section count");
+        return recorder.sections;
+    }
+
+    private static void expectMalformed(String bundle) throws Exception {
+        try {
+            read(bundle.getBytes("UTF-8"), -1);
+        } catch (EOFException e) {
+            throw new CheckRunner.CheckFailure("truncated instead of malformed: " + bundle);
+        } catch (IOException e) {
+            return;
+        }
+        throw new CheckRunner.CheckFailure("accepted " + bundle);
+    }
+
+    /**
+     * Hands out one byte per read and never skips, like a slow connection.
+     */
+    static class TrickleInputStream extends FilterInputStream {
+        TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            return super.read(buffer, offset, Math.min(count, 1));
+        }
+
+        @Override
+        public long skip(long count) {
+            return 0;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+
+    private static final String FIRST = "   * platform/frameworks_base\n"
+            + "1a2b3c4 Fix crash when rotating äöü\n"
+            // looks like a header but is part of the change log
+            + "@@file exodus-fake.zip 3\n";
+    private static final String SECOND = "   * kernel\n5d6e7f8 Update wifi driver\n";
+
+    public static void register(CheckRunner runner) {
+        runner.add("bundle.sections", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                String bundle = section("exodus-1.zip", FIRST)
+                        + "\n\r\n"
+                        + section("exodus 2.zip", SECOND).replace(".zip ", ".zip  ")
+                                .replaceFirst("\n", "\r\n")
+                        + section("exodus-3.zip", "");
+                expectEquals(Arrays.asList(
+                        "exodus-1.zip: " + FIRST,
+                        "exodus 2.zip: " + SECOND,
+                        "exodus-3.zip: "), read(bundle.getBytes("UTF-8"), -1), "sections");
+            }
+        });
+        runner.add("bundle.unreadBytesSkipped", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                byte[] bundle = (section("exodus-1.zip", FIRST) + section("exodus-2.zip", SECOND))
+                        .getBytes("UTF-8");
+                expectEquals(Arrays.asList("exodus-1.zip: ", "exodus-2.zip: "),
+                        read(bundle, 0), "sections read not at all");
+                expectEquals(Arrays.asList("exodus-1.zip:    *", "exodus-2.zip:    *"),
+                        read(bundle, 4), "sections read partly");
+
+                Recorder recorder = new Recorder(4);
+                ChangelogBundleReader.read(new TrickleInputStream(
+                        new ByteArrayInputStream(bundle)), recorder);
+                expectEquals(Arrays.asList("exodus-1.zip:    *", "exodus-2.zip:    *"),
+                        recorder.sections, "sections of a stream that does not skip");
+                recorder = new Recorder(-1);
+                ChangelogBundleReader.read(new TrickleInputStream(
+                        new ByteArrayInputStream(bundle)), recorder);
+                expectEquals(Arrays.asList("exodus-1.zip: " + FIRST, "exodus-2.zip: " + SECOND),
+                        recorder.sections, "sections of a stream handing out single bytes");
+            }
+        });
+        runner.add("bundle.malformedHeaders", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                expectMalformed("exodus-1.zip 3\nabc");
+                expectMalformed("@@file 3\nabc");
+                expectMalformed("@@file  3\nabc");
+                expectMalformed("@@file exodus-1.zip\nabc");
+                expectMalformed("@@file exodus-1.zip three\nabc");
+                expectMalformed("@@file exodus-1.zip -3\nabc");
+                expectMalformed(section("exodus-1.zip", "abc") + "trailing garbage\n");
+                StringBuilder longHeader = new StringBuilder("@@file ");
+                for (int i = 0; i < 2000; i++) {
+                    longHeader.append('x');
+                }
+                expectMalformed(longHeader + " 3\nabc");
+            }
+        });
+        runner.add("bundle.truncated", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                byte[] bundle = "@@file exodus-1.zip 10\nabc".getBytes("UTF-8");
+                for (int limit : new int[] { -1, 0, 2 }) {
+                    try {
+                        read(bundle, limit);
+                        throw new CheckRunner.CheckFailure("accepted a truncated section, "
+                                + "reading " + limit + " bytes");
+                    } catch (EOFException e) {
+                        // expected
+                    }
+                }
+            }
+        });
+        runner.add("bundle.streamsWhileReceiving", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                final PipedOutputStream server = new PipedOutputStream();
+                PipedInputStream client = new PipedInputStream(server, 64 * 1024);
+                final CountDownLatch firstReceived = new CountDownLatch(1);
+                final byte[] first = section("exodus-1.zip", FIRST).getBytes("UTF-8");
+                final byte[] second = section("exodus-2.zip", SECOND).getBytes("UTF-8");
+                final boolean[] waited = new boolean[1];
+
+                // the rest of the bundle is only sent once the first change
+                // log came out of the reader
+                Thread sender = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            server.write(first);
+                            server.flush();
+                            waited[0] = firstReceived.await(5, TimeUnit.SECONDS);
+                            server.write(second);
+                            server.close();
+                        } catch (Exception e) {
+                            // the reader fails on the broken pipe
+                        }
+                    }
+                });
+                sender.start();
+
+                Recorder recorder = new Recorder(-1) {
+                    @Override
+                    public void onChangelog(String fileName, InputStream content)
+                            throws IOException {
+                        super.onChangelog(fileName, content);
+                        firstReceived.countDown();
+                    }
+                };
+                ChangelogBundleReader.read(client, recorder);
+                sender.join();
+                expect(waited[0], "first change log handed out before the bundle was complete");
+                expectEquals(Arrays.asList("exodus-1.zip: " + FIRST, "exodus-2.zip: " + SECOND),
+                        recorder.sections, "sections");
+            }
+        });
+    }
+}
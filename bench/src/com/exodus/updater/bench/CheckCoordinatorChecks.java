@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.utils.CheckCoordinator;
+import com.exodus.updater.utils.CheckSchedulePolicy;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.exodus.updater.bench.CheckRunner.expect;
+import static com.exodus.updater.bench.CheckRunner.expectEquals;
+
+/**
+ * Checks of CheckCoordinator with requests from many threads queued in front
+ * of one worker, the way UpdateCheckService gets them, and checks that fetch
+ * from a slow local server.
+ */
+public class CheckCoordinatorChecks {
+    private static final long FRESHNESS_MS = 5 * 60 * 1000L;
+    private static final long CHECK_MS = 500;
+
+    static class ManualClock implements CheckSchedulePolicy.Clock {
+        volatile long now = 1433116800000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return CheckSchedulePolicy.SYSTEM_CLOCK.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Stand-in of UpdateCheckService: requests are numbered when they
+     * arrive and handled one at a time on a single worker. Only a check
+     * that ran announces its result, a shared or reused one does not.
+     */
+    static class Service {
+        final ManualClock clock = new ManualClock();
+        final CheckCoordinator coordinator = new CheckCoordinator(FRESHNESS_MS, clock);
+        final List<String> announced = Collections.synchronizedList(new ArrayList<String>());
+        private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+        private final String mUrl;
+        volatile long lastCheck = 0;
+        volatile boolean cancelNext = false;
+
+        Service(String url) {
+            mUrl = url;
+        }
+
+        /**
+         * Queue a request and return what it was answered with.
+         */
+        Future<String> request(final boolean userRequested) {
+            final long request = coordinator.onRequested();
+            return mWorker.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return handle(request, userRequested);
+                }
+            });
+        }
+
+        private String handle(long request, boolean userRequested) throws IOException {
+            int decision = coordinator.decide(request, lastCheck, userRequested);
+            if (decision == CheckCoordinator.JOIN) {
+                if (coordinator.lastCancelled()) {
+                    return "join cancelled";
+                }
+                return coordinator.lastSucceeded() ? "join" : "join failed";
+            } else if (decision == CheckCoordinator.FRESH) {
+                return "fresh";
+            }
+
+            if (cancelNext) {
+                cancelNext = false;
+                fetch();
+                coordinator.onCancelled();
+                return "cancelled";
+            }
+            boolean success = fetch();
+            coordinator.onFinished(success);
+            if (!success) {
+                return "failed";
+            }
+            lastCheck = clock.now;
+            announced.add("check " + request);
+            return "run";
+        }
+
+        private boolean fetch() throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(mUrl).openConnection();
+            try {
+                return conn.getResponseCode() == HttpURLConnection.HTTP_OK;
+            } finally {
+                conn.disconnect();
+            }
+        }
+
+        void shutdown() throws InterruptedException {
+            mWorker.shutdown();
+            mWorker.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Update list that takes CHECK_MS to answer, with status if set.
+     */
+    static class SlowList implements HttpHandler {
+        volatile int status = 200;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            LocalServer.sleep(CHECK_MS);
+            LocalServer.respond(exchange, status, new byte[0]);
+        }
+    }
+
+    /**
+     * Send count requests from as many threads at once and return their
+     * answers in the order they were queued.
+     */
+    private static List<String> burst(final Service service, int count,
+            final boolean userRequested) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<String>> futures =
+                Collections.synchronizedList(new ArrayList<Future<String>>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < count; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        futures.add(service.request(userRequested));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<String> answers = new ArrayList<String>();
+        for (Future<String> future : futures) {
+            answers.add(future.get(10, TimeUnit.SECONDS));
+        }
+        return answers;
+    }
+
+    private static List<String> repeat(String answer, int count) {
+        return Collections.nCopies(count, answer);
+    }
+
+    public static void register(CheckRunner runner) {
+        runner.add("coordinator.coalesce", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = new LocalServer();
+                server.handle("/list", new SlowList());
+                Service service = new Service(server.url("/list"));
+                try {
+                    // eight requests arrive while the first check runs
+                    Future<String> first = service.request(false);
+                    LocalServer.sleep(CHECK_MS / 5);
+                    List<String> queued = burst(service, 8, false);
+                    expectEquals("run", first.get(), "first request");
+                    expectEquals(repeat("join", 8), queued, "requests during the check");
+                    expectEquals(1, server.getRequestCount(), "checks");
+                    expectEquals(Arrays.asList("check 1"), service.announced, "announced");
+
+                    // a request after that is no longer covered by the check
+                    service.clock.now += FRESHNESS_MS;
+                    expectEquals("run", service.request(false).get(), "later request");
+                    expectEquals(2, server.getRequestCount(), "checks");
+                } finally {
+                    service.shutdown();
+                    server.stop();
+                }
+            }
+        });
+        runner.add("coordinator.reuseFresh", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = new LocalServer();
+                server.handle("/list", new SlowList());
+                Service service = new Service(server.url("/list"));
+                try {
+                    expectEquals("run", service.request(false).get(), "first request");
+                    service.clock.now += FRESHNESS_MS - 1;
+                    expectEquals(repeat("fresh", 6), burst(service, 6, false),
+                            "requests within the freshness window");
+                    expectEquals(1, server.getRequestCount(), "checks");
+                    expectEquals(Arrays.asList("check 1"), service.announced,
+                            "announced, reused results are not");
+
+                    service.clock.now += 1;
+                    expectEquals("run", service.request(false).get(), "request after the window");
+                    // a clock set back doesn't make a result fresh forever
+                    service.clock.now -= 3600000;
+                    expectEquals("run", service.request(false).get(),
+                            "request after the clock was set back");
+                    expectEquals(3, server.getRequestCount(), "checks");
+                    expectEquals(3, service.announced.size(), "announced");
+                } finally {
+                    service.shutdown();
+                    server.stop();
+                }
+            }
+        });
+        runner.add("coordinator.userRequestBypassesFresh", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = new LocalServer();
+                server.handle("/list", new SlowList());
+                Service service = new Service(server.url("/list"));
+                try {
+                    expectEquals("run", service.request(false).get(), "first request");
+                    expectEquals("fresh", service.request(false).get(), "background request");
+                    expectEquals("run", service.request(true).get(), "user request");
+                    expectEquals(2, server.getRequestCount(), "checks");
+
+                    // user requests queued behind a running check still share it
+                    Future<String> running = service.request(true);
+                    LocalServer.sleep(CHECK_MS / 5);
+                    List<String> queued = burst(service, 4, true);
+                    expectEquals("run", running.get(), "running user request");
+                    expectEquals(repeat("join", 4), queued, "user requests during the check");
+                    expectEquals(3, server.getRequestCount(), "checks");
+                    expectEquals(3, service.announced.size(), "announced");
+                } finally {
+                    service.shutdown();
+                    server.stop();
+                }
+            }
+        });
+        runner.add("coordinator.failedAndCancelled", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = new LocalServer();
+                SlowList list = new SlowList();
+                server.handle("/list", list);
+                Service service = new Service(server.url("/list"));
+                try {
+                    // requests waiting for a failed check get its answer
+                    list.status = 500;
+                    Future<String> failing = service.request(false);
+                    LocalServer.sleep(CHECK_MS / 5);
+                    List<String> queued = burst(service, 4, false);
+                    expectEquals("failed", failing.get(), "failing request");
+                    expectEquals(repeat("join failed", 4), queued, "requests during the check");
+
+                    // and those waiting for a cancelled one are dropped with it
+                    list.status = 200;
+                    service.cancelNext = true;
+                    Future<String> cancelled = service.request(false);
+                    LocalServer.sleep(CHECK_MS / 5);
+                    queued = burst(service, 4, true);
+                    expectEquals("cancelled", cancelled.get(), "cancelled request");
+                    expectEquals(repeat("join cancelled", 4), queued,
+                            "requests during the cancelled check");
+                    expectEquals(2, server.getRequestCount(), "checks");
+                    expect(service.announced.isEmpty(), "nothing announced");
+
+                    expectEquals("run", service.request(false).get(), "next request");
+                    expectEquals(3, server.getRequestCount(), "checks");
+                } finally {
+                    service.shutdown();
+                    server.stop();
+                }
+            }
+        });
+    }
+}
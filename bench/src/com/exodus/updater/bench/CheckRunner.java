@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal runner for behaviour checks.
+ *
+ * A check is a piece of code that throws if the behaviour is not what was
+ * expected. Checks run one after the other, a failing check does not stop
+ * the others.
+ */
+public class CheckRunner {
+    public interface Check {
+        void run() throws Exception;
+    }
+
+    public static class CheckFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public CheckFailure(String message) {
+            super(message);
+        }
+    }
+
+    private final Map<String, Check> mChecks = new LinkedHashMap<String, Check>();
+
+    public void add(String name, Check check) {
+        mChecks.put(name, check);
+    }
+
+    /**
+     * Run the checks whose name contains filter, all if it is null. Returns
+     * the number of failed checks.
+     */
+    public int run(String filter, PrintStream out) {
+        int passed = 0, failed = 0;
+        for (Map.Entry<String, Check> entry : mChecks.entrySet()) {
+            String name = entry.getKey();
+            if (filter != null && !name.contains(filter)) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                entry.getValue().run();
+                passed++;
+                out.println(String.format("PASS %s (%d ms)", name,
+                        (System.nanoTime() - start) / 1000000));
+            } catch (CheckFailure e) {
+                failed++;
+                out.println("FAIL " + name + ": " + e.getMessage());
+            } catch (Throwable t) {
+                failed++;
+                out.println("FAIL " + name + ": unexpected " + t);
+                t.printStackTrace(out);
+            }
+        }
+        out.println(passed + " passed, " + failed + " failed");
+        return failed;
+    }
+
+    public static void expect(boolean condition, String what) {
+        if (!condition) {
+            throw new CheckFailure(what);
+        }
+    }
+
+    public static void expectEquals(Object expected, Object actual, String what) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new CheckFailure(what + ": expected <" + expected + "> but was <"
+                    + actual + ">");
+        }
+    }
+
+    public static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, ".check");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        return directory;
+    }
+
+    public static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.misc.Constants;
+import com.exodus.updater.utils.CheckSchedulePolicy;
+
+import java.util.Random;
+
+import static com.exodus.updater.bench.CheckRunner.expect;
+import static com.exodus.updater.bench.CheckRunner.expectEquals;
+
+/**
+ * Checks of the update check schedule against a clock set by hand.
+ */
+public class CheckSchedulePolicyChecks {
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long NOW = 1433116800000L;
+
+    private static final CheckSchedulePolicy.Clock CLOCK = new CheckSchedulePolicy.Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return NOW;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return 0;
+        }
+    };
+
+    /**
+     * Random source that always draws the same value.
+     */
+    static class FixedRandom extends Random {
+        private static final long serialVersionUID = 1L;
+        private final double mValue;
+
+        FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+
+    private static CheckSchedulePolicy policy(long interval, float jitter, double random) {
+        return new CheckSchedulePolicy(interval, jitter, 15 * MINUTE, CLOCK,
+                new FixedRandom(random));
+    }
+
+    private static CheckSchedulePolicy policy(int frequency, double random) {
+        return CheckSchedulePolicy.forFrequency(frequency, 0.1f, 15 * MINUTE, CLOCK,
+                new FixedRandom(random));
+    }
+
+    public static void register(CheckRunner runner) {
+        runner.add("schedule.interval", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                CheckSchedulePolicy policy = policy(DAY, 0, 0);
+                expectEquals(23 * HOUR, policy.getDelay(NOW - HOUR, NOW - HOUR, 0),
+                        "delay an hour after a check");
+                expectEquals(0L, policy.getDelay(NOW - 3 * DAY, NOW - 3 * DAY, 0),
+                        "delay of an overdue check");
+                expectEquals(0L, policy.getDelay(0, 0, 0), "delay without any check");
+                // a failed attempt since the last check doesn't count without failures
+                expectEquals(12 * HOUR, policy.getDelay(NOW - 12 * HOUR, NOW - MINUTE, 0),
+                        "delay after a later attempt");
+                // the clock went back by five hours since the last check
+                expectEquals(DAY, policy.getDelay(NOW + 5 * HOUR, NOW + 5 * HOUR, 0),
+                        "delay after the clock was set back");
+            }
+        });
+        runner.add("schedule.backoff", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                CheckSchedulePolicy policy = policy(DAY, 0, 0);
+                long lastCheck = NOW - 10 * DAY;
+                long[] expected = {
+                    15 * MINUTE, 30 * MINUTE, HOUR, 2 * HOUR, 4 * HOUR, 8 * HOUR, 16 * HOUR,
+                    DAY, DAY,
+                };
+                for (int failures = 1; failures <= expected.length; failures++) {
+                    expectEquals(expected[failures - 1],
+                            policy.getDelay(lastCheck, NOW, failures),
+                            "backoff after " + failures + " failures");
+                }
+                expectEquals(DAY, policy.getDelay(lastCheck, NOW, 64), "backoff after 64 failures");
+                expectEquals(DAY, policy.getDelay(lastCheck, NOW, Integer.MAX_VALUE),
+                        "backoff after endless failures");
+                // counted from the last attempt, not the last check
+                expectEquals(5 * MINUTE, policy.getDelay(lastCheck, NOW - 25 * MINUTE, 2),
+                        "backoff after an earlier attempt");
+                expectEquals(0L, policy.getDelay(NOW - HOUR, NOW - HOUR, 1),
+                        "backoff that already passed");
+                expectEquals(15 * MINUTE, policy.getDelay(lastCheck, NOW + HOUR, 1),
+                        "backoff after the clock was set back");
+            }
+        });
+        runner.add("schedule.jitter", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                long lastCheck = NOW - HOUR;
+                expectEquals(23 * HOUR, policy(DAY, 0.1f, 0).getDelay(lastCheck, lastCheck, 0),
+                        "delay with the least jitter");
+                long most = policy(DAY, 0.1f, 0.999999).getDelay(lastCheck, lastCheck, 0);
+                expect(most > 23 * HOUR + DAY / 10 - 1000 && most <= 23 * HOUR + DAY / 10,
+                        "delay with the most jitter " + most);
+                expectEquals(23 * HOUR + DAY / 20,
+                        policy(DAY, 0.1f, 0.5).getDelay(lastCheck, lastCheck, 0),
+                        "delay with half the jitter");
+                expectEquals(DAY / 10, policy(DAY, 0.1f, 0).getFlex(0), "flex");
+
+                // retries are spread by the same fraction of their backoff
+                expectEquals(30 * MINUTE + 90 * 1000L,
+                        policy(DAY, 0.1f, 0.5).getDelay(lastCheck, NOW, 2),
+                        "retry with half the jitter");
+                expectEquals(3 * MINUTE, policy(DAY, 0.1f, 0).getFlex(2), "flex of a retry");
+
+                expectEquals(0L, policy(DAY, 0, 0.5).getFlex(0), "flex without jitter");
+                expectEquals(23 * HOUR, policy(DAY, 0, 0.5).getDelay(lastCheck, lastCheck, 0),
+                        "delay without jitter");
+            }
+        });
+        runner.add("schedule.atBoot", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                CheckSchedulePolicy policy = policy(Constants.UPDATE_FREQ_AT_BOOT, 0.5);
+                // due right away, however recent the last check
+                expectEquals(0L, policy.getDelay(NOW - MINUTE, NOW - MINUTE, 0),
+                        "delay after a recent check");
+                expectEquals(0L, policy.getDelay(NOW + HOUR, NOW + HOUR, 0),
+                        "delay after the clock was set back");
+                expectEquals(0L, policy.getFlex(0), "flex");
+
+                // failed checks are retried with backoff, at least once a day
+                expectEquals(HOUR, policy.getDelay(NOW - DAY, NOW, 3), "retry after 3 failures");
+                expectEquals(DAY, policy.getDelay(NOW - DAY, NOW, 20), "retry after 20 failures");
+            }
+        });
+        runner.add("schedule.frequencies", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                int[] frequencies = {
+                    Constants.UPDATE_FREQ_TWICE_DAILY, Constants.UPDATE_FREQ_DAILY,
+                    Constants.UPDATE_FREQ_WEEKLY, Constants.UPDATE_FREQ_BI_WEEKLY,
+                    Constants.UPDATE_FREQ_MONTHLY,
+                };
+                for (int frequency : frequencies) {
+                    long interval = frequency * 1000L;
+                    CheckSchedulePolicy policy = policy(frequency, 0);
+                    expectEquals(interval, policy.getDelay(NOW, NOW, 0),
+                            "delay right after a check, frequency " + frequency);
+                    expectEquals(interval / 10, policy.getFlex(0),
+                            "flex, frequency " + frequency);
+                    expectEquals(interval + interval / 20,
+                            policy(frequency, 0.5).getDelay(NOW, NOW, 0),
+                            "delay with jitter, frequency " + frequency);
+                }
+                expectEquals(null, policy(Constants.UPDATE_FREQ_NONE, 0), "policy of never");
+            }
+        });
+    }
+}
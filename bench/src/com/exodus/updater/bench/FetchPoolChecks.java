@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.utils.FetchPool;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static com.exodus.updater.bench.CheckRunner.expect;
+import static com.exodus.updater.bench.CheckRunner.expectEquals;
+
+/**
+ * Checks of the concurrent change log fetching against a local server whose
+ * change logs take a while to arrive.
+ */
+public class FetchPoolChecks {
+    private static final int DELAY_MS = 100;
+
+    /**
+     * Serves "changelog of <name>" for /changelog/<name>. Names starting
+     * with a number wait that many milliseconds, the others DELAY_MS.
+     * /missing/ answers 404.
+     */
+    private static LocalServer startServer() throws IOException {
+        LocalServer server = new LocalServer();
+        server.handle("/changelog/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String name = exchange.getRequestURI().getPath().substring(
+                        "/changelog/".length());
+                long delay = DELAY_MS;
+                int dash = name.indexOf('-');
+                if (dash > 0) {
+                    try {
+                        delay = Long.parseLong(name.substring(0, dash));
+                    } catch (NumberFormatException e) {
+                        // not a delay
+                    }
+                }
+                LocalServer.sleep(delay);
+                LocalServer.respond(exchange, 200, ("changelog of " + name).getBytes("UTF-8"));
+            }
+        });
+        server.handle("/missing/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LocalServer.respond(exchange, 404, new byte[0]);
+            }
+        });
+        return server;
+    }
+
+    private static Callable<String> get(final String url) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+                try {
+                    if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("HTTP " + conn.getResponseCode() + " for " + url);
+                    }
+                    InputStream in = conn.getInputStream();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[1024];
+                    int count;
+                    while ((count = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, count);
+                    }
+                    in.close();
+                    return out.toString("UTF-8");
+                } finally {
+                    conn.disconnect();
+                }
+            }
+        };
+    }
+
+    /**
+     * Fetch count change logs through a pool and return the wall clock time
+     * in milliseconds.
+     */
+    private static long timeFetch(LocalServer server, int count, int workers)
+            throws Exception {
+        FetchPool<String> pool = new FetchPool<String>("check", workers, workers);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            String url = server.url("/changelog/build" + i);
+            pool.submit(url, get(url));
+        }
+        List<String> results = pool.awaitAll();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        for (int i = 0; i < count; i++) {
+            expectEquals("changelog of build" + i, results.get(i), "result " + i);
+        }
+        return elapsed;
+    }
+
+    public static void register(CheckRunner runner) {
+        runner.add("fetch.resultsInSubmissionOrder", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = startServer();
+                try {
+                    // later submissions finish first
+                    FetchPool<String> pool = new FetchPool<String>("check", 4, 4);
+                    List<String> expected = new ArrayList<String>();
+                    for (int i = 0; i < 8; i++) {
+                        String name = (400 - i * 50) + "-build" + i;
+                        String url = server.url("/changelog/" + name);
+                        expectEquals(i, pool.submit(url, get(url)), "index of " + name);
+                        expected.add("changelog of " + name);
+                    }
+                    expectEquals(expected, pool.awaitAll(), "results");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("fetch.failedFetchYieldsNull", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = startServer();
+                try {
+                    FetchPool<String> pool = new FetchPool<String>("check", 2, 2);
+                    String[] urls = {
+                        server.url("/changelog/0-first"),
+                        server.url("/missing/second"),
+                        server.url("/changelog/0-third"),
+                    };
+                    for (String url : urls) {
+                        pool.submit(url, get(url));
+                    }
+                    List<String> results = pool.awaitAll();
+                    expectEquals(3, results.size(), "results");
+                    expectEquals("changelog of 0-first", results.get(0), "first result");
+                    expectEquals(null, results.get(1), "failed result");
+                    expectEquals("changelog of 0-third", results.get(2), "third result");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("fetch.perHostLimit", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = startServer();
+                try {
+                    // one host may only get two connections of the six workers
+                    FetchPool<String> pool = new FetchPool<String>("check", 6, 2);
+                    for (int i = 0; i < 12; i++) {
+                        String url = server.url("/changelog/build" + i);
+                        pool.submit(url, get(url));
+                    }
+                    pool.awaitAll();
+                    expectEquals(12, server.getRequestCount(), "requests");
+                    expectEquals(2, server.getPeakConcurrency(), "connections to one host");
+
+                    // two host names of the same server get two connections each
+                    server.resetCounts();
+                    pool = new FetchPool<String>("check", 6, 2);
+                    for (int i = 0; i < 12; i++) {
+                        String url = server.url(i % 2 == 0 ? "127.0.0.1" : "localhost",
+                                "/changelog/build" + i);
+                        pool.submit(url, get(url));
+                    }
+                    pool.awaitAll();
+                    expectEquals(4, server.getPeakConcurrency(), "connections to two hosts");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("fetch.scalesWithWorkers", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = startServer();
+                try {
+                    // warm up connection setup and class loading
+                    timeFetch(server, 4, 4);
+
+                    long serial = timeFetch(server, 16, 1);
+                    long parallel = timeFetch(server, 16, 8);
+                    System.out.println(String.format(
+                            "# 16 change logs of %d ms: %d ms with 1 worker, %d ms with 8",
+                            DELAY_MS, serial, parallel));
+                    expect(serial >= 16 * DELAY_MS, "one worker fetches one at a time, took "
+                            + serial + " ms");
+                    // two rounds of eight, with plenty of slack for a busy machine
+                    expect(parallel < 5 * DELAY_MS, "eight workers took " + parallel + " ms");
+                    expect(parallel * 4 < serial, "eight workers are at least four times faster");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("fetch.cancel", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = startServer();
+                try {
+                    final FetchPool<String> pool = new FetchPool<String>("check", 2, 2);
+                    for (int i = 0; i < 10; i++) {
+                        String url = server.url("/changelog/500-build" + i);
+                        pool.submit(url, get(url));
+                    }
+                    LocalServer.sleep(50);
+                    long start = System.nanoTime();
+                    pool.cancel();
+                    expect(pool.isCancelled(), "cancelled");
+                    expectEquals(-1, pool.submit(server.url("/changelog/late"),
+                            get(server.url("/changelog/late"))), "index after cancel");
+
+                    List<String> results = pool.awaitAll();
+                    long elapsed = (System.nanoTime() - start) / 1000000;
+                    expectEquals(10, results.size(), "results");
+                    for (String result : results) {
+                        expectEquals(null, result, "result after cancel");
+                    }
+                    expect(elapsed < 400, "awaitAll after cancel took " + elapsed + " ms");
+                    expect(server.getRequestCount() <= 2, "only the running fetches reached "
+                            + "the server, got " + server.getRequestCount());
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+    }
+}
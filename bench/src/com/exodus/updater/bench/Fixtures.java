@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Input files of the benchmarks.
+ *
+ * Missing files are generated from a fixed seed, so every run on every
+ * machine measures the same data. Files that already exist are used as
+ * they are, which allows measuring a real update list or change log saved
+ * from the server under the same name.
+ */
+public class Fixtures {
+    public static final String UPDATE_LIST = "exodus_update_list";
+    public static final String CHANGELOG = "changelog.txt";
+    public static final String DOWNLOAD_PREFIX = "download-";
+
+    private static final long SEED = 0x45584f44L;
+    private static final long DAY = 24 * 60 * 60;
+    // 2015-06-01
+    private static final long FIRST_BUILD_DATE = 1433116800L;
+
+    private final File mDirectory;
+    private final String mDevice;
+
+    public Fixtures(File directory, String device) {
+        mDirectory = directory;
+        mDevice = device;
+    }
+
+    public String buildName(int day) {
+        long date = FIRST_BUILD_DATE + day * DAY;
+        return "exodus-5.1-" + new java.text.SimpleDateFormat("yyyyMMdd", java.util.Locale.US)
+                .format(new java.util.Date(date * 1000)) + "-NIGHTLY-" + mDevice;
+    }
+
+    public long buildDate(int day) {
+        return FIRST_BUILD_DATE + day * DAY;
+    }
+
+    /**
+     * An update list of one nightly per day, each with delta patches from
+     * the previous builds.
+     */
+    public File getUpdateList(int builds, int deltasPerBuild) throws IOException {
+        File file = new File(mDirectory, UPDATE_LIST);
+        if (file.exists()) {
+            return file;
+        }
+        Random random = new Random(SEED);
+        StringBuilder list = new StringBuilder();
+        for (int day = 0; day < builds; day++) {
+            String build = buildName(day);
+            list.append(build).append(';').append(md5(random)).append(';')
+                    .append(buildDate(day)).append(";22;")
+                    .append(300000000 + random.nextInt(50000000)).append('\n');
+            for (int back = 1; back <= deltasPerBuild && back <= day; back++) {
+                String from = buildName(day - back);
+                list.append("delta;").append(from).append(';').append(build).append(';')
+                        .append(from).append("-to-").append(build).append(".patch;")
+                        .append(md5(random)).append(';')
+                        .append(10000000 + random.nextInt(40000000)).append('\n');
+            }
+        }
+        write(file, list.toString().getBytes("UTF-8"));
+        return file;
+    }
+
+    /**
+     * A change log in the format of the build server: categories between
+     * '=' lines, projects starting with '*' and their commits.
+     */
+    public File getChangelog(int projects, int commitsPerProject) throws IOException {
+        File file = new File(mDirectory, CHANGELOG);
+        if (file.exists()) {
+            return file;
+        }
+        Random random = new Random(SEED);
+        String[] words = { "Fix", "Add", "Update", "Remove", "camera", "audio", "wifi",
+                "bluetooth", "for", "when", "the", "crash", "overlay", "translations",
+                "kernel", "sepolicy", "on", "boot", "display", "battery" };
+        StringBuilder log = new StringBuilder();
+        log.append("====================\n   ").append(buildName(0))
+                .append("\n====================\n\n");
+        for (int project = 0; project < projects; project++) {
+            log.append("   * platform/project_").append(project).append('\n');
+            for (int commit = 0; commit < commitsPerProject; commit++) {
+                log.append(String.format("%07x", random.nextInt(0x10000000)));
+                int length = 4 + random.nextInt(8);
+                for (int i = 0; i < length; i++) {
+                    log.append(' ').append(words[random.nextInt(words.length)]);
+                }
+                log.append('\n');
+            }
+            log.append('\n');
+        }
+        write(file, log.toString().getBytes("UTF-8"));
+        return file;
+    }
+
+    /**
+     * A file of random bytes standing in for a downloaded update.
+     */
+    public File getDownload(int megabytes) throws IOException {
+        long size = megabytes * 1024L * 1024L;
+        File file = new File(mDirectory, DOWNLOAD_PREFIX + megabytes + "m.bin");
+        if (file.exists() && file.length() == size) {
+            return file;
+        }
+        mDirectory.mkdirs();
+        Random random = new Random(SEED);
+        byte[] buffer = new byte[1024 * 1024];
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public static byte[] readFully(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static String md5(Random random) {
+        return String.format("%016x%016x", random.nextLong(), random.nextLong());
+    }
+
+    private void write(File file, byte[] data) throws IOException {
+        mDirectory.mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
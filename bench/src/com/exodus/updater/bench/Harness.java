@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Minimal benchmark runner.
+ *
+ * An operation is first run for the warmup time, so that the JIT has
+ * compiled it, then timed for a number of rounds of fixed length. Each round
+ * yields the average time per operation. Operations return a value that is
+ * folded into a field nobody reads, which keeps the JIT from dropping work
+ * whose result is unused. The garbage collections and, where the JVM can
+ * tell, the bytes allocated during the timed rounds are counted as well.
+ */
+public class Harness {
+    public interface Operation {
+        long run() throws Exception;
+    }
+
+    public static class Result {
+        public final String name;
+        public final long bytesPerOp;
+        // Average time per operation of every round
+        public final double[] nanosPerOp;
+        // Collections while timing, of all collectors
+        public final long gcCount;
+        // Heap allocated per operation by the measuring thread, -1 if unknown
+        public final double allocatedPerOp;
+
+        Result(String name, long bytesPerOp, double[] nanosPerOp, long gcCount,
+                double allocatedPerOp) {
+            this.name = name;
+            this.bytesPerOp = bytesPerOp;
+            this.nanosPerOp = nanosPerOp;
+            this.gcCount = gcCount;
+            this.allocatedPerOp = allocatedPerOp;
+        }
+
+        public double mean() {
+            double sum = 0;
+            for (double value : nanosPerOp) {
+                sum += value;
+            }
+            return sum / nanosPerOp.length;
+        }
+
+        public double min() {
+            double min = Double.MAX_VALUE;
+            for (double value : nanosPerOp) {
+                min = Math.min(min, value);
+            }
+            return min;
+        }
+
+        public double max() {
+            double max = 0;
+            for (double value : nanosPerOp) {
+                max = Math.max(max, value);
+            }
+            return max;
+        }
+    }
+
+    private final long mWarmupNanos;
+    private final long mRoundNanos;
+    private final int mRounds;
+
+    private volatile long mSink;
+
+    public Harness(long warmupMillis, long roundMillis, int rounds) {
+        mWarmupNanos = warmupMillis * 1000000L;
+        mRoundNanos = roundMillis * 1000000L;
+        mRounds = Math.max(1, rounds);
+    }
+
+    /**
+     * Time an operation. bytesPerOp is the amount of data one operation
+     * processes, 0 if a throughput makes no sense for it.
+     */
+    public Result measure(String name, long bytesPerOp, Operation op) throws Exception {
+        long sink = 0;
+        long warmupEnd = System.nanoTime() + mWarmupNanos;
+        do {
+            sink ^= op.run();
+        } while (System.nanoTime() < warmupEnd);
+
+        double[] nanosPerOp = new double[mRounds];
+        long totalOps = 0;
+        long gcBefore = getGcCount();
+        long allocatedBefore = getAllocatedBytes();
+        for (int round = 0; round < mRounds; round++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long now;
+            do {
+                sink ^= op.run();
+                ops++;
+                now = System.nanoTime();
+            } while (now - start < mRoundNanos);
+            nanosPerOp[round] = (now - start) / (double) ops;
+            totalOps += ops;
+        }
+        long allocatedAfter = getAllocatedBytes();
+        long gcCount = getGcCount() - gcBefore;
+        mSink ^= sink;
+        double allocatedPerOp = allocatedBefore >= 0 && allocatedAfter >= 0
+                ? (allocatedAfter - allocatedBefore) / (double) totalOps : -1;
+        return new Result(name, bytesPerOp, nanosPerOp, gcCount, allocatedPerOp);
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported()
+                    && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.utils.HttpConnector;
+import com.exodus.updater.utils.HttpDownloader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.exodus.updater.bench.CheckRunner.expect;
+import static com.exodus.updater.bench.CheckRunner.expectEquals;
+
+/**
+ * Checks of the resumable downloader against a local server that serves
+ * ranges, changes the file or drops connections on request.
+ */
+public class HttpDownloaderChecks {
+    private static final int MB = 1024 * 1024;
+
+    /**
+     * Serves one file at /file with an ETag, honouring Range and If-Range
+     * like a regular web server, unless told to misbehave.
+     */
+    static class FileServer implements HttpHandler {
+        private volatile byte[] mContent;
+        private volatile String mEtag;
+        // one request per entry, "Range If-Range" with "-" for a missing header
+        final List<String> requests = new ArrayList<String>();
+
+        volatile boolean honourRanges = true;
+        // answer this many requests with 503
+        volatile int failRequests = 0;
+        // drop the connection of the next response after this many bytes
+        volatile long cutAfter = -1;
+        // serve the next range request from this offset instead
+        volatile long wrongRangeStart = -1;
+        // throttle the body, so that parallel ranges overlap
+        volatile long delayPerChunkMs = 0;
+
+        FileServer(byte[] content, String etag) {
+            setFile(content, etag);
+        }
+
+        void setFile(byte[] content, String etag) {
+            mContent = content;
+            mEtag = etag;
+        }
+
+        synchronized List<String> takeRequests() {
+            List<String> taken = new ArrayList<String>(requests);
+            requests.clear();
+            return taken;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            synchronized (this) {
+                requests.add((range != null ? range : "-") + " "
+                        + (ifRange != null ? ifRange : "-"));
+            }
+            synchronized (this) {
+                if (failRequests > 0) {
+                    failRequests--;
+                    LocalServer.respond(exchange, 503, new byte[0]);
+                    return;
+                }
+            }
+
+            byte[] content = mContent;
+            String etag = mEtag;
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+            long start = 0, end = content.length - 1;
+            boolean partial = false;
+            if (range != null && honourRanges && (ifRange == null || ifRange.equals(etag))) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                if (start >= content.length) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                    LocalServer.respond(exchange, 416, new byte[0]);
+                    return;
+                }
+                if (wrongRangeStart >= 0) {
+                    start = wrongRangeStart;
+                    wrongRangeStart = -1;
+                }
+                partial = true;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + content.length);
+            }
+
+            long length = end - start + 1;
+            long cut = cutAfter;
+            cutAfter = -1;
+            exchange.sendResponseHeaders(partial ? 206 : 200, length);
+            OutputStream out = exchange.getResponseBody();
+            long sent = 0;
+            try {
+                while (sent < length) {
+                    int count = (int) Math.min(64 * 1024, length - sent);
+                    if (cut >= 0 && sent + count > cut) {
+                        count = (int) (cut - sent);
+                        out.write(content, (int) (start + sent), count);
+                        out.flush();
+                        sent += count;
+                        // leave the client with a short body
+                        throw new IOException("cut");
+                    }
+                    out.write(content, (int) (start + sent), count);
+                    sent += count;
+                    if (delayPerChunkMs > 0) {
+                        out.flush();
+                        LocalServer.sleep(delayPerChunkMs);
+                    }
+                }
+                out.close();
+            } catch (IOException e) {
+                // the client went away, or the connection was cut on purpose
+            }
+        }
+    }
+
+    static class Recorder implements HttpDownloader.Listener {
+        volatile long downloaded;
+        volatile long total;
+        final List<String> failovers = new ArrayList<String>();
+
+        @Override
+        public void onProgress(long downloadedBytes, long totalBytes) {
+            downloaded = downloadedBytes;
+            total = totalBytes;
+        }
+
+        @Override
+        public synchronized void onFailover(String failedUrl, String nextUrl) {
+            failovers.add(failedUrl + " -> " + nextUrl);
+        }
+    }
+
+    /**
+     * A server with one file and a directory to download it to, cleaned up
+     * by close().
+     */
+    static class Setup {
+        final LocalServer server;
+        final FileServer file;
+        final File directory;
+        final File target;
+        final HttpConnector connector = new HttpConnector("check", 5000, 5000);
+        final String url;
+
+        Setup(byte[] content) throws IOException {
+            server = new LocalServer();
+            file = new FileServer(content, "\"v1\"");
+            server.handle("/file", file);
+            url = server.url("/file");
+            directory = CheckRunner.createTempDirectory("download");
+            target = new File(directory, "update.zip.partial");
+        }
+
+        HttpDownloader downloader(MessageDigest digest, Recorder recorder) {
+            HttpDownloader downloader = new HttpDownloader(connector, url, target, digest,
+                    recorder != null ? recorder : new Recorder());
+            downloader.setRetryPolicy(3, 10);
+            return downloader;
+        }
+
+        File checkpoint() {
+            return new File(target.getPath() + ".ckpt");
+        }
+
+        void close() {
+            server.stop();
+            CheckRunner.deleteRecursively(directory);
+        }
+    }
+
+    private static byte[] content(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static void expectDownloaded(Setup setup, byte[] content, MessageDigest digest)
+            throws Exception {
+        expect(Arrays.equals(content, Fixtures.readFully(setup.target)),
+                "downloaded file differs from the served one");
+        expect(!setup.checkpoint().exists(), "checkpoint removed");
+        if (digest != null) {
+            expect(Arrays.equals(MessageDigest.getInstance("MD5").digest(content),
+                    digest.digest()), "digest covers the whole file");
+        }
+    }
+
+    private static void expectFailure(HttpDownloader downloader, String what) {
+        try {
+            downloader.download();
+        } catch (IOException e) {
+            return;
+        }
+        throw new CheckRunner.CheckFailure(what + " did not fail");
+    }
+
+    public static void register(CheckRunner runner) {
+        runner.add("download.singleStream", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                byte[] content = content(3 * MB + 17, 1);
+                Setup setup = new Setup(content);
+                try {
+                    MessageDigest digest = MessageDigest.getInstance("MD5");
+                    Recorder recorder = new Recorder();
+                    HttpDownloader downloader = setup.downloader(digest, recorder);
+                    downloader.download();
+                    expectDownloaded(setup, content, digest);
+                    expectEquals(Arrays.asList("- -"), setup.file.takeRequests(), "requests");
+                    expectEquals((long) content.length, downloader.getTotalBytes(), "total");
+                    expectEquals((long) content.length, recorder.downloaded, "progress");
+                } finally {
+                    setup.close();
+                }
+            }
+        });
+        runner.add("download.resumeWithIfRange", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                byte[] content = content(10 * MB, 2);
+                Setup setup = new Setup(content);
+                try {
+                    setup.file.cutAfter = 6 * MB;
+                    HttpDownloader first = setup.downloader(null, null);
+                    first.setRetryPolicy(0, 10);
+                    expectFailure(first, "cut download");
+                    expect(setup.checkpoint().exists(), "checkpoint kept");
+                    long kept = setup.target.length();
+                    expect(kept >= 4 * MB && kept <= 6 * MB, "kept " + kept + " bytes");
+                    setup.file.takeRequests();
+
+                    MessageDigest digest = MessageDigest.getInstance("MD5");
+                    setup.downloader(digest, null).download();
+                    expectDownloaded(setup, content, digest);
+                    List<String> requests = setup.file.takeRequests();
+                    expectEquals(1, requests.size(), "requests of the resumed download");
+                    String request = requests.get(0);
+                    long resumedAt = Long.parseLong(request.substring("bytes=".length(),
+                            request.indexOf('-')));
+                    expect(resumedAt >= 4 * MB && resumedAt <= kept,
+                            "resumed at " + resumedAt + " of " + kept + " kept bytes");
+                    expectEquals("bytes=" + resumedAt + "- \"v1\"", request, "resume request");
+                } finally {
+                    setup.close();
+                }
+            }
+        });
+        runner.add("download.restartWhenFileChanged", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                Setup setup = new Setup(content(10 * MB, 3));
+                try {
+                    setup.file.cutAfter = 6 * MB;
+                    HttpDownloader first = setup.downloader(null, null);
+                    first.setRetryPolicy(0, 10);
+                    expectFailure(first, "cut download");
+                    setup.file.takeRequests();
+
+                    // If-Range no longer matches, the server sends the new file
+                    byte[] changed = content(9 * MB, 4);
+                    setup.file.setFile(changed, "\"v2\"");
+                    MessageDigest digest = MessageDigest.getInstance("MD5");
+                    setup.downloader(digest, null).download();
+                    expectDownloaded(setup, changed, digest);
+                    List<String> requests = setup.file.takeRequests();
+                    expectEquals(1, requests.size(), "requests");
+                    expect(requests.get(0).endsWith(" \"v1\""), "asked for the old version, "
+                            + requests.get(0));
+                } finally {
+                    setup.close();
+                }
+            }
+        });
+        runner.add("download.wrongRangeRestarts", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                byte[] content = content(10 * MB, 5);
+                for (long wrongStart : new long[] { 0, 3 * MB }) {
+                    Setup setup = new Setup(content);
+                    try {
+                        setup.file.cutAfter = 6 * MB;
+                        HttpDownloader first = setup.downloader(null, null);
+                        first.setRetryPolicy(0, 10);
+                        expectFailure(first, "cut download");
+                        setup.file.takeRequests();
+
+                        setup.file.wrongRangeStart = wrongStart;
+                        MessageDigest digest = MessageDigest.getInstance("MD5");
+                        setup.downloader(digest, null).download();
+                        expectDownloaded(setup, content, digest);
+                        List<String> requests = setup.file.takeRequests();
+                        if (wrongStart == 0) {
+                            // the whole file came back, it is used from the start
+                            expectEquals(1, requests.size(), "requests, " + requests);
+                        } else {
+                            // the unusable range is dropped and the file fetched again
+                            expectEquals(2, requests.size(), "requests, " + requests);
+                            expectEquals("- -", requests.get(1), "request after a wrong range");
+                        }
+                    } finally {
+                        setup.close();
+                    }
+                }
+            }
+        });
+        runner.add("download.serverWithoutRanges", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                byte[] content = content(16 * MB, 11);
+                Setup setup = new Setup(content);
+                try {
+                    setup.file.honourRanges = false;
+                    setup.file.cutAfter = 6 * MB;
+                    HttpDownloader first = setup.downloader(null, null);
+                    first.setRetryPolicy(0, 10);
+                    expectFailure(first, "cut download");
+                    setup.file.takeRequests();
+
+                    // the resume gets the whole file, the ranges a single stream
+                    MessageDigest digest = MessageDigest.getInstance("MD5");
+                    HttpDownloader downloader = setup.downloader(digest, null);
+                    downloader.setConnectionCount(4);
+                    downloader.download();
+                    expectDownloaded(setup, content, digest);
+                    List<String> requests = setup.file.takeRequests();
+                    expectEquals(1, requests.size(), "requests of the resumed download");
+                    expect(requests.get(0).startsWith("bytes="), "resumed with a range request");
+
+                    digest.reset();
+                    downloader = setup.downloader(digest, null);
+                    downloader.setConnectionCount(4);
+                    downloader.download();
+                    expectDownloaded(setup, content, digest);
+                    expectEquals(Arrays.asList("bytes=0-0 -", "- -"),
+                            setup.file.takeRequests(), "requests of a new download");
+                } finally {
+                    setup.close();
+                }
+            }
+        });
+        runner.add("download.parallelRanges", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                byte[] content = content(16 * MB + 5, 6);
+                Setup setup = new Setup(content);
+                try {
+                    setup.file.delayPerChunkMs = 1;
+                    MessageDigest digest = MessageDigest.getInstance("MD5");
+                    HttpDownloader downloader = setup.downloader(digest, null);
+                    downloader.setConnectionCount(4);
+                    downloader.download();
+                    expectDownloaded(setup, content, digest);
+
+                    List<String> requests = setup.file.takeRequests();
+                    expectEquals("bytes=0-0 -", requests.get(0), "probe request");
+                    long size = content.length / 4;
+                    List<String> ranges = new ArrayList<String>(requests.subList(1,
+                            requests.size()));
+                    Collections.sort(ranges);
+                    expectEquals(Arrays.asList(
+                            "bytes=0-" + (size - 1) + " \"v1\"",
+                            "bytes=" + (3 * size) + "-" + (content.length - 1) + " \"v1\"",
+                            "bytes=" + size + "-" + (2 * size - 1) + " \"v1\"",
+                            "bytes=" + (2 * size) + "-" + (3 * size - 1) + " \"v1\""),
+                            ranges, "range requests");
+                    expectEquals(4, setup.server.getPeakConcurrency(), "parallel connections");
+                } finally {
+                    setup.close();
+                }
+            }
+        });
+        runner.add("download.parallelRangesResume", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                byte[] content = content(32 * MB, 7);
+                Setup setup = new Setup(content);
+                try {
+                    // cancel while the ranges are still arriving
+                    setup.file.delayPerChunkMs = 5;
+                    HttpDownloader first = setup.downloader(null, null);
+                    first.setConnectionCount(4);
+                    final HttpDownloader cancelled = first;
+                    Thread canceller = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            LocalServer.sleep(200);
+                            cancelled.cancel();
+                        }
+                    });
+                    canceller.start();
+                    try {
+                        first.download();
+                        throw new CheckRunner.CheckFailure("download finished before cancel");
+                    } catch (InterruptedIOException e) {
+                        // expected
+                    }
+                    canceller.join();
+                    expect(setup.checkpoint().exists(), "checkpoint kept");
+                    expectEquals((long) content.length, setup.target.length(),
+                            "preallocated file");
+                    setup.file.takeRequests();
+
+                    setup.file.delayPerChunkMs = 0;
+                    MessageDigest digest = MessageDigest.getInstance("MD5");
+                    HttpDownloader second = setup.downloader(digest, null);
+                    second.setConnectionCount(4);
+                    second.download();
+                    expectDownloaded(setup, content, digest);
+                    long requested = 0;
+                    for (String request : setup.file.takeRequests()) {
+                        expect(request.endsWith(" \"v1\"") && !request.startsWith("bytes=0-0"),
+                                "resumed range request " + request);
+                        String[] bounds = request.substring("bytes=".length(),
+                                request.indexOf(' ')).split("-");
+                        requested += Long.parseLong(bounds[1]) - Long.parseLong(bounds[0]) + 1;
+                    }
+                    expect(requested < content.length,
+                            "resume fetched " + requested + " bytes again");
+                } finally {
+                    setup.close();
+                }
+            }
+        });
+        runner.add("download.rangesLostFallsBack", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                Setup setup = new Setup(content(16 * MB, 8));
+                try {
+                    final byte[] changed = content(16 * MB, 9);
+                    final FileServer file = setup.file;
+                    // the file changes between the probe and the ranges
+                    setup.server.handle("/changing", new HttpHandler() {
+                        private boolean mProbed = false;
+
+                        @Override
+                        public void handle(HttpExchange exchange) throws IOException {
+                            synchronized (this) {
+                                if (mProbed) {
+                                    file.setFile(changed, "\"v2\"");
+                                }
+                                mProbed = true;
+                            }
+                            file.handle(exchange);
+                        }
+                    });
+                    HttpDownloader downloader = new HttpDownloader(setup.connector,
+                            setup.server.url("/changing"), setup.target,
+                            MessageDigest.getInstance("MD5"), new Recorder());
+                    downloader.setRetryPolicy(3, 10);
+                    downloader.setConnectionCount(4);
+                    downloader.download();
+                    expect(Arrays.equals(changed, Fixtures.readFully(setup.target)),
+                            "downloaded file is the changed one");
+                    // Ranges cut off by the fallback may still be logged after it
+                    List<String> requests = setup.file.takeRequests();
+                    int firstRange = -1;
+                    for (int i = 0; i < requests.size() && firstRange < 0; i++) {
+                        if (requests.get(i).startsWith("bytes=")) {
+                            firstRange = i;
+                        }
+                    }
+                    expect(firstRange >= 0 && requests.subList(firstRange + 1, requests.size())
+                            .contains("- -"), "single stream request after the ranges were lost, "
+                            + requests);
+                } finally {
+                    setup.close();
+                }
+            }
+        });
+        runner.add("download.failOverToMirrors", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                byte[] content = content(10 * MB, 12);
+                Setup setup = new Setup(content);
+                try {
+                    // the first mirror is down as well, the second one serves the file
+                    FileServer down = new FileServer(content, "\"v1\"");
+                    down.failRequests = Integer.MAX_VALUE;
+                    setup.server.handle("/down/file", down);
+                    FileServer mirror = new FileServer(content, "\"v1\"");
+                    setup.server.handle("/mirror/file", mirror);
+                    String downUrl = setup.server.url("/down/file");
+                    String mirrorUrl = setup.server.url("/mirror/file");
+
+                    // the primary breaks off mid-file and then stays down
+                    setup.file.cutAfter = 6 * MB;
+                    final FileServer primary = setup.file;
+                    setup.server.handle("/file-then-down", new HttpHandler() {
+                        private int mRequests = 0;
+
+                        @Override
+                        public void handle(HttpExchange exchange) throws IOException {
+                            synchronized (this) {
+                                if (mRequests++ > 0) {
+                                    primary.failRequests = 1;
+                                }
+                            }
+                            primary.handle(exchange);
+                        }
+                    });
+                    Recorder recorder = new Recorder();
+                    MessageDigest digest = MessageDigest.getInstance("MD5");
+                    HttpDownloader downloader = new HttpDownloader(setup.connector,
+                            setup.server.url("/file-then-down"), setup.target, digest, recorder);
+                    downloader.setRetryPolicy(3, 10);
+                    downloader.setMirrors(Arrays.asList(downUrl, mirrorUrl));
+                    downloader.download();
+
+                    expectDownloaded(setup, content, digest);
+                    expectEquals(mirrorUrl, downloader.getCurrentUrl(), "current url");
+                    expectEquals(Arrays.asList(
+                            setup.server.url("/file-then-down") + " -> " + downUrl,
+                            downUrl + " -> " + mirrorUrl), recorder.failovers, "failovers");
+                    // the mirror picks up where the primary broke off
+                    List<String> requests = mirror.takeRequests();
+                    expectEquals(1, requests.size(), "requests to the mirror");
+                    expect(requests.get(0).startsWith("bytes=")
+                            && requests.get(0).endsWith(" \"v1\""),
+                            "resumed on the mirror with " + requests.get(0));
+                } finally {
+                    setup.close();
+                }
+            }
+        });
+        runner.add("download.cancelDuringBackoff", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                Setup setup = new Setup(content(1024, 10));
+                try {
+                    setup.file.failRequests = Integer.MAX_VALUE;
+                    final HttpDownloader downloader = setup.downloader(null, null);
+                    // the second attempt would only start after 30 seconds
+                    downloader.setRetryPolicy(5, 30000);
+                    final IOException[] error = new IOException[1];
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                downloader.download();
+                            } catch (IOException e) {
+                                error[0] = e;
+                            }
+                        }
+                    });
+                    thread.start();
+                    long deadline = System.currentTimeMillis() + 5000;
+                    while (setup.server.getRequestCount() == 0
+                            && System.currentTimeMillis() < deadline) {
+                        LocalServer.sleep(10);
+                    }
+                    LocalServer.sleep(100);
+
+                    long start = System.nanoTime();
+                    downloader.cancel();
+                    thread.join(5000);
+                    long elapsed = (System.nanoTime() - start) / 1000000;
+                    expect(!thread.isAlive(), "download still running after cancel");
+                    expect(elapsed < 1000, "cancel took " + elapsed + " ms");
+                    expect(error[0] instanceof InterruptedIOException,
+                            "download ended with " + error[0]);
+                    expectEquals(1, setup.server.getRequestCount(), "requests");
+                } finally {
+                    setup.close();
+                }
+            }
+        });
+    }
+}
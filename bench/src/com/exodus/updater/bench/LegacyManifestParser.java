@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.misc.UpdateInfo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The update list parsing of UpdateCheckService as it was before
+ * ManifestParser, kept to compare against: the whole list is read into
+ * lines first, then every line is split(";") and its fields trimmed and
+ * parsed. Delta patches are split and kept, but not checked against the
+ * downloaded files.
+ */
+public class LegacyManifestParser {
+    private static final String DELTA_PREFIX = "delta;";
+
+    public static List<UpdateInfo> parse(byte[] updateList, String urlBase) throws IOException {
+        LinkedList<String> versions = readMultilineFile(updateList);
+        LinkedList<UpdateInfo> infos = new LinkedList<UpdateInfo>();
+        HashMap<String, String[]> deltas = new HashMap<String, String[]>();
+        for (String v : versions) {
+            if (v.startsWith(DELTA_PREFIX)) {
+                String[] parts = v.split(";");
+                if (parts.length >= 5) {
+                    deltas.put(parts[2].trim() + ".zip", parts);
+                }
+                continue;
+            }
+            UpdateInfo ui = getUpdateInfo(urlBase, v);
+            if (ui != null) {
+                infos.add(ui);
+            }
+        }
+        return infos;
+    }
+
+    private static LinkedList<String> readMultilineFile(byte[] data) throws IOException {
+        LinkedList<String> ret = new LinkedList<String>();
+        BufferedReader br = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(data)));
+        String str;
+        while ((str = br.readLine()) != null) {
+            ret.add(str);
+        }
+        br.close();
+        return ret;
+    }
+
+    private static UpdateInfo getUpdateInfo(String urlBase, String version) {
+        String[] parts = version.split(";");
+        String fileName = parts[0].trim();
+        String md5sum = parts[1].trim();
+        String utcStr = parts[2].trim();
+        String apiStr = parts[3].trim();
+        try {
+            long utc = Long.valueOf(utcStr).longValue();
+            int api = Integer.valueOf(apiStr).intValue();
+            UpdateInfo ui = new UpdateInfo(fileName + ".zip", utc, api,
+                    urlBase + fileName + ".zip", md5sum, UpdateInfo.Type.NIGHTLY);
+            ui.setFileSize(parseSize(parts, 4));
+            return ui;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static long parseSize(String[] parts, int index) {
+        if (parts.length <= index) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(parts[index].trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP server on the loopback interface standing in for the update server
+ * and its mirrors in the checks.
+ *
+ * Handlers run on a thread each, so slow responses overlap the way they
+ * would on a real server. The server counts the requests it is handling to
+ * let checks see how many connections a client keeps open at once.
+ */
+public class LocalServer {
+    private static final String DONE = "LocalServer.done";
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private int mActive = 0;
+    private int mPeak = 0;
+    private int mRequests = 0;
+
+    public LocalServer() throws IOException {
+        mServer = HttpServer.create(
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 50);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    public void handle(String path, final HttpHandler handler) {
+        mServer.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (LocalServer.this) {
+                    mRequests++;
+                    mActive++;
+                    mPeak = Math.max(mPeak, mActive);
+                }
+                Runnable done = new Runnable() {
+                    private boolean mDone = false;
+
+                    @Override
+                    public void run() {
+                        synchronized (LocalServer.this) {
+                            if (!mDone) {
+                                mDone = true;
+                                mActive--;
+                            }
+                        }
+                    }
+                };
+                exchange.setAttribute(DONE, done);
+                try {
+                    handler.handle(exchange);
+                } finally {
+                    done.run();
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * The url of path on this server. Different host names for the same
+     * server let checks stand in for several hosts.
+     */
+    public String url(String host, String path) {
+        return "http://" + host + ":" + mServer.getAddress().getPort() + path;
+    }
+
+    public String url(String path) {
+        return url("127.0.0.1", path);
+    }
+
+    /**
+     * The largest number of requests handled at the same time since the
+     * last reset.
+     */
+    public synchronized int getPeakConcurrency() {
+        return mPeak;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    public synchronized void resetCounts() {
+        mPeak = mActive;
+        mRequests = 0;
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Send a complete response. The request stops counting as active before
+     * the client can see the answer, since the client may open its next
+     * connection as soon as it has it.
+     */
+    public static void respond(HttpExchange exchange, int status, byte[] body)
+            throws IOException {
+        Object done = exchange.getAttribute(DONE);
+        if (done instanceof Runnable) {
+            ((Runnable) done).run();
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    public static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
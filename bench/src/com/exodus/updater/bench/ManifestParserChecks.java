@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.utils.ManifestParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.exodus.updater.bench.CheckRunner.expect;
+import static com.exodus.updater.bench.CheckRunner.expectEquals;
+
+/**
+ * Checks of ManifestParser against update list fixtures.
+ */
+public class ManifestParserChecks {
+    private static final String LIST =
+            "exodus-5.1-20150601-NIGHTLY-bench;0123456789abcdef0123456789abcdef;1433116800;22;312000000\n"
+            + "exodus-5.1-20150602-NIGHTLY-bench;fedcba9876543210fedcba9876543210;1433203200;22\n"
+            + "delta;exodus-5.1-20150601-NIGHTLY-bench;exodus-5.1-20150602-NIGHTLY-bench;"
+            + "1-to-2.patch;00112233445566778899aabbccddeeff;12345678\n"
+            + "delta;exodus-5.1-20150601-NIGHTLY-bench;exodus-5.1-20150603-NIGHTLY-bench;"
+            + "1-to-3.patch;ffeeddccbbaa99887766554433221100\n";
+
+    private static final List<String> LIST_RECORDS = Arrays.asList(
+            "build exodus-5.1-20150601-NIGHTLY-bench 0123456789abcdef0123456789abcdef"
+                    + " 1433116800 22 312000000",
+            "build exodus-5.1-20150602-NIGHTLY-bench fedcba9876543210fedcba9876543210"
+                    + " 1433203200 22 -1",
+            "delta exodus-5.1-20150601-NIGHTLY-bench exodus-5.1-20150602-NIGHTLY-bench"
+                    + " 1-to-2.patch 00112233445566778899aabbccddeeff 12345678",
+            "delta exodus-5.1-20150601-NIGHTLY-bench exodus-5.1-20150603-NIGHTLY-bench"
+                    + " 1-to-3.patch ffeeddccbbaa99887766554433221100 -1");
+
+    /**
+     * Keeps every reported record as one line of text, in order.
+     */
+    static class Recorder implements ManifestParser.Listener {
+        final List<String> records = new ArrayList<String>();
+
+        @Override
+        public void onBuild(String build, String md5, long date, int apiLevel, long size) {
+            records.add("build " + build + " " + md5 + " " + date + " " + apiLevel + " " + size);
+        }
+
+        @Override
+        public void onDelta(String fromBuild, String toBuild, String patchFile, String md5,
+                long size) {
+            records.add("delta " + fromBuild + " " + toBuild + " " + patchFile + " " + md5
+                    + " " + size);
+        }
+
+        @Override
+        public void onMalformedLine(String line) {
+            records.add("malformed " + line);
+        }
+    }
+
+    public static void register(CheckRunner runner) {
+        runner.add("manifest.buildsAndDeltas", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                expectEquals(LIST_RECORDS, parse(LIST), "records");
+            }
+        });
+        runner.add("manifest.whitespaceAndCrLf", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                expectEquals(Arrays.asList("build a-build md5 1433116800 22 42"),
+                        parse("  a-build ; md5 ;1433116800\t; 22 ;42 \r\n"), "records");
+            }
+        });
+        runner.add("manifest.blankAndMalformedLines", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                String list = "\n   \n"
+                        + "only-a-name\n"
+                        + "build;md5;not-a-date;22\n"
+                        + "build;md5;1433116800;-1\n"
+                        + "build;md5;1433116800;99999999999\n"
+                        + ";md5;1433116800;22\n"
+                        + "build;md5;1234567890123456789;22\n"
+                        + "delta;from;to\n"
+                        + "delta;from;;patch;md5\n"
+                        + "build;md5;1433116800;22;not-a-size\n";
+                expectEquals(Arrays.asList(
+                        "malformed only-a-name",
+                        "malformed build;md5;not-a-date;22",
+                        "malformed build;md5;1433116800;-1",
+                        "malformed build;md5;1433116800;99999999999",
+                        "malformed ;md5;1433116800;22",
+                        "malformed build;md5;1234567890123456789;22",
+                        "malformed delta;from;to",
+                        "malformed delta;from;;patch;md5",
+                        "build build md5 1433116800 22 -1"), parse(list), "records");
+            }
+        });
+        runner.add("manifest.lastLineOnlyOnFinish", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                Recorder recorder = new Recorder();
+                ManifestParser parser = new ManifestParser(recorder);
+                byte[] data = "a;md5;1;22\nb;md5;2;22".getBytes("UTF-8");
+                parser.feed(data, 0, data.length);
+                expectEquals(1, recorder.records.size(), "records before finish");
+                parser.finish();
+                expectEquals(Arrays.asList("build a md5 1 22 -1", "build b md5 2 22 -1"),
+                        recorder.records, "records after finish");
+                parser.finish();
+                expectEquals(2, recorder.records.size(), "records after a second finish");
+            }
+        });
+        runner.add("manifest.anyChunking", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                // A long line outgrows the buffer kept for partial lines
+                StringBuilder longName = new StringBuilder();
+                for (int i = 0; i < 100; i++) {
+                    longName.append("exodus-");
+                }
+                String list = LIST + longName + ";äöü-md5;1433116800;22;1\n" + LIST;
+                byte[] data = list.getBytes("UTF-8");
+                List<String> expected = parse(list);
+                expectEquals(9, expected.size(), "records of the whole list");
+                expect(expected.get(4).contains("äöü-md5"), "UTF-8 field decoded");
+
+                for (int chunk = 1; chunk <= 64; chunk++) {
+                    Recorder recorder = new Recorder();
+                    ManifestParser parser = new ManifestParser(recorder);
+                    for (int offset = 0; offset < data.length; offset += chunk) {
+                        parser.feed(data, offset, Math.min(chunk, data.length - offset));
+                    }
+                    parser.finish();
+                    expectEquals(expected, recorder.records, "records in chunks of " + chunk);
+                }
+            }
+        });
+        runner.add("manifest.parseStream", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                Recorder recorder = new Recorder();
+                new ManifestParser(recorder).parse(
+                        new ByteArrayInputStream(LIST.getBytes("UTF-8")));
+                expectEquals(LIST_RECORDS, recorder.records, "records");
+            }
+        });
+        runner.add("manifest.generatedFixture", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                File directory = CheckRunner.createTempDirectory("manifest");
+                Fixtures fixtures = new Fixtures(directory, "bench");
+                byte[] data = Fixtures.readFully(fixtures.getUpdateList(500, 3));
+                Recorder recorder = new Recorder();
+                ManifestParser parser = new ManifestParser(recorder);
+                parser.feed(data, 0, data.length);
+                parser.finish();
+
+                int builds = 0, deltas = 0;
+                for (String record : recorder.records) {
+                    expect(!record.startsWith("malformed"), "unexpected " + record);
+                    if (record.startsWith("build ")) {
+                        builds++;
+                    } else {
+                        deltas++;
+                    }
+                }
+                expectEquals(500, builds, "builds");
+                // three patches per build, fewer for the first ones
+                expectEquals(500 * 3 - 3 - 2 - 1, deltas, "deltas");
+                expect(recorder.records.get(0).startsWith(
+                        "build " + fixtures.buildName(0) + " "), "first build");
+                CheckRunner.deleteRecursively(directory);
+            }
+        });
+    }
+
+    static List<String> parse(String list) throws Exception {
+        Recorder recorder = new Recorder();
+        ManifestParser parser = new ManifestParser(recorder);
+        byte[] data = list.getBytes("UTF-8");
+        parser.feed(data, 0, data.length);
+        parser.finish();
+        return recorder.records;
+    }
+}
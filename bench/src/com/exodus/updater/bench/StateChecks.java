@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.misc.State;
+import com.exodus.updater.misc.StateCodec;
+import com.exodus.updater.misc.UpdateInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.exodus.updater.bench.CheckRunner.expect;
+import static com.exodus.updater.bench.CheckRunner.expectEquals;
+
+/**
+ * Checks of the migration of state files written with Java serialization.
+ */
+public class StateChecks {
+    private static LinkedList<UpdateInfo> updates() {
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        UpdateInfo ui = new UpdateInfo("exodus-1.zip", 1433116800L, 22,
+                "http://localhost/exodus-1.zip", "0123456789abcdef", UpdateInfo.Type.NIGHTLY);
+        ui.setFileSize(312000000L);
+        updates.add(ui);
+        ui = new UpdateInfo("exodus-2.zip", 1433203200L, 22,
+                "http://localhost/exodus-2.zip", "fedcba9876543210", UpdateInfo.Type.NIGHTLY);
+        ui.setFileSize(313000000L);
+        ui.setDelta("exodus-1.zip", "http://localhost/1-to-2.patch", "00112233", 12345678L);
+        updates.add(ui);
+        return updates;
+    }
+
+    /**
+     * A serialized update list. Renamed fields are unknown to UpdateInfo,
+     * like the fields of builds saved before they were added.
+     */
+    private static byte[] serialize(List<UpdateInfo> updates, String... renamedFields)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(updates);
+        out.close();
+
+        String data = new String(bytes.toByteArray(), "ISO-8859-1");
+        for (String field : renamedFields) {
+            expect(data.contains(field), "field " + field + " serialized");
+            data = data.replace(field, "x" + field.substring(1));
+        }
+        return data.getBytes("ISO-8859-1");
+    }
+
+    private static LinkedList<UpdateInfo> migrate(byte[] legacy) throws IOException {
+        File directory = CheckRunner.createTempDirectory("state");
+        try {
+            File file = new File(directory, "exodusupdater.state");
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(legacy);
+            out.close();
+            LinkedList<UpdateInfo> updates = State.readState(file);
+            expect(StateCodec.hasMagic(ByteBuffer.wrap(Fixtures.readFully(file))),
+                    "file migrated");
+            expectEquals(updates, State.readState(file), "updates after the migration");
+            return updates;
+        } finally {
+            CheckRunner.deleteRecursively(directory);
+        }
+    }
+
+    public static void register(CheckRunner runner) {
+        runner.add("state.legacyMigrated", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LinkedList<UpdateInfo> updates = migrate(serialize(updates()));
+                expectEquals(updates(), updates, "updates");
+                expectEquals(312000000L, updates.get(0).getFileSize(), "size");
+                expectEquals(-1L, updates.get(0).getDeltaSize(), "size without a delta");
+                expectEquals(12345678L, updates.get(1).getDeltaSize(), "delta size");
+            }
+        });
+        runner.add("state.legacyUnstoredSizes", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                // saved before the sizes were added to UpdateInfo
+                LinkedList<UpdateInfo> updates = migrate(serialize(updates(),
+                        "mFileSize", "mDeltaSize"));
+                expectEquals(updates(), updates, "updates");
+                for (UpdateInfo ui : updates) {
+                    expectEquals(-1L, ui.getFileSize(), "size of " + ui.getFileName());
+                    expectEquals(-1L, ui.getDeltaSize(), "delta size of " + ui.getFileName());
+                }
+                expectEquals("00112233", updates.get(1).getDeltaMD5Sum(), "delta md5");
+            }
+        });
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.misc.State;
+import com.exodus.updater.misc.StateCodec;
+import com.exodus.updater.misc.UpdateInfo;
+import com.exodus.updater.misc.UpdateListMerger;
+import com.exodus.updater.utils.ChangelogFormatter;
+import com.exodus.updater.utils.FileHasher;
+import com.exodus.updater.utils.HttpConnector;
+import com.exodus.updater.utils.HttpDownloader;
+import com.exodus.updater.utils.MD5;
+import com.exodus.updater.utils.ManifestParser;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmarks of the code that runs on every update check and download,
+ * measured on a plain JVM against the files in the fixtures folder.
+ *
+ * Usage, see bench/run.sh:
+ *   --fixtures DIR      folder of the input files, generated if missing
+ *   --warmup MS         warmup time of each benchmark (default 2000)
+ *   --rounds N          timed rounds of each benchmark (default 5)
+ *   --round-ms MS       length of a round (default 1000)
+ *   --filter TEXT       only run the benchmarks whose name contains TEXT
+ *   --hash-mb LIST      comma separated sizes of the files hashed by the
+ *                       hash benchmarks, e.g. 100,1024,3072 (default 100).
+ *                       Files larger than the page cache measure the disk.
+ *   --save FILE         write the results, to be used as a baseline later
+ *   --baseline FILE     compare with saved results and exit with status 1
+ *                       if a benchmark got slower than the threshold
+ *   --threshold PCT     allowed slowdown against the baseline (default 15)
+ */
+public class UpdaterBenchmarks {
+    // A build and three patches a day make a list of 10,002 lines
+    private static final int BUILDS = 2502;
+    private static final int DELTAS_PER_BUILD = 3;
+    private static final int CHANGELOG_PROJECTS = 150;
+    private static final int CHANGELOG_COMMITS = 8;
+    private static final int DOWNLOADED_FILES = 10;
+    private static final int[] STATE_SIZES = { 10, 100, 1000 };
+    private static final int[] DOWNLOAD_SEGMENTS = { 1, 2, 4, 8 };
+    // Large enough for eight ranges of the downloader's 4 MB minimum
+    private static final int DOWNLOAD_MB = 32;
+    // 64 kB per chunk, so about 32 MB/s per connection
+    private static final long DOWNLOAD_CHUNK_DELAY_MS = 2;
+
+    private File mFixturesDir = new File("fixtures");
+    private long mWarmupMillis = 2000;
+    private int mRounds = 5;
+    private long mRoundMillis = 1000;
+    private String mFilter;
+    private int[] mHashMegabytes = { 100 };
+    private File mSaveFile;
+    private File mBaselineFile;
+    private double mThreshold = 15;
+
+    private final Map<String, Harness.Operation> mOperations =
+            new LinkedHashMap<String, Harness.Operation>();
+    private final Map<String, Long> mBytesPerOp = new LinkedHashMap<String, Long>();
+
+    public static void main(String[] args) throws Exception {
+        UpdaterBenchmarks benchmarks = new UpdaterBenchmarks();
+        try {
+            benchmarks.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        System.exit(benchmarks.run() ? 0 : 1);
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+            String value = args[++i];
+            try {
+                if (arg.equals("--fixtures")) {
+                    mFixturesDir = new File(value);
+                } else if (arg.equals("--warmup")) {
+                    mWarmupMillis = Long.parseLong(value);
+                } else if (arg.equals("--rounds")) {
+                    mRounds = Integer.parseInt(value);
+                } else if (arg.equals("--round-ms")) {
+                    mRoundMillis = Long.parseLong(value);
+                } else if (arg.equals("--filter")) {
+                    mFilter = value;
+                } else if (arg.equals("--hash-mb")) {
+                    String[] sizes = value.split(",");
+                    mHashMegabytes = new int[sizes.length];
+                    for (int j = 0; j < sizes.length; j++) {
+                        mHashMegabytes[j] = Integer.parseInt(sizes[j].trim());
+                    }
+                } else if (arg.equals("--save")) {
+                    mSaveFile = new File(value);
+                } else if (arg.equals("--baseline")) {
+                    mBaselineFile = new File(value);
+                } else if (arg.equals("--threshold")) {
+                    mThreshold = Double.parseDouble(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value of " + arg + ": " + value);
+            }
+        }
+    }
+
+    private boolean run() throws Exception {
+        setUp();
+        Map<String, Double> baseline = mBaselineFile != null
+                ? readResults(mBaselineFile) : new LinkedHashMap<String, Double>();
+        Harness harness = new Harness(mWarmupMillis, mRoundMillis, mRounds);
+        List<Harness.Result> results = new ArrayList<Harness.Result>();
+        boolean passed = true;
+
+        PrintStream out = System.out;
+        out.println(String.format(Locale.US, "%-28s %14s %14s %14s %10s %6s %12s %9s",
+                "benchmark", "ns/op", "min", "max", "MB/s", "gc", "B/op", "change"));
+        for (Map.Entry<String, Harness.Operation> entry : mOperations.entrySet()) {
+            String name = entry.getKey();
+            if (mFilter != null && !name.contains(mFilter)) {
+                continue;
+            }
+            Harness.Result result = harness.measure(name, mBytesPerOp.get(name), entry.getValue());
+            results.add(result);
+
+            String throughput = result.bytesPerOp > 0 ? String.format(Locale.US, "%.1f",
+                    result.bytesPerOp * 1000.0 / result.mean()) : "-";
+            String change = "-";
+            Double previous = baseline.get(name);
+            if (previous != null) {
+                double percent = (result.mean() - previous) * 100 / previous;
+                change = String.format(Locale.US, "%+.1f%%", percent);
+                if (percent > mThreshold) {
+                    change += " !";
+                    passed = false;
+                }
+            }
+            String allocated = result.allocatedPerOp >= 0
+                    ? String.format(Locale.US, "%.0f", result.allocatedPerOp) : "-";
+            out.println(String.format(Locale.US, "%-28s %14.1f %14.1f %14.1f %10s %6d %12s %9s",
+                    name, result.mean(), result.min(), result.max(), throughput,
+                    result.gcCount, allocated, change));
+        }
+
+        if (mSaveFile != null) {
+            writeResults(mSaveFile, results);
+        }
+        if (!passed) {
+            out.println(String.format(Locale.US,
+                    "Benchmarks marked ! are more than %.0f%% slower than the baseline",
+                    mThreshold));
+        }
+        return passed;
+    }
+
+    private void setUp() throws IOException {
+        mFixturesDir.mkdirs();
+        Fixtures fixtures = new Fixtures(mFixturesDir, System.getProperty("bench.device", "bench"));
+
+        final byte[] updateList = Fixtures.readFully(fixtures.getUpdateList(BUILDS, DELTAS_PER_BUILD));
+        final String changelog = new String(Fixtures.readFully(
+                fixtures.getChangelog(CHANGELOG_PROJECTS, CHANGELOG_COMMITS)), "UTF-8");
+
+        final List<UpdateInfo> available = parseUpdates(updateList);
+        int lines = 0;
+        for (byte b : updateList) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        System.out.println(String.format(Locale.US, "# update list of %d lines, %d bytes",
+                lines, updateList.length));
+        final byte[] state = StateCodec.encode(available);
+        final File stateFile = new File(mFixturesDir, "exodusupdater.state");
+        stateFile.deleteOnExit();
+
+        final List<String> fileNames = new ArrayList<String>();
+        for (UpdateInfo update : available) {
+            fileNames.add(update.getFileName());
+        }
+        // The most recent downloads, and the installed build among the older ones
+        final Set<String> downloaded = new HashSet<String>();
+        for (int i = 0; i < DOWNLOADED_FILES && i < fileNames.size(); i++) {
+            downloaded.add(fileNames.get(fileNames.size() - 1 - 2 * i));
+        }
+        final String installed = fileNames.get(fileNames.size() / 2);
+
+        add("manifest.parse", updateList.length, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                final long[] count = new long[1];
+                ManifestParser parser = new ManifestParser(new ManifestParser.Listener() {
+                    @Override
+                    public void onBuild(String build, String md5, long date, int apiLevel,
+                            long size) {
+                        count[0] += date;
+                    }
+
+                    @Override
+                    public void onDelta(String fromBuild, String toBuild, String patchFile,
+                            String md5, long size) {
+                        count[0] += size;
+                    }
+
+                    @Override
+                    public void onMalformedLine(String line) {
+                        count[0]--;
+                    }
+                });
+                parser.feed(updateList, 0, updateList.length);
+                parser.finish();
+                return count[0];
+            }
+        });
+        add("manifest.parseToUpdateInfo", updateList.length, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return parseUpdates(updateList).size();
+            }
+        });
+        add("manifest.legacySplit", updateList.length, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return LegacyManifestParser.parse(updateList, "http://localhost/").size();
+            }
+        });
+        add("changelog.toHtml", changelog.length(), new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                StringWriter writer = new StringWriter(changelog.length() * 2);
+                ChangelogFormatter.toHtml(new BufferedReader(new StringReader(changelog)), writer);
+                return writer.getBuffer().length();
+            }
+        });
+        for (int size : STATE_SIZES) {
+            addStateBenchmarks(fixtures, size);
+        }
+        add("state.writeRead", state.length, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                State.writeState(stateFile, available);
+                return State.readState(stateFile).size();
+            }
+        });
+        for (int megabytes : mHashMegabytes) {
+            addHashBenchmarks(fixtures, megabytes);
+        }
+        final byte[] digest = MD5.newDigest().digest(updateList);
+        add("hex.legacy", 0, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return LegacyMD5.toHex(digest).length();
+            }
+        });
+        add("hex.toHex", 0, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return MD5.toHex(digest).length();
+            }
+        });
+        addDownloadBenchmarks();
+        add("updateInfo.extractUiName", 0, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                long length = 0;
+                for (String fileName : fileNames) {
+                    length += UpdateInfo.extractUiName(fileName).length();
+                }
+                return length;
+            }
+        });
+        add("updateList.merge", 0, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return UpdateListMerger.merge(downloaded, available, installed).size();
+            }
+        });
+    }
+
+    /**
+     * The state file codec against the ObjectOutputStream serialization it
+     * replaced, which State still reads to migrate old files.
+     */
+    private void addStateBenchmarks(Fixtures fixtures, int size) throws IOException {
+        final List<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        for (int day = 0; day < size; day++) {
+            String build = fixtures.buildName(day);
+            UpdateInfo ui = new UpdateInfo(build + ".zip", fixtures.buildDate(day), 22,
+                    "http://localhost/" + build + ".zip",
+                    String.format("%032x", day), UpdateInfo.Type.NIGHTLY);
+            ui.setFileSize(300000000L + day);
+            if (day > 0 && day % 2 == 0) {
+                String source = fixtures.buildName(day - 1);
+                ui.setDelta(source + ".zip", "http://localhost/" + source + "-to-" + build
+                        + ".patch", String.format("%032x", -day), 20000000L + day);
+            }
+            updates.add(ui);
+        }
+        final byte[] encoded = StateCodec.encode(updates);
+        final byte[] serialized = serialize(updates);
+        System.out.println(String.format(Locale.US,
+                "# state of %d entries: %d bytes encoded, %d bytes serialized",
+                size, encoded.length, serialized.length));
+
+        add("state.encode." + size, encoded.length, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return StateCodec.encode(updates).length;
+            }
+        });
+        add("state.decode." + size, encoded.length, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return StateCodec.decode(ByteBuffer.wrap(encoded)).size();
+            }
+        });
+        add("state.legacySerialize." + size, serialized.length, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return serialize(updates).length;
+            }
+        });
+        add("state.legacyDeserialize." + size, serialized.length, new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                ObjectInputStream in = new ObjectInputStream(
+                        new ByteArrayInputStream(serialized));
+                try {
+                    return ((List<?>) in.readObject()).size();
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * FileHasher against the stream and BigInteger based MD5 it replaced.
+     */
+    private void addHashBenchmarks(Fixtures fixtures, int megabytes) throws IOException {
+        final File download = fixtures.getDownload(megabytes);
+        add("hash.legacyMd5." + megabytes + "m", download.length(), new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return LegacyMD5.calculateMD5(download).hashCode();
+            }
+        });
+        add("hash.md5." + megabytes + "m", download.length(), new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return MD5.calculateMD5(download).hashCode();
+            }
+        });
+        add("hash.sha256." + megabytes + "m", download.length(), new Harness.Operation() {
+            @Override
+            public long run() throws Exception {
+                return FileHasher.hashHex(download, FileHasher.Algorithm.SHA256).hashCode();
+            }
+        });
+    }
+
+    /**
+     * Downloads split into more and more ranges from a local server that
+     * limits the speed of each connection, like many mirrors do.
+     */
+    private void addDownloadBenchmarks() throws IOException {
+        byte[] content = new byte[DOWNLOAD_MB * 1024 * 1024];
+        new Random(DOWNLOAD_MB).nextBytes(content);
+        HttpDownloaderChecks.FileServer file = new HttpDownloaderChecks.FileServer(content,
+                "\"bench\"");
+        file.delayPerChunkMs = DOWNLOAD_CHUNK_DELAY_MS;
+        final LocalServer server = new LocalServer();
+        server.handle("/download", file);
+        final HttpConnector connector = new HttpConnector("bench", 10000, 10000);
+        final File target = new File(mFixturesDir, "download.partial");
+        final File checkpoint = new File(target.getPath() + ".ckpt");
+        target.deleteOnExit();
+        System.out.println(String.format(Locale.US,
+                "# download of %d MB, each connection throttled to about %d MB/s",
+                DOWNLOAD_MB, 64 / DOWNLOAD_CHUNK_DELAY_MS));
+
+        for (final int segments : DOWNLOAD_SEGMENTS) {
+            add("download.segments." + segments, content.length, new Harness.Operation() {
+                @Override
+                public long run() throws Exception {
+                    target.delete();
+                    checkpoint.delete();
+                    HttpDownloader downloader = new HttpDownloader(connector,
+                            server.url("/download"), target, null,
+                            new HttpDownloader.Listener() {
+                                @Override
+                                public void onProgress(long downloadedBytes, long totalBytes) {
+                                }
+
+                                @Override
+                                public void onFailover(String failedUrl, String nextUrl) {
+                                }
+                            });
+                    downloader.setConnectionCount(segments);
+                    downloader.download();
+                    return target.length();
+                }
+            });
+        }
+    }
+
+    private static byte[] serialize(List<UpdateInfo> updates) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        try {
+            out.writeObject(updates);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void add(String name, long bytesPerOp, Harness.Operation operation) {
+        mOperations.put(name, operation);
+        mBytesPerOp.put(name, bytesPerOp);
+    }
+
+    /**
+     * Build the update list the way UpdateCheckService does, without the
+     * delta patches which need downloaded files to apply to.
+     */
+    private static List<UpdateInfo> parseUpdates(byte[] updateList) throws IOException {
+        final List<UpdateInfo> updates = new ArrayList<UpdateInfo>();
+        ManifestParser parser = new ManifestParser(new ManifestParser.Listener() {
+            @Override
+            public void onBuild(String build, String md5, long date, int apiLevel, long size) {
+                UpdateInfo ui = new UpdateInfo(build + ".zip", date, apiLevel,
+                        "http://localhost/" + build + ".zip", md5, UpdateInfo.Type.NIGHTLY);
+                ui.setFileSize(size);
+                updates.add(ui);
+            }
+
+            @Override
+            public void onDelta(String fromBuild, String toBuild, String patchFile, String md5,
+                    long size) {
+            }
+
+            @Override
+            public void onMalformedLine(String line) {
+            }
+        });
+        parser.feed(updateList, 0, updateList.length);
+        parser.finish();
+        return updates;
+    }
+
+    private static Map<String, Double> readResults(File file) throws IOException {
+        Map<String, Double> results = new LinkedHashMap<String, Double>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length != 2 || fields[0].startsWith("#")) {
+                    continue;
+                }
+                try {
+                    results.put(fields[0], Double.parseDouble(fields[1]));
+                } catch (NumberFormatException e) {
+                    // not a result line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static void writeResults(File file, List<Harness.Result> results)
+            throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("# benchmark ns/op\n");
+            for (Harness.Result result : results) {
+                writer.write(String.format(Locale.US, "%s %.1f\n", result.name, result.mean()));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
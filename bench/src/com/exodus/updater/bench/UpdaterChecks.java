@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.bench;
+
+import com.exodus.updater.utils.MirrorSelectorChecks;
+
+/**
+ * Behaviour checks of the updater code that runs on a plain JVM, against
+ * inline fixtures and local HTTP stand-ins.
+ *
+ * Usage, see bench/run.sh --checks:
+ *   --filter TEXT       only run the checks whose name contains TEXT
+ */
+public class UpdaterChecks {
+    public static void main(String[] args) throws Exception {
+        String filter = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--filter") && i + 1 < args.length) {
+                filter = args[++i];
+            } else {
+                System.err.println("Unknown argument " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        CheckRunner runner = new CheckRunner();
+        ManifestParserChecks.register(runner);
+        StateChecks.register(runner);
+        BuildListParserChecks.register(runner);
+        FetchPoolChecks.register(runner);
+        ChangelogBundleChecks.register(runner);
+        HttpDownloaderChecks.register(runner);
+        MirrorSelectorChecks.register(runner);
+        CheckSchedulePolicyChecks.register(runner);
+        CheckCoordinatorChecks.register(runner);
+        System.exit(runner.run(filter, System.out) == 0 ? 0 : 1);
+    }
+}
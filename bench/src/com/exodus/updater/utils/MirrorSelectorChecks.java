@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.content.SharedPreferences;
+
+import com.exodus.updater.bench.CheckRunner;
+import com.exodus.updater.bench.LocalServer;
+import com.exodus.updater.misc.Constants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static com.exodus.updater.bench.CheckRunner.expect;
+import static com.exodus.updater.bench.CheckRunner.expectEquals;
+
+/**
+ * Checks of the mirror ranking against local servers of different speed.
+ * Lives in the package of MirrorSelector to reach its constructor.
+ */
+public class MirrorSelectorChecks {
+    private static final String PROBE_FILE = "exodus_update_list";
+
+    /**
+     * Preferences kept in memory, applied right away.
+     */
+    static class MapPreferences implements SharedPreferences {
+        final HashMap<String, Object> values = new HashMap<String, Object>();
+
+        @Override
+        public String getString(String key, String defValue) {
+            Object value = values.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            Object value = values.get(key);
+            return value != null ? (Long) value : defValue;
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public void apply() {
+                }
+            };
+        }
+    }
+
+    /**
+     * Wall clock that is set by hand. Durations are measured for real.
+     */
+    static class ManualClock implements CheckSchedulePolicy.Clock {
+        volatile long now = 1000000;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return CheckSchedulePolicy.SYSTEM_CLOCK.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Mirrors at /fast/, /slow/ and /broken/ of one server. The broken one
+     * has no update list.
+     */
+    private static LocalServer startMirrors() throws IOException {
+        LocalServer server = new LocalServer();
+        server.handle("/fast/", probeHandler(0, 200));
+        server.handle("/slow/", probeHandler(200, 200));
+        server.handle("/broken/", probeHandler(0, 404));
+        return server;
+    }
+
+    private static HttpHandler probeHandler(final long delay, final int status) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LocalServer.sleep(delay);
+                LocalServer.respond(exchange, status, new byte[0]);
+            }
+        };
+    }
+
+    private static MirrorSelector selector(List<String> urls, CheckSchedulePolicy.Clock clock,
+            SharedPreferences prefs) {
+        return new MirrorSelector(urls, new HttpConnector("check", 2000, 2000), PROBE_FILE,
+                2000, 60000, clock, prefs);
+    }
+
+    public static void register(CheckRunner runner) {
+        runner.add("mirrors.noMirrorsFallBackToPrimary", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                MirrorSelector selector = selector(Collections.<String>emptyList(),
+                        CheckSchedulePolicy.SYSTEM_CLOCK, null);
+                expectEquals("", selector.getBestUrl(), "best url without any");
+                expectEquals(Collections.emptyList(), selector.getUrls(), "urls");
+                selector.refreshIfStale();
+                selector.probe();
+
+                selector = selector(Arrays.asList("", "", ""),
+                        CheckSchedulePolicy.SYSTEM_CLOCK, null);
+                expectEquals("", selector.getBestUrl(), "best url of empty urls");
+                expectEquals(Collections.emptyList(),
+                        selector.getAlternateUrls("http://example.com/file.zip"), "alternates");
+            }
+        });
+        runner.add("mirrors.configuredOrderUntilProbed", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                List<String> urls = Arrays.asList("http://a/", "http://b/", "http://c/");
+                MirrorSelector selector = selector(urls, CheckSchedulePolicy.SYSTEM_CLOCK,
+                        new MapPreferences());
+                expectEquals(urls, selector.getUrls(), "urls");
+                expectEquals("http://a/", selector.getBestUrl(), "best url");
+                expectEquals(Arrays.asList("http://a/builds/x.zip", "http://c/builds/x.zip"),
+                        selector.getAlternateUrls("http://b/builds/x.zip"), "alternates");
+                expectEquals(Collections.emptyList(),
+                        selector.getAlternateUrls("http://d/builds/x.zip"), "unknown url");
+            }
+        });
+        runner.add("mirrors.probeRanksByLatency", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = startMirrors();
+                try {
+                    String broken = server.url("/broken/");
+                    String slow = server.url("/slow/");
+                    String fast = server.url("/fast/");
+                    MapPreferences prefs = new MapPreferences();
+                    MirrorSelector selector = selector(Arrays.asList(broken, slow, fast),
+                            CheckSchedulePolicy.SYSTEM_CLOCK, prefs);
+                    selector.probe();
+                    expectEquals(Arrays.asList(fast, slow, broken), selector.getUrls(),
+                            "ranking after the probe");
+                    expectEquals(fast, selector.getBestUrl(), "best url");
+                    expectEquals(3, server.getRequestCount(), "probes");
+                    expect(prefs.getString(Constants.MIRROR_RANKING, null) != null,
+                            "ranking saved");
+
+                    // a failing mirror goes behind the working ones
+                    selector.reportFailure(fast + "builds/x.zip");
+                    expectEquals(Arrays.asList(slow, fast, broken), selector.getUrls(),
+                            "ranking after a failure");
+                    expectEquals(Arrays.asList(fast + "x.zip", broken + "x.zip"),
+                            selector.getAlternateUrls(slow + "x.zip"), "alternates");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("mirrors.probeIgnoresWallClock", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = startMirrors();
+                try {
+                    // the time is set back an hour whenever it is read
+                    ManualClock clock = new ManualClock() {
+                        @Override
+                        public long currentTimeMillis() {
+                            now -= 3600000;
+                            return now;
+                        }
+                    };
+                    String slow = server.url("/slow/");
+                    String fast = server.url("/fast/");
+                    MirrorSelector selector = selector(Arrays.asList(slow, fast), clock,
+                            new MapPreferences());
+                    selector.probe();
+                    expectEquals(Arrays.asList(fast, slow), selector.getUrls(),
+                            "ranking while the time is set");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("mirrors.throughputWeighsIn", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                // near but slow against far but fast
+                MapPreferences prefs = new MapPreferences();
+                prefs.values.put(Constants.MIRROR_RANKING,
+                        "http://near/ 20 102400\nhttp://far/ 200 10485760\n");
+                prefs.values.put(Constants.MIRROR_RANKING_TIME, 1000L);
+                MirrorSelector selector = selector(Arrays.asList("http://far/", "http://near/"),
+                        CheckSchedulePolicy.SYSTEM_CLOCK, prefs);
+                expectEquals(Arrays.asList("http://near/", "http://far/"), selector.getUrls(),
+                        "restored ranking");
+
+                // 20 ms + 1 MB at 100 kB/s loses against 200 ms + 1 MB at 10 MB/s
+                selector.reportThroughput("http://near/builds/x.zip", 102400);
+                expectEquals(Arrays.asList("http://far/", "http://near/"), selector.getUrls(),
+                        "ranking by score");
+
+                // the far mirror slows down, averaged in with its earlier speed
+                for (int i = 0; i < 10; i++) {
+                    selector.reportThroughput("http://far/builds/x.zip", 10240);
+                }
+                expectEquals(Arrays.asList("http://near/", "http://far/"), selector.getUrls(),
+                        "ranking after the far mirror slowed down");
+                selector.reportThroughput("http://unknown/x.zip", 1);
+                selector.reportThroughput("http://near/x.zip", 0);
+                expectEquals(Arrays.asList("http://near/", "http://far/"), selector.getUrls(),
+                        "ranking after unusable reports");
+            }
+        });
+        runner.add("mirrors.rankingRestored", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = startMirrors();
+                try {
+                    String broken = server.url("/broken/");
+                    String slow = server.url("/slow/");
+                    String fast = server.url("/fast/");
+                    MapPreferences prefs = new MapPreferences();
+                    selector(Arrays.asList(broken, slow, fast),
+                            CheckSchedulePolicy.SYSTEM_CLOCK, prefs).probe();
+
+                    // an added mirror goes after the ranked ones, a removed one is dropped
+                    String added = server.url("/added/");
+                    MirrorSelector selector = selector(Arrays.asList(added, broken, fast),
+                            CheckSchedulePolicy.SYSTEM_CLOCK, prefs);
+                    expectEquals(Arrays.asList(fast, broken, added), selector.getUrls(),
+                            "restored ranking");
+
+                    // a garbled ranking leaves the configured order
+                    prefs.values.put(Constants.MIRROR_RANKING, fast + " x y\n\nnonsense\n");
+                    selector = selector(Arrays.asList(slow, fast),
+                            CheckSchedulePolicy.SYSTEM_CLOCK, prefs);
+                    expectEquals(Arrays.asList(slow, fast), selector.getUrls(),
+                            "garbled ranking");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+        runner.add("mirrors.refreshOnlyWhenStale", new CheckRunner.Check() {
+            @Override
+            public void run() throws Exception {
+                LocalServer server = startMirrors();
+                try {
+                    ManualClock clock = new ManualClock();
+                    MapPreferences prefs = new MapPreferences();
+                    List<String> urls = Arrays.asList(server.url("/fast/"),
+                            server.url("/broken/"));
+                    MirrorSelector selector = selector(urls, clock, prefs);
+                    selector.refreshIfStale();
+                    expectEquals(2, server.getRequestCount(), "probes of a new selector");
+
+                    clock.now += 59000;
+                    selector.refreshIfStale();
+                    // a restarted process keeps the saved ranking as well
+                    selector(urls, clock, prefs).refreshIfStale();
+                    expectEquals(2, server.getRequestCount(), "probes within the ttl");
+
+                    clock.now += 1000;
+                    selector.refreshIfStale();
+                    expectEquals(4, server.getRequestCount(), "probes after the ttl");
+
+                    // a clock set back does not keep an old ranking forever
+                    clock.now -= 3600000;
+                    selector.refreshIfStale();
+                    expectEquals(6, server.getRequestCount(), "probes after the clock went back");
+
+                    server.resetCounts();
+                    selector(Arrays.asList(server.url("/fast/")), clock, null).refreshIfStale();
+                    expectEquals(0, server.getRequestCount(), "probes of a single mirror");
+                } finally {
+                    server.stop();
+                }
+            }
+        });
+    }
+}
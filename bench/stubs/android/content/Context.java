@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.content;
+
+import android.content.res.Resources;
+
+import java.io.File;
+
+/**
+ * Benchmark stand-in, only what the benchmarked code compiles against.
+ */
+public abstract class Context {
+    public abstract File getCacheDir();
+
+    public abstract Resources getResources();
+}
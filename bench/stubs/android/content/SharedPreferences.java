@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.content;
+
+/**
+ * Benchmark stand-in, only what the benchmarked code compiles against.
+ */
+public interface SharedPreferences {
+    interface Editor {
+        Editor putString(String key, String value);
+
+        Editor putLong(String key, long value);
+
+        void apply();
+    }
+
+    String getString(String key, String defValue);
+
+    long getLong(String key, long defValue);
+
+    Editor edit();
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.content.res;
+
+/**
+ * Benchmark stand-in, only what the benchmarked code compiles against.
+ */
+public abstract class Resources {
+    public abstract int getInteger(int id);
+
+    public abstract String getString(int id);
+
+    public abstract String[] getStringArray(int id);
+}
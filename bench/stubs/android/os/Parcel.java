@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+/**
+ * Benchmark stand-in. Nothing is parceled on the JVM.
+ */
+public final class Parcel {
+    public void writeString(String val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeInt(int val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeLong(long val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public String readString() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int readInt() {
+        throw new UnsupportedOperationException();
+    }
+
+    public long readLong() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+/**
+ * Benchmark stand-in, only what the benchmarked code compiles against.
+ */
+public interface Parcelable {
+    interface Creator<T> {
+        T createFromParcel(Parcel source);
+
+        T[] newArray(int size);
+    }
+
+    int describeContents();
+
+    void writeToParcel(Parcel dest, int flags);
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+/**
+ * Benchmark stand-in, counts from an arbitrary point like the framework
+ * class counts from boot.
+ */
+public final class SystemClock {
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.preference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Benchmark stand-in. Code under check gets its preferences handed in
+ * instead.
+ */
+public final class PreferenceManager {
+    public static SharedPreferences getDefaultSharedPreferences(Context context) {
+        throw new UnsupportedOperationException("No default preferences in the bench");
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark stand-in for the framework's pull parser, strict JSON only.
+ * Like the framework class it throws IllegalStateException for a token of
+ * the wrong type, NumberFormatException for a value that is no number and
+ * IOException for malformed input.
+ */
+public final class JsonReader implements Closeable {
+    private enum Scope {
+        EMPTY_DOCUMENT, NONEMPTY_DOCUMENT, EMPTY_ARRAY, NONEMPTY_ARRAY,
+        EMPTY_OBJECT, NONEMPTY_OBJECT, DANGLING_NAME
+    }
+
+    private final Reader mIn;
+    private final List<Scope> mStack = new ArrayList<Scope>();
+    private int mPushedBack = -2;
+
+    private JsonToken mToken;
+    private String mValue;
+
+    public JsonReader(Reader in) {
+        mIn = in;
+        mStack.add(Scope.EMPTY_DOCUMENT);
+    }
+
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+        mStack.add(Scope.EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+        mStack.remove(mStack.size() - 1);
+    }
+
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+        mStack.add(Scope.EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+        mStack.remove(mStack.size() - 1);
+    }
+
+    public boolean hasNext() throws IOException {
+        JsonToken token = peek();
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY
+                && token != JsonToken.END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException {
+        expect(JsonToken.NAME);
+        return mValue;
+    }
+
+    public String nextString() throws IOException {
+        JsonToken token = peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new IllegalStateException("Expected a string but was " + token);
+        }
+        mToken = null;
+        return mValue;
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(JsonToken.BOOLEAN);
+        return mValue.equals("true");
+    }
+
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+    }
+
+    public long nextLong() throws IOException {
+        return Long.parseLong(nextString());
+    }
+
+    public int nextInt() throws IOException {
+        return Integer.parseInt(nextString());
+    }
+
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            JsonToken token = peek();
+            if (token == JsonToken.BEGIN_ARRAY) {
+                beginArray();
+                depth++;
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                beginObject();
+                depth++;
+            } else if (token == JsonToken.END_ARRAY) {
+                endArray();
+                depth--;
+            } else if (token == JsonToken.END_OBJECT) {
+                endObject();
+                depth--;
+            } else if (token == JsonToken.END_DOCUMENT) {
+                throw new IllegalStateException("No value to skip");
+            } else {
+                mToken = null;
+            }
+        } while (depth > 0);
+    }
+
+    public JsonToken peek() throws IOException {
+        if (mToken != null) {
+            return mToken;
+        }
+
+        int top = mStack.size() - 1;
+        switch (mStack.get(top)) {
+            case EMPTY_DOCUMENT:
+                mStack.set(top, Scope.NONEMPTY_DOCUMENT);
+                return readValue(nextNonWhitespace());
+            case NONEMPTY_DOCUMENT:
+                int c = nextNonWhitespace();
+                if (c != -1) {
+                    throw new IOException("Trailing data after the document");
+                }
+                return mToken = JsonToken.END_DOCUMENT;
+            case EMPTY_ARRAY:
+                mStack.set(top, Scope.NONEMPTY_ARRAY);
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return mToken = JsonToken.END_ARRAY;
+                }
+                return readValue(c);
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return mToken = JsonToken.END_ARRAY;
+                } else if (c != ',') {
+                    throw syntaxError("Unterminated array");
+                }
+                return readValue(nextNonWhitespace());
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return mToken = JsonToken.END_OBJECT;
+                }
+                if (mStack.get(top) == Scope.NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("Unterminated object");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected a name");
+                }
+                mStack.set(top, Scope.DANGLING_NAME);
+                mValue = readString();
+                return mToken = JsonToken.NAME;
+            case DANGLING_NAME:
+                mStack.set(top, Scope.NONEMPTY_OBJECT);
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+                return readValue(nextNonWhitespace());
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        JsonToken token = peek();
+        if (token != expected) {
+            throw new IllegalStateException("Expected " + expected + " but was " + token);
+        }
+        mToken = null;
+    }
+
+    private JsonToken readValue(int c) throws IOException {
+        switch (c) {
+            case '{':
+                return mToken = JsonToken.BEGIN_OBJECT;
+            case '[':
+                return mToken = JsonToken.BEGIN_ARRAY;
+            case '"':
+                mValue = readString();
+                return mToken = JsonToken.STRING;
+            case -1:
+                throw new EOFException("End of input");
+        }
+
+        StringBuilder literal = new StringBuilder();
+        while (c != -1 && c != ',' && c != '}' && c != ']' && c != ':'
+                && !Character.isWhitespace(c)) {
+            literal.append((char) c);
+            c = read();
+        }
+        mPushedBack = c;
+        mValue = literal.toString();
+        if (mValue.equals("null")) {
+            return mToken = JsonToken.NULL;
+        } else if (mValue.equals("true") || mValue.equals("false")) {
+            return mToken = JsonToken.BOOLEAN;
+        } else if (mValue.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][-+]?[0-9]+)?")) {
+            return mToken = JsonToken.NUMBER;
+        }
+        throw syntaxError("Unexpected value " + mValue);
+    }
+
+    private String readString() throws IOException {
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw new EOFException("Unterminated string");
+            } else if (c == '"') {
+                return value.toString();
+            } else if (c != '\\') {
+                value.append((char) c);
+                continue;
+            }
+
+            c = read();
+            switch (c) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < hex.length; i++) {
+                        int h = read();
+                        if (h == -1) {
+                            throw new EOFException("Unterminated escape");
+                        }
+                        hex[i] = (char) h;
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(new String(hex), 16));
+                    } catch (NumberFormatException e) {
+                        throw syntaxError("Invalid escape \\u" + new String(hex));
+                    }
+                    break;
+                case -1:
+                    throw new EOFException("Unterminated escape");
+                default:
+                    value.append((char) c);
+                    break;
+            }
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (mPushedBack != -2) {
+            int c = mPushedBack;
+            mPushedBack = -2;
+            return c;
+        }
+        return mIn.read();
+    }
+
+    private static IOException syntaxError(String message) {
+        return new IOException(message);
+    }
+}
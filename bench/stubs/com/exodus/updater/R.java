@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater;
+
+/**
+ * Benchmark stand-in for the generated resource ids the checked code
+ * refers to.
+ */
+public final class R {
+    public static final class array {
+        public static final int conf_update_mirror_urls = 0x7f090000;
+    }
+
+    public static final class integer {
+        public static final int conf_http_connect_timeout_ms = 0x7f0a0000;
+        public static final int conf_http_read_timeout_ms = 0x7f0a0001;
+        public static final int conf_http_max_idle_connections = 0x7f0a0002;
+        public static final int conf_mirror_probe_timeout_ms = 0x7f0a0003;
+        public static final int conf_mirror_ranking_ttl_minutes = 0x7f0a0004;
+    }
+
+    public static final class string {
+        public static final int conf_update_server_url = 0x7f0b0000;
+        public static final int conf_update_filename = 0x7f0b0001;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.content.Context;
+
+/**
+ * Benchmark stand-in for the build properties UpdateInfo reads and the user
+ * agent HttpConnector sends. The real class needs most of the framework.
+ * The values can be set with the bench.device, bench.version, bench.api,
+ * bench.date and bench.userAgent system properties.
+ */
+public class Utils {
+    public static String getDeviceType() {
+        return System.getProperty("bench.device", "bench");
+    }
+
+    public static String getInstalledVersion() {
+        return System.getProperty("bench.version", "5.1-20150601-NIGHTLY-bench");
+    }
+
+    public static int getInstalledApiLevel() {
+        return Integer.getInteger("bench.api", 22);
+    }
+
+    public static long getInstalledBuildDate() {
+        return Long.getLong("bench.date", 1433116800L);
+    }
+
+    public static String getUserAgentString(Context context) {
+        return System.getProperty("bench.userAgent", "com.exodus.updater/bench");
+    }
+}
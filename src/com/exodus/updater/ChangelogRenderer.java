@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater;
+
+import android.text.Html;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns a cached change log into styled rows for a list view. The cached
+ * HTML only uses bold, underline and line breaks, so each line becomes one
+ * row and no WebView is needed to show it.
+ */
+public class ChangelogRenderer {
+    private static final String LINE_BREAK = "<br />";
+
+    private ChangelogRenderer() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Split the change log into rows. This is meant to run off the main
+     * thread.
+     */
+    public static List<CharSequence> parse(String html) {
+        ArrayList<CharSequence> rows = new ArrayList<CharSequence>();
+        int start = 0;
+        while (start < html.length()) {
+            int end = html.indexOf(LINE_BREAK, start);
+            if (end < 0) {
+                end = html.length();
+            }
+            if (end > start) {
+                rows.add(Html.fromHtml(html.substring(start, end)));
+            }
+            start = end + LINE_BREAK.length();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater;
+
+import android.app.ActionBar;
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Environment;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.exodus.updater.utils.UpdateMetrics;
+import com.exodus.updater.utils.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Shows the update check and download metrics, see {@link UpdateMetrics},
+ * and saves them to a file that can be attached to bug reports.
+ */
+public class DiagnosticsActivity extends Activity {
+    private static final String TAG = "DiagnosticsActivity";
+
+    private static final int MENU_EXPORT = 0;
+    private static final int MENU_CLEAR = 1;
+
+    private UpdateMetrics mMetrics;
+    private TextView mReportView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+        mReportView = (TextView) findViewById(R.id.diagnostics_report);
+        mMetrics = UpdateMetrics.getInstance(this);
+
+        final ActionBar bar = getActionBar();
+        if (bar != null) {
+            bar.setDisplayHomeAsUpEnabled(true);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        String report = mMetrics.getReport();
+        mReportView.setText(report.isEmpty() ? getString(R.string.diagnostics_empty) : report);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(0, MENU_EXPORT, 0, R.string.diagnostics_export)
+                .setShowAsActionFlags(MenuItem.SHOW_AS_ACTION_IF_ROOM);
+        menu.add(0, MENU_CLEAR, 0, R.string.diagnostics_clear)
+                .setShowAsActionFlags(MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case MENU_EXPORT:
+                export();
+                return true;
+
+            case MENU_CLEAR:
+                mMetrics.clear();
+                mReportView.setText(R.string.diagnostics_empty);
+                return true;
+
+            case android.R.id.home:
+                onBackPressed();
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Save the report along with the device and build to the downloads
+     * folder.
+     */
+    private void export() {
+        Date now = new Date();
+        final String text = getString(R.string.sysinfo_device) + " " + Utils.getDeviceType()
+                + "\n" + getString(R.string.sysinfo_running) + " " + Utils.getInstalledVersion()
+                + "\n" + now + "\n\n" + mMetrics.getReport();
+        File directory = Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DOWNLOADS);
+        final File file = new File(directory, "exodusupdater-metrics-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(now) + ".txt");
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean saved = false;
+                FileOutputStream fos = null;
+                try {
+                    file.getParentFile().mkdirs();
+                    fos = new FileOutputStream(file);
+                    fos.write(text.getBytes("UTF-8"));
+                    saved = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to export metrics to " + file, e);
+                } finally {
+                    if (fos != null) {
+                        try {
+                            fos.close();
+                        } catch (IOException e) {
+                            // ignore, not much we can do anyway
+                        }
+                    }
+                }
+
+                final boolean success = saved;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DiagnosticsActivity.this, success
+                                ? getString(R.string.diagnostics_exported, file.getPath())
+                                : getString(R.string.diagnostics_export_failed),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }).start();
+    }
+}
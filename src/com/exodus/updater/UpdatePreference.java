@@ -12,24 +12,37 @@ package com.exodus.updater;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.net.Uri;
 import android.preference.Preference;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.preference.PreferenceActivity;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.View.OnLongClickListener;
+import android.view.ViewStub;
 import android.webkit.WebView;
+import android.widget.ArrayAdapter;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.exodus.updater.misc.UpdateInfo;
+import com.exodus.updater.utils.ChangelogStore;
+import com.exodus.updater.utils.UpdateMetrics;
+import com.exodus.updater.utils.Utils;
 
-import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 public class UpdatePreference extends Preference implements OnClickListener, OnLongClickListener {
+    private static final String TAG = "UpdatePreference";
+
     private static final float DISABLED_ALPHA = 0.4f;
     public static final int STYLE_OLD = 1;
     public static final int STYLE_NEW = 2;
@@ -37,6 +50,9 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
     public static final int STYLE_DOWNLOADED = 4;
     public static final int STYLE_INSTALLED = 5;
 
+    // Resolution of the progress bar, byte counts may exceed the int range
+    private static final int PROGRESS_MAX = 10000;
+
     public interface OnActionListener {
         void onStartDownload(UpdatePreference pref);
         void onStopDownload(UpdatePreference pref);
@@ -59,6 +75,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
     private TextView mSummaryText;
     private View mUpdatesPref;
     private ProgressBar mProgressBar;
+    private TextView mProgressText;
 
     private OnClickListener mButtonClickListener = new OnClickListener() {
         @Override
@@ -100,6 +117,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
         mTitleText = (TextView)view.findViewById(android.R.id.title);
         mSummaryText = (TextView)view.findViewById(android.R.id.summary);
         mProgressBar = (ProgressBar)view.findViewById(R.id.download_progress_bar);
+        mProgressText = (TextView)view.findViewById(R.id.download_progress_text);
 
         mUpdatesPref = view.findViewById(R.id.updates_pref);
         mUpdatesPref.setOnClickListener(this);
@@ -134,42 +152,116 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
     @Override
     public void onClick(View v) {
         final Context context = getContext();
-        final File changeLog = mUpdateInfo.getChangeLogFile(context);
+        final ChangelogStore store = ChangelogStore.getInstance(context);
+        final UpdateInfo ui = mUpdateInfo;
 
-        if (!changeLog.exists()) {
-            // Change log could not be fetched
-            Toast.makeText(context, R.string.failed_to_load_changelog, Toast.LENGTH_SHORT).show();
-        } else if (changeLog.length() == 0) {
+        if (store.isEmpty(ui.getFileName())) {
             // Change log is empty
             Toast.makeText(context, R.string.no_changelog_alert, Toast.LENGTH_SHORT).show();
-        } else {
-            // Prepare the dialog box content
-            final LayoutInflater inflater = LayoutInflater.from(context);
-            final View view = inflater.inflate(R.layout.change_log_dialog, null);
-            final View progressContainer = view.findViewById(R.id.progress);
-            final NotifyingWebView changeLogView =
-                    (NotifyingWebView) view.findViewById(R.id.changelog);
+            return;
+        }
 
+        final long start = SystemClock.elapsedRealtime();
+        final boolean useWebView = context.getResources().getBoolean(R.bool.conf_changelog_webview);
+        final String metric = useWebView
+                ? UpdateMetrics.CHANGELOG_WEBVIEW_MS : UpdateMetrics.CHANGELOG_NATIVE_MS;
+
+        // Prepare the dialog box content
+        final LayoutInflater inflater = LayoutInflater.from(context);
+        final View view = inflater.inflate(R.layout.change_log_dialog, null);
+        final View progressContainer = view.findViewById(R.id.progress);
+        final ListView changeLogList = (ListView) view.findViewById(R.id.changelog_list);
+        final NotifyingWebView changeLogView;
+
+        if (useWebView) {
+            ViewStub stub = (ViewStub) view.findViewById(R.id.changelog_stub);
+            changeLogView = (NotifyingWebView) stub.inflate();
             changeLogView.setOnInitialContentReadyListener(
                     new NotifyingWebView.OnInitialContentReadyListener() {
                 @Override
                 public void onInitialContentReady(WebView webView) {
                     progressContainer.setVisibility(View.GONE);
                     changeLogView.setVisibility(View.VISIBLE);
+                    UpdateMetrics.getInstance(context).record(metric,
+                            SystemClock.elapsedRealtime() - start);
                 }
             });
             changeLogView.getSettings().setTextZoom(80);
             changeLogView.setBackgroundColor(
                     context.getResources().getColor(android.R.color.darker_gray));
-            changeLogView.loadUrl(Uri.fromFile(changeLog).toString());
-
-            // Prepare the dialog box
-            new AlertDialog.Builder(context)
-                    .setTitle(R.string.changelog_dialog_title)
-                    .setView(view)
-                    .setPositiveButton(R.string.dialog_close, null)
-                    .show();
+        } else {
+            changeLogView = null;
         }
+
+        // Prepare the dialog box
+        final AlertDialog dialog = new AlertDialog.Builder(context)
+                .setTitle(R.string.changelog_dialog_title)
+                .setView(view)
+                .setPositiveButton(R.string.dialog_close, null)
+                .show();
+
+        // Fetch the change log if needed, decompress and parse it while the
+        // dialog shows its loading state
+        final CancellationSignal cancelSignal = new CancellationSignal();
+        final Thread loadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String html = null;
+                if (store.contains(ui.getFileName()) || Utils.DownloadChangelog(ui, context, cancelSignal)) {
+                    try {
+                        html = store.read(ui.getFileName());
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to read change log of " + ui.getFileName(), e);
+                    }
+                }
+
+                final String result = html;
+                final List<CharSequence> rows = result != null && !useWebView
+                        ? ChangelogRenderer.parse(result) : null;
+                view.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!dialog.isShowing()) {
+                            return;
+                        }
+                        if (result == null) {
+                            // Change log could not be fetched
+                            dialog.dismiss();
+                            Toast.makeText(context, R.string.failed_to_load_changelog,
+                                    Toast.LENGTH_SHORT).show();
+                        } else if (result.isEmpty()) {
+                            dialog.dismiss();
+                            Toast.makeText(context, R.string.no_changelog_alert,
+                                    Toast.LENGTH_SHORT).show();
+                        } else if (useWebView) {
+                            changeLogView.loadDataWithBaseURL(null, result, "text/html",
+                                    "UTF-8", null);
+                        } else {
+                            changeLogList.setAdapter(new ArrayAdapter<CharSequence>(context,
+                                    R.layout.change_log_item, rows));
+                            progressContainer.setVisibility(View.GONE);
+                            changeLogList.setVisibility(View.VISIBLE);
+                            changeLogList.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    UpdateMetrics.getInstance(context).record(metric,
+                                            SystemClock.elapsedRealtime() - start);
+                                }
+                            });
+                        }
+                    }
+                });
+            }
+        }, "ChangelogLoad");
+        dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface d) {
+                // closes the connection and drops a partially fetched change log
+                cancelSignal.cancel();
+                loadThread.interrupt();
+            }
+        });
+        loadThread.start();
     }
 
     private void confirmDelete() {
@@ -216,6 +308,9 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
     }
 
     public void setStyle(int style) {
+        if (mStyle == style) {
+            return;
+        }
         mStyle = style;
         if (mUpdatesPref != null) {
             showStyle();
@@ -234,6 +329,40 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
         mProgressBar.setProgress(progress);
     }
 
+    /**
+     * Show download progress. Sizes, rate and remaining time may be -1 if
+     * they are not known.
+     */
+    public void setProgress(long downloadedBytes, long totalBytes, long bytesPerSecond,
+            long etaMillis) {
+        if (mStyle != STYLE_DOWNLOADING || mProgressBar == null) {
+            return;
+        }
+
+        final Context context = getContext();
+        if (totalBytes <= 0 || downloadedBytes < 0) {
+            mProgressBar.setIndeterminate(true);
+            mProgressText.setVisibility(View.GONE);
+            return;
+        }
+
+        mProgressBar.setIndeterminate(false);
+        mProgressBar.setMax(PROGRESS_MAX);
+        mProgressBar.setProgress((int) (downloadedBytes * PROGRESS_MAX / totalBytes));
+
+        String downloaded = Formatter.formatShortFileSize(context, downloadedBytes);
+        String total = Formatter.formatShortFileSize(context, totalBytes);
+        if (bytesPerSecond > 0 && etaMillis >= 0) {
+            mProgressText.setText(context.getString(R.string.download_progress_rate,
+                    downloaded, total, Formatter.formatShortFileSize(context, bytesPerSecond),
+                    DateUtils.formatElapsedTime(etaMillis / 1000)));
+        } else {
+            mProgressText.setText(context.getString(R.string.download_progress_size,
+                    downloaded, total));
+        }
+        mProgressText.setVisibility(View.VISIBLE);
+    }
+
     public ProgressBar getProgressBar() {
         return mProgressBar;
     }
@@ -246,6 +375,16 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
         return mUpdateInfo;
     }
 
+    public void setUpdateInfo(UpdateInfo ui) {
+        if (ui.equals(mUpdateInfo)) {
+            return;
+        }
+        mUpdateInfo = ui;
+        if (mTitleText != null) {
+            mTitleText.setText(mUpdateInfo.getName());
+        }
+    }
+
     private void disablePreferenceViews() {
         if (mUpdatesButton != null) {
             mUpdatesButton.setEnabled(false);
@@ -287,6 +426,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
                 mSummaryText.setText(R.string.downloaded_update_summary);
                 mSummaryText.setVisibility(View.VISIBLE);
                 mProgressBar.setVisibility(View.GONE);
+                mProgressText.setVisibility(View.GONE);
                 break;
 
             case STYLE_DOWNLOADING:
@@ -294,6 +434,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
                 mUpdatesButton.setImageResource(R.drawable.ic_tab_cancel);
                 mUpdatesButton.setEnabled(true);
                 mProgressBar.setVisibility(View.VISIBLE);
+                mProgressBar.setIndeterminate(true);
                 mSummaryText.setVisibility(View.GONE);
                 break;
 
@@ -304,6 +445,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
                 mSummaryText.setText(R.string.installed_update_summary);
                 mSummaryText.setVisibility(View.VISIBLE);
                 mProgressBar.setVisibility(View.GONE);
+                mProgressText.setVisibility(View.GONE);
                 break;
 
             case STYLE_OLD:
@@ -313,6 +455,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
                 mSummaryText.setText(R.string.old_update_summary);
                 mSummaryText.setVisibility(View.VISIBLE);
                 mProgressBar.setVisibility(View.GONE);
+                mProgressText.setVisibility(View.GONE);
                 break;
 
             case STYLE_NEW:
@@ -323,6 +466,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
                 mSummaryText.setText(R.string.new_update_summary);
                 mSummaryText.setVisibility(View.VISIBLE);
                 mProgressBar.setVisibility(View.GONE);
+                mProgressText.setVisibility(View.GONE);
                 break;
         }
     }
@@ -37,29 +37,36 @@ import android.text.format.DateFormat;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.exodus.updater.misc.Constants;
 import com.exodus.updater.misc.State;
 import com.exodus.updater.misc.UpdateInfo;
+import com.exodus.updater.misc.UpdateListMerger;
 import com.exodus.updater.receiver.DownloadReceiver;
+import com.exodus.updater.service.DownloadService;
+import com.exodus.updater.service.UpdateCheckJobService;
 import com.exodus.updater.service.UpdateCheckService;
+import com.exodus.updater.utils.DeltaPatcher;
+import com.exodus.updater.utils.DownloadProgressObserver;
 import com.exodus.updater.utils.UpdateFilter;
 import com.exodus.updater.utils.Utils;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
-
-import static com.exodus.updater.misc.Reversed.reversed;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class UpdatesSettings extends PreferenceActivity implements
-        OnPreferenceChangeListener, UpdatePreference.OnReadyListener, UpdatePreference.OnActionListener, PreferenceManager.OnPreferenceTreeClickListener {
+        OnPreferenceChangeListener, UpdatePreference.OnReadyListener, UpdatePreference.OnActionListener, PreferenceManager.OnPreferenceTreeClickListener,
+        State.OnStateChangedListener, DownloadProgressObserver.OnProgressListener {
     private static String TAG = "UpdatesSettings";
 
     // intent extras
@@ -74,11 +81,15 @@ public class UpdatesSettings extends PreferenceActivity implements
     private static final int MENU_DELETE_ALL = 1;
     private static final int MENU_SYSTEM_INFO = 2;
     private static final int MENU_GAPPS_LINK = 3;
+    private static final int MENU_DIAGNOSTICS = 4;
 
     private static boolean isMLatestListRemoved = false;
     private SharedPreferences mPrefs;
     private CheckBoxPreference mBackupRom;
     private ListPreference mUpdateCheck;
+    private CheckBoxPreference mCheckUnmeteredOnly;
+    private CheckBoxPreference mCheckWhileCharging;
+    private ListPreference mDownloadConnections;
     // private ListPreference mUpdateType;
 
     private PreferenceCategory mLatestList;
@@ -97,6 +108,16 @@ public class UpdatesSettings extends PreferenceActivity implements
     private int selected = -1;
 
     private Handler mUpdateHandler = new Handler();
+    private DownloadProgressObserver mProgressObserver;
+
+    // The update list is built on a background thread, newer requests supersede older ones
+    private final ExecutorService mLayoutExecutor = Executors.newSingleThreadExecutor();
+    private Future<?> mLayoutFuture;
+    private int mLayoutGeneration = 0;
+    private LinkedList<UpdateInfo> mAppliedUpdates;
+    private String mAppliedDownloadFileName;
+    private String mPendingFinishedFileName;
+    private Preference mEmptyListPreference;
 
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -105,14 +126,16 @@ public class UpdatesSettings extends PreferenceActivity implements
 
             if (DownloadReceiver.ACTION_DOWNLOAD_STARTED.equals(action)) {
                 mDownloadId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
-                mUpdateHandler.post(mUpdateProgress);
+                startProgressObserver();
             } else if (UpdateCheckService.ACTION_CHECK_FINISHED.equals(action)) {
                 if (mProgressDialog != null) {
                     mProgressDialog.dismiss();
                     mProgressDialog = null;
 
                     int count = intent.getIntExtra(UpdateCheckService.EXTRA_NEW_UPDATE_COUNT, -1);
-                    if (count == 0) {
+                    if (intent.getBooleanExtra(UpdateCheckService.EXTRA_CANCELLED, false)) {
+                        // Cancelled by the user, nothing to report
+                    } else if (count == 0) {
                         Toast.makeText(UpdatesSettings.this, R.string.no_updates_found,
                                 Toast.LENGTH_SHORT).show();
                     } else if (count < 0) {
@@ -120,7 +143,7 @@ public class UpdatesSettings extends PreferenceActivity implements
                                 Toast.LENGTH_LONG).show();
                     }
                 }
-                updateLayout();
+                // A changed update list is picked up through onStateChanged()
             }
         }
     };
@@ -130,12 +153,19 @@ public class UpdatesSettings extends PreferenceActivity implements
         super.onCreate(savedInstanceState);
 
         mDownloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
+        mUpdateFolder = Utils.makeUpdateFolder();
 
         // Load the layouts
         addPreferencesFromResource(R.xml.main);
         mLatestList = (PreferenceCategory) findPreference(LATEST_CATEGORY);
         mUpdatesList = (PreferenceCategory) findPreference(UPDATES_CATEGORY);
         mUpdateCheck = (ListPreference) findPreference(Constants.UPDATE_CHECK_PREF);
+        mCheckUnmeteredOnly = (CheckBoxPreference) findPreference(
+                Constants.CHECK_UNMETERED_ONLY_PREF);
+        mCheckWhileCharging = (CheckBoxPreference) findPreference(
+                Constants.CHECK_WHILE_CHARGING_PREF);
+        mDownloadConnections = (ListPreference) findPreference(
+                Constants.DOWNLOAD_CONNECTIONS_PREF);
         // mUpdateType = (ListPreference) findPreference(Constants.UPDATE_TYPE_PREF);
 
         // Load the stored preference data
@@ -147,6 +177,22 @@ public class UpdatesSettings extends PreferenceActivity implements
             mUpdateCheck.setOnPreferenceChangeListener(this);
         }
 
+        if (mCheckUnmeteredOnly != null) {
+            mCheckUnmeteredOnly.setOnPreferenceChangeListener(this);
+        }
+        if (mCheckWhileCharging != null) {
+            mCheckWhileCharging.setOnPreferenceChangeListener(this);
+        }
+
+        if (mDownloadConnections != null) {
+            int connections = mPrefs.getInt(Constants.DOWNLOAD_CONNECTIONS_PREF,
+                    getResources().getInteger(R.integer.conf_download_connections));
+            mDownloadConnections.setValue(String.valueOf(connections));
+            mDownloadConnections.setSummary(getResources().getQuantityString(
+                    R.plurals.download_connections_summary, connections, connections));
+            mDownloadConnections.setOnPreferenceChangeListener(this);
+        }
+
         //mGapps = (Preference) findPreference("check_dho_gapps");
 
         /* We don't need this for the moment
@@ -175,6 +221,12 @@ public class UpdatesSettings extends PreferenceActivity implements
         invalidateOptionsMenu();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mLayoutExecutor.shutdownNow();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         menu.add(0, MENU_REFRESH, 0, R.string.menu_refresh)
@@ -191,6 +243,9 @@ public class UpdatesSettings extends PreferenceActivity implements
         menu.add(0, MENU_GAPPS_LINK , 0, R.string.gapps_menu_title)
             .setShowAsActionFlags(MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
 
+        menu.add(0, MENU_DIAGNOSTICS, 0, R.string.menu_diagnostics)
+            .setShowAsActionFlags(MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
+
         return true;
     }
 
@@ -216,6 +271,10 @@ public class UpdatesSettings extends PreferenceActivity implements
             case MENU_GAPPS_LINK:
                 showGappsLink();
                 return true;
+
+            case MENU_DIAGNOSTICS:
+                startActivity(new Intent(this, DiagnosticsActivity.class));
+                return true;
         }
         return false;
     }
@@ -245,7 +304,12 @@ public class UpdatesSettings extends PreferenceActivity implements
     @Override
     public void onReady(UpdatePreference pref) {
         pref.setOnReadyListener(null);
-        mUpdateHandler.post(mUpdateProgress);
+        startProgressObserver();
+    }
+
+    @Override
+    public void onStateChanged(List<UpdateInfo> updates) {
+        updateLayout();
     }
 
     @Override
@@ -259,7 +323,18 @@ public class UpdatesSettings extends PreferenceActivity implements
             int value = Integer.valueOf((String) newValue);
             mPrefs.edit().putInt(Constants.UPDATE_CHECK_PREF, value).apply();
             mUpdateCheck.setSummary(mapCheckValue(value));
-            Utils.scheduleUpdateService(this, value * 1000);
+            UpdateCheckJobService.schedule(this);
+            return true;
+        } else if (preference == mCheckUnmeteredOnly || preference == mCheckWhileCharging) {
+            // Store the value right away, the new constraints apply to the next job
+            mPrefs.edit().putBoolean(preference.getKey(), (Boolean) newValue).apply();
+            UpdateCheckJobService.schedule(this);
+            return true;
+        } else if (preference == mDownloadConnections) {
+            int value = Integer.valueOf((String) newValue);
+            mPrefs.edit().putInt(Constants.DOWNLOAD_CONNECTIONS_PREF, value).apply();
+            mDownloadConnections.setSummary(getResources().getQuantityString(
+                    R.plurals.download_connections_summary, value, value));
             return true;
         /*} else if (preference == mUpdateType) {
             int value = Integer.valueOf((String) newValue);
@@ -278,7 +353,19 @@ public class UpdatesSettings extends PreferenceActivity implements
 
         // Determine if there are any in-progress downloads
         mDownloadId = mPrefs.getLong(Constants.DOWNLOAD_ID, -1);
-        if (mDownloadId >= 0) {
+        if (mDownloadId == DownloadService.DOWNLOAD_ID) {
+            mFileName = DownloadService.getActiveFileName();
+            if (mFileName == null) {
+                // The process died mid-download, starting it again resumes it
+                Toast.makeText(this, R.string.download_not_found, Toast.LENGTH_LONG).show();
+                mPrefs.edit()
+                        .remove(Constants.DOWNLOAD_ID)
+                        .remove(Constants.DOWNLOAD_MD5)
+                        .remove(Constants.DOWNLOAD_DELTA_SOURCE)
+                        .apply();
+                resetDownloadState();
+            }
+        } else if (mDownloadId >= 0) {
             Cursor c = mDownloadManager.query(new DownloadManager.Query().setFilterById(mDownloadId));
             if (c == null || !c.moveToFirst()) {
                 Toast.makeText(this, R.string.download_not_found, Toast.LENGTH_LONG).show();
@@ -290,7 +377,8 @@ public class UpdatesSettings extends PreferenceActivity implements
                             || status == DownloadManager.STATUS_RUNNING
                             || status == DownloadManager.STATUS_PAUSED) {
                         File file = new File(fileName);
-                        mFileName = file.getName().replace(".partial", "");
+                        mFileName = file.getName().replace(".partial", "")
+                                .replace(DeltaPatcher.PATCH_SUFFIX, "");
                     }
                 }
             }
@@ -302,6 +390,8 @@ public class UpdatesSettings extends PreferenceActivity implements
         }
 
         updateLayout();
+        startProgressObserver();
+        State.addOnStateChangedListener(this);
 
         IntentFilter filter = new IntentFilter(UpdateCheckService.ACTION_CHECK_FINISHED);
         filter.addAction(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
@@ -314,7 +404,8 @@ public class UpdatesSettings extends PreferenceActivity implements
     @Override
     protected void onStop() {
         super.onStop();
-        mUpdateHandler.removeCallbacks(mUpdateProgress);
+        State.removeOnStateChangedListener(this);
+        stopProgressObserver();
         unregisterReceiver(mReceiver);
         if (mProgressDialog != null) {
             mProgressDialog.cancel();
@@ -353,66 +444,69 @@ public class UpdatesSettings extends PreferenceActivity implements
         intent.putExtra(DownloadReceiver.EXTRA_UPDATE_INFO, (Parcelable) ui);
         sendBroadcast(intent);
 
-        mUpdateHandler.post(mUpdateProgress);
+        // Progress is followed once DownloadReceiver reports the download id
     }
 
-    private Runnable mUpdateProgress = new Runnable() {
-        public void run() {
-            if (!mDownloading || mDownloadingPreference == null || mDownloadId < 0) {
-                return;
-            }
-
-            ProgressBar progressBar = mDownloadingPreference.getProgressBar();
-            if (progressBar == null) {
+    private void startProgressObserver() {
+        if (!mDownloading || mDownloadingPreference == null || mDownloadId < 0) {
+            return;
+        }
+        if (mDownloadId == DownloadService.DOWNLOAD_ID) {
+            stopProgressObserver();
+            DownloadService.setProgressListener(this);
+            return;
+        }
+        if (mProgressObserver != null) {
+            if (mProgressObserver.getDownloadId() == mDownloadId) {
+                // Already observing, just refresh a newly bound row
+                mProgressObserver.onChange(false);
                 return;
             }
+            stopProgressObserver();
+        }
+        mProgressObserver = new DownloadProgressObserver(this, mDownloadId, this);
+        mProgressObserver.start();
+    }
 
-            DownloadManager.Query q = new DownloadManager.Query();
-            q.setFilterById(mDownloadId);
-
-            Cursor cursor = mDownloadManager.query(q);
-            int status;
-
-            if (cursor == null || !cursor.moveToFirst()) {
-                // DownloadReceiver has likely already removed the download
-                // from the DB due to failure or MD5 mismatch
-                status = DownloadManager.STATUS_FAILED;
-            } else {
-                status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
-            }
+    private void stopProgressObserver() {
+        DownloadService.setProgressListener(null);
+        if (mProgressObserver != null) {
+            mProgressObserver.stop();
+            mProgressObserver = null;
+        }
+    }
 
-            switch (status) {
-                case DownloadManager.STATUS_PENDING:
-                    progressBar.setIndeterminate(true);
-                    break;
-                case DownloadManager.STATUS_PAUSED:
-                case DownloadManager.STATUS_RUNNING:
-                    int downloadedBytes = cursor.getInt(
-                        cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-                    int totalBytes = cursor.getInt(
-                        cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-
-                    progressBar.setIndeterminate(totalBytes < 0);
-                    progressBar.setMax(totalBytes);
-                    progressBar.setProgress(downloadedBytes);
-                    break;
-                case DownloadManager.STATUS_FAILED:
-                    if (mDownloadingPreference.getDependency() == LATEST_CATEGORY)
-                        mDownloadingPreference.setStyle(UpdatePreference.STYLE_NEW);
-                    else
-                        mDownloadingPreference.setStyle(UpdatePreference.STYLE_OLD);
-                    resetDownloadState();
-                    break;
-            }
+    @Override
+    public void onProgress(int status, long downloadedBytes, long totalBytes,
+            long bytesPerSecond, long etaMillis) {
+        if (!mDownloading || mDownloadingPreference == null) {
+            stopProgressObserver();
+            return;
+        }
 
-            if (cursor != null) {
-                cursor.close();
-            }
-            if (status != DownloadManager.STATUS_FAILED) {
-                mUpdateHandler.postDelayed(this, 1000);
-            }
+        switch (status) {
+            case DownloadManager.STATUS_PENDING:
+                mDownloadingPreference.setProgress(-1, -1, -1, -1);
+                break;
+            case DownloadManager.STATUS_PAUSED:
+            case DownloadManager.STATUS_RUNNING:
+                mDownloadingPreference.setProgress(downloadedBytes, totalBytes,
+                        bytesPerSecond, etaMillis);
+                break;
+            case DownloadManager.STATUS_SUCCESSFUL:
+                // Keep observing, a failed verification is reported as STATUS_FAILED
+                mDownloadingPreference.setProgress(-1, -1, -1, -1);
+                break;
+            case DownloadManager.STATUS_FAILED:
+                if (LATEST_CATEGORY.equals(mDownloadingPreference.getDependency()))
+                    mDownloadingPreference.setStyle(UpdatePreference.STYLE_NEW);
+                else
+                    mDownloadingPreference.setStyle(UpdatePreference.STYLE_OLD);
+                stopProgressObserver();
+                resetDownloadState();
+                break;
         }
-    };
+    }
 
     @Override
     public void onStopDownload(final UpdatePreference pref) {
@@ -438,14 +532,22 @@ public class UpdatesSettings extends PreferenceActivity implements
                             pref.setStyle(UpdatePreference.STYLE_OLD);
 
                         // We are OK to stop download, trigger it
-                        mDownloadManager.remove(mDownloadId);
-                        mUpdateHandler.removeCallbacks(mUpdateProgress);
+                        if (mDownloadId == DownloadService.DOWNLOAD_ID) {
+                            Intent cancelIntent = new Intent(UpdatesSettings.this,
+                                    DownloadService.class);
+                            cancelIntent.setAction(DownloadService.ACTION_CANCEL_DOWNLOAD);
+                            startService(cancelIntent);
+                        } else {
+                            mDownloadManager.remove(mDownloadId);
+                        }
+                        stopProgressObserver();
                         resetDownloadState();
 
                         // Clear the stored data from shared preferences
                         mPrefs.edit()
                                 .remove(Constants.DOWNLOAD_ID)
                                 .remove(Constants.DOWNLOAD_MD5)
+                                .remove(Constants.DOWNLOAD_DELTA_SOURCE)
                                 .apply();
 
                         Toast.makeText(UpdatesSettings.this,
@@ -474,15 +576,26 @@ public class UpdatesSettings extends PreferenceActivity implements
         String fileName = new File(fullPathName).getName();
 
         // Find the matching preference so we can retrieve the UpdateInfo
-        UpdatePreference pref = (UpdatePreference) mUpdatesList.findPreference(fileName);
+        UpdatePreference pref = findUpdatePreference(fileName);
         if (pref != null) {
             pref.setStyle(UpdatePreference.STYLE_DOWNLOADED);
             onStartUpdate(pref);
+        } else {
+            // The list is still being built, handle it once it is shown
+            mPendingFinishedFileName = fileName;
         }
 
         resetDownloadState();
     }
 
+    private UpdatePreference findUpdatePreference(String fileName) {
+        Preference pref = mLatestList.findPreference(fileName);
+        if (pref == null) {
+            pref = mUpdatesList.findPreference(fileName);
+        }
+        return pref instanceof UpdatePreference ? (UpdatePreference) pref : null;
+    }
+
     private void resetDownloadState() {
         mDownloadId = -1;
         mFileName = null;
@@ -530,19 +643,46 @@ public class UpdatesSettings extends PreferenceActivity implements
 
         Intent checkIntent = new Intent(UpdatesSettings.this, UpdateCheckService.class);
         checkIntent.setAction(UpdateCheckService.ACTION_CHECK);
+        checkIntent.putExtra(UpdateCheckService.EXTRA_USER_REQUEST, true);
         startService(checkIntent);
 
         mProgressDialog.show();
     }
 
     private void updateLayout() {
-        // Read existing Updates
-        LinkedList<String> existingFiles = new LinkedList<String>();
+        // Clear the notification if one exists
+        Utils.cancelNotification(this);
 
-        mUpdateFolder = Utils.makeUpdateFolder();
-        File[] files = mUpdateFolder.listFiles(new UpdateFilter(".zip"));
+        // Build the list off the main thread, dropping any request still in progress
+        final int generation = ++mLayoutGeneration;
+        if (mLayoutFuture != null) {
+            mLayoutFuture.cancel(true);
+        }
+        mLayoutFuture = mLayoutExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final LinkedList<UpdateInfo> updates = buildUpdateList();
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
 
-        if (mUpdateFolder.exists() && mUpdateFolder.isDirectory() && files != null) {
+                mUpdateHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mLayoutGeneration && !isDestroyed()) {
+                            applyUpdateList(updates);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private LinkedList<UpdateInfo> buildUpdateList() {
+        // Read existing Updates
+        HashSet<String> existingFiles = new HashSet<String>();
+        File[] files = mUpdateFolder.listFiles(new UpdateFilter(".zip"));
+        if (files != null) {
             for (File file : files) {
                 if (file.isFile()) {
                     existingFiles.add(file.getName());
@@ -550,62 +690,33 @@ public class UpdatesSettings extends PreferenceActivity implements
             }
         }
 
-        // Clear the notification if one exists
-        Utils.cancelNotification(this);
-
         // Build list of updates
-        LinkedList<UpdateInfo> availableUpdates = State.loadState(this);
-        final LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
-        String installedZip = "exodus-" + Utils.getInstalledVersion() + ".zip";
-        int versions = 0;
+        List<UpdateInfo> availableUpdates = State.getUpdates(getApplicationContext());
+        return UpdateListMerger.merge(existingFiles, availableUpdates,
+                "exodus-" + Utils.getInstalledVersion() + ".zip");
+    }
 
-        for (String fileName : reversed(existingFiles)) {
-            updates.add(new UpdateInfo(fileName));
-        }
-        for (UpdateInfo update : reversed(availableUpdates)) {
-            // Only add updates to the list that are not already downloaded
-            versions++;
-            if (existingFiles.contains(update.getFileName()) ||
-                    (!update.getFileName().equals(installedZip) && versions > 14)) {
-                continue;
-            }
-            updates.add(update);
+    private void applyUpdateList(LinkedList<UpdateInfo> updates) {
+        // Skip the rebuild if neither the list nor the running download changed
+        boolean downloadChanged = mFileName == null
+                ? mAppliedDownloadFileName != null : !mFileName.equals(mAppliedDownloadFileName);
+        if (!downloadChanged && updates.equals(mAppliedUpdates)) {
+            return;
         }
-
-        Collections.sort(updates, new Comparator<UpdateInfo>() {
-            @Override
-            public int compare(UpdateInfo lhs, UpdateInfo rhs) {
-                // sort in descending 'UI name' order (newest first)
-                return -lhs.getName().compareTo(rhs.getName());
-            }
-        });
+        mAppliedUpdates = updates;
+        mAppliedDownloadFileName = mFileName;
 
         // Update the preference list
         refreshPreferences(updates);
 
-        // Prune obsolete change log files
-        new Thread() {
-            @Override
-            public void run() {
-                File[] files = getCacheDir().listFiles(new UpdateFilter(".changelog"));
-                if (files == null) {
-                    return;
-                }
-
-                for (File file : files) {
-                    boolean updateExists = false;
-                    for (UpdateInfo info : updates) {
-                        if (file.getName().startsWith(info.getFileName())) {
-                            updateExists = true;
-                            break;
-                        }
-                    }
-                    if (!updateExists) {
-                        file.delete();
-                    }
-                }
+        if (mPendingFinishedFileName != null) {
+            UpdatePreference pref = findUpdatePreference(mPendingFinishedFileName);
+            mPendingFinishedFileName = null;
+            if (pref != null) {
+                pref.setStyle(UpdatePreference.STYLE_DOWNLOADED);
+                onStartUpdate(pref);
             }
-        }.start();
+        }
     }
 
     private void refreshPreferences(LinkedList<UpdateInfo> updates) {
@@ -618,16 +729,22 @@ public class UpdatesSettings extends PreferenceActivity implements
             mUpdatesList.setTitle(R.string.previous_updates_title);
             isMLatestListRemoved = false;
         }
-        // Clear the list
-        mUpdatesList.removeAll();
-        // Clear the Latest List.
-        mLatestList.removeAll();
+        if (mEmptyListPreference != null) {
+            mUpdatesList.removePreference(mEmptyListPreference);
+            mEmptyListPreference = null;
+        }
+
+        // Index the rows currently shown so they can be reused by key
+        HashMap<String, UpdatePreference> existing = new HashMap<String, UpdatePreference>();
+        collectUpdatePreferences(mLatestList, existing);
+        collectUpdatePreferences(mUpdatesList, existing);
 
         // Convert the installed version name to the associated filename
         String installedZip = "exodus-" + Utils.getInstalledVersion() + ".zip";
 
         boolean isFirstDownload = true;
         boolean newerThanCurrent = true;
+        int order = 0;
 
         // Add the updates
         for (UpdateInfo ui : updates) {
@@ -651,24 +768,49 @@ public class UpdatesSettings extends PreferenceActivity implements
                 style = UpdatePreference.STYLE_DOWNLOADED;
             }
 
-            UpdatePreference up = new UpdatePreference(this, ui, style);
-            up.setOnActionListener(this);
-            up.setKey(ui.getFileName());
+            PreferenceCategory category = isFirstDownload ? mLatestList : mUpdatesList;
+            String dependency = isFirstDownload ? LATEST_CATEGORY : UPDATES_CATEGORY;
+            isFirstDownload = false;
+
+            UpdatePreference up = existing.remove(ui.getFileName());
+            if (up == null) {
+                up = new UpdatePreference(this, ui, style);
+                up.setOnActionListener(this);
+                up.setKey(ui.getFileName());
+                up.setOrder(order++);
+                category.addPreference(up);
+                up.setDependency(dependency);
+            } else {
+                // Reuse the row, only touching what actually changed
+                up.setUpdateInfo(ui);
+                up.setStyle(style);
+                up.setOrder(order++);
+                if (!dependency.equals(up.getDependency())) {
+                    PreferenceCategory oldCategory = category == mLatestList
+                            ? mUpdatesList : mLatestList;
+                    oldCategory.removePreference(up);
+                    category.addPreference(up);
+                    up.setDependency(dependency);
+                }
+            }
 
             // If we have an in progress download, link the preference
-            if (isDownloading) {
+            if (isDownloading && up != mDownloadingPreference) {
                 mDownloadingPreference = up;
                 up.setOnReadyListener(this);
                 mDownloading = true;
             }
-            if(isFirstDownload){
-                mLatestList.addPreference(up);
-                up.setDependency(LATEST_CATEGORY);
-                isFirstDownload = false;
+        }
+
+        // Drop the rows of updates that are gone
+        for (UpdatePreference up : existing.values()) {
+            if (LATEST_CATEGORY.equals(up.getDependency())) {
+                mLatestList.removePreference(up);
             } else {
-                // Add to the list
-                mUpdatesList.addPreference(up);
-                up.setDependency(UPDATES_CATEGORY);
+                mUpdatesList.removePreference(up);
+            }
+            if (up == mDownloadingPreference) {
+                mDownloadingPreference = null;
             }
         }
 
@@ -680,12 +822,23 @@ public class UpdatesSettings extends PreferenceActivity implements
             pref.setEnabled(false);
             mUpdatesList.setTitle(R.string.update_not_available);
             mUpdatesList.addPreference(pref);
+            mEmptyListPreference = pref;
             PreferenceScreen preferenceScreen = (PreferenceScreen) findPreference("exodus_updater_screen");
             preferenceScreen.removePreference(mLatestList);
             isMLatestListRemoved = true;
         }
     }
 
+    private static void collectUpdatePreferences(PreferenceCategory category,
+            HashMap<String, UpdatePreference> prefs) {
+        for (int i = 0; i < category.getPreferenceCount(); i++) {
+            Preference pref = category.getPreference(i);
+            if (pref instanceof UpdatePreference) {
+                prefs.put(pref.getKey(), (UpdatePreference) pref);
+            }
+        }
+    }
+
     @Override
     public void onDeleteUpdate(UpdatePreference pref) {
         final String fileName = pref.getKey();
@@ -766,9 +919,13 @@ public class UpdatesSettings extends PreferenceActivity implements
         String date = DateFormat.getLongDateFormat(this).format(lastCheck);
         String time = DateFormat.getTimeFormat(this).format(lastCheck);
 
+        int checks = mPrefs.getInt(Constants.CHECK_COUNT_PREF, 0);
+        int notModifiedChecks = mPrefs.getInt(Constants.CHECK_NOT_MODIFIED_COUNT_PREF, 0);
+
         String message = getString(R.string.sysinfo_device) + " " + Utils.getDeviceType() + "\n\n"
                 + getString(R.string.sysinfo_running) + " " + Utils.getInstalledVersion() + "\n\n"
-                + getString(R.string.sysinfo_last_check) + " " + date + " " + time;
+                + getString(R.string.sysinfo_last_check) + " " + date + " " + time + "\n\n"
+                + getString(R.string.sysinfo_not_modified_checks, notModifiedChecks, checks);
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this)
                 .setTitle(R.string.menu_system_info)
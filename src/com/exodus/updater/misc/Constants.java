@@ -14,6 +14,7 @@ public class Constants {
     public static final String UPDATES_FOLDER = "exodusupdater";
     public static final String DOWNLOAD_ID = "download_id";
     public static final String DOWNLOAD_MD5 = "download_md5";
+    public static final String DOWNLOAD_DELTA_SOURCE = "download_delta_source";
 
     // Preferences
     public static final String ENABLE_PREF = "pref_enable_updates";
@@ -21,9 +22,21 @@ public class Constants {
     public static final String UPDATE_CHECK_PREF = "pref_update_check_interval";
     public static final String UPDATE_TYPE_PREF = "exodus_pref_update_types";//"pref_update_types";
     public static final String LAST_UPDATE_CHECK_PREF = "pref_last_update_check";
+    public static final String CHECK_COUNT_PREF = "pref_update_check_count";
+    public static final String CHECK_NOT_MODIFIED_COUNT_PREF = "pref_update_check_not_modified_count";
+    public static final String CHECK_FAILURE_COUNT_PREF = "pref_update_check_failure_count";
+    public static final String LAST_CHECK_ATTEMPT_PREF = "pref_last_update_check_attempt";
+    public static final String CHECK_UNMETERED_ONLY_PREF = "pref_check_unmetered_only";
+    public static final String CHECK_WHILE_CHARGING_PREF = "pref_check_while_charging";
+    public static final String IN_APP_DOWNLOAD_PREF = "pref_in_app_download";
+    public static final String DOWNLOAD_CONNECTIONS_PREF = "pref_download_connections";
 
     // Update Check items
     public static final String BOOT_CHECK_COMPLETED = "boot_check_completed";
+    public static final String CHANGELOG_BUNDLE_MISSING_URL = "changelog_bundle_missing_url";
+    public static final String CHANGELOG_BUNDLE_MISSING_TIME = "changelog_bundle_missing_time";
+    public static final String MIRROR_RANKING = "mirror_ranking";
+    public static final String MIRROR_RANKING_TIME = "mirror_ranking_time";
     public static final int UPDATE_FREQ_AT_BOOT = -1;
     public static final int UPDATE_FREQ_NONE = -2;
     public static final int UPDATE_FREQ_TWICE_DAILY = 43200;
@@ -10,37 +10,151 @@
 package com.exodus.updater.misc;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 
+/**
+ * Persisted list of available updates.
+ *
+ * The list is kept in memory as an immutable snapshot shared by the whole
+ * process. The state file is only read again if it was changed behind our
+ * back, i.e. its modification time or size differ from the snapshot.
+ */
 public class State {
     private static final String TAG = "State";
     private static final String FILENAME = "exodusupdater.state";
 
-    public static void saveState(Context context, LinkedList<UpdateInfo> availableUpdates) {
-        ObjectOutputStream oos = null;
+    // First bytes of a java.io.ObjectOutputStream, used by the old state format
+    private static final int LEGACY_STREAM_MAGIC = 0xaced;
+
+    public interface OnStateChangedListener {
+        /**
+         * Called on the main thread whenever a new update list was stored.
+         */
+        void onStateChanged(List<UpdateInfo> updates);
+    }
+
+    private static final ArrayList<OnStateChangedListener> sListeners =
+            new ArrayList<OnStateChangedListener>();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static List<UpdateInfo> sSnapshot;
+    private static long sSnapshotModified;
+    private static long sSnapshotLength;
+    private static int sGeneration = 0;
+
+    /**
+     * Get the current update list. The returned list is shared and must not
+     * be modified, use {@link #loadState} to get a private copy.
+     */
+    public static synchronized List<UpdateInfo> getUpdates(Context context) {
+        File f = new File(context.getCacheDir(), FILENAME);
+        if (sSnapshot == null || f.lastModified() != sSnapshotModified
+                || f.length() != sSnapshotLength) {
+            boolean hadSnapshot = sSnapshot != null;
+            setSnapshot(readState(f), f);
+            if (hadSnapshot) {
+                notifyListeners();
+            }
+        }
+        return sSnapshot;
+    }
+
+    /**
+     * Get the generation of the current update list. It changes every time a
+     * different list is stored or loaded.
+     */
+    public static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    public static void addOnStateChangedListener(OnStateChangedListener listener) {
+        synchronized (sListeners) {
+            if (!sListeners.contains(listener)) {
+                sListeners.add(listener);
+            }
+        }
+    }
+
+    public static void removeOnStateChangedListener(OnStateChangedListener listener) {
+        synchronized (sListeners) {
+            sListeners.remove(listener);
+        }
+    }
+
+    public static LinkedList<UpdateInfo> loadState(Context context) {
+        return new LinkedList<UpdateInfo>(getUpdates(context));
+    }
+
+    public static synchronized void saveState(Context context,
+            LinkedList<UpdateInfo> availableUpdates) {
+        File f = new File(context.getCacheDir(), FILENAME);
+        writeState(f, availableUpdates);
+        setSnapshot(availableUpdates, f);
+        notifyListeners();
+    }
+
+    private static void setSnapshot(List<UpdateInfo> updates, File f) {
+        sSnapshot = Collections.unmodifiableList(new ArrayList<UpdateInfo>(updates));
+        sSnapshotModified = f.lastModified();
+        sSnapshotLength = f.length();
+        sGeneration++;
+    }
+
+    private static void notifyListeners() {
+        final List<UpdateInfo> snapshot = sSnapshot;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<OnStateChangedListener> listeners;
+                synchronized (sListeners) {
+                    listeners = new ArrayList<OnStateChangedListener>(sListeners);
+                }
+                for (OnStateChangedListener listener : listeners) {
+                    listener.onStateChanged(snapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write an update list to the given file, replacing it atomically. This
+     * does not change the current update list, see {@link #saveState}.
+     */
+    public static void writeState(File f, List<UpdateInfo> availableUpdates) {
+        File tmp = new File(f.getPath() + ".tmp");
+        byte[] data = StateCodec.encode(availableUpdates);
+
         FileOutputStream fos = null;
         try {
-            File f = new File(context.getCacheDir(), FILENAME);
-            fos = new FileOutputStream(f);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(availableUpdates);
-            oos.flush();
+            fos = new FileOutputStream(tmp);
+            fos.write(data);
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Unable to rename " + tmp + " to " + f);
+            }
         } catch (IOException e) {
             Log.e(TAG, "Exception on saving instance state", e);
+            tmp.delete();
         } finally {
             try {
-                if (oos != null) {
-                    oos.close();
-                }
                 if (fos != null) {
                     fos.close();
                 }
@@ -50,36 +164,76 @@ public class State {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    public static LinkedList<UpdateInfo> loadState(Context context) {
+    /**
+     * Read an update list from the given file, migrating files of the old
+     * format. Returns an empty list if there is none.
+     */
+    public static LinkedList<UpdateInfo> readState(File f) {
         LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
-        ObjectInputStream ois = null;
         FileInputStream fis = null;
         try {
-            File f = new File(context.getCacheDir(), FILENAME);
             fis = new FileInputStream(f);
-            ois = new ObjectInputStream(fis);
+
+            // The state file is small, pull it in with a single read
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full
+            }
+            buffer.flip();
+
+            if (StateCodec.hasMagic(buffer)) {
+                availableUpdates = StateCodec.decode(buffer);
+            } else if (buffer.remaining() >= 2
+                    && (buffer.getShort(0) & 0xffff) == LEGACY_STREAM_MAGIC) {
+                availableUpdates = loadLegacyState(buffer);
+                Log.i(TAG, "Migrating " + availableUpdates.size() + " entries to new state format");
+                writeState(f, availableUpdates);
+            } else {
+                Log.d(TAG, "Unexpected state file format");
+            }
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No state info stored");
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading state", e);
+        } finally {
+            try {
+                if (fis != null) {
+                    fis.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+        return availableUpdates;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LinkedList<UpdateInfo> loadLegacyState(ByteBuffer buffer) {
+        LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new ByteArrayInputStream(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), buffer.remaining()));
 
             Object o = ois.readObject();
             if (o != null && o instanceof LinkedList<?>) {
                 availableUpdates = (LinkedList<UpdateInfo>) o;
+                for (UpdateInfo ui : availableUpdates) {
+                    ui.resetUnstoredSizes();
+                }
             }
         } catch (ClassNotFoundException e) {
             Log.e(TAG, "Unable to load stored class", e);
         } catch (IllegalArgumentException e) {
             Log.d(TAG, "Unexpected state file format", e);
-        } catch (FileNotFoundException e) {
-            Log.i(TAG, "No state info stored");
         } catch (IOException e) {
-            Log.e(TAG, "Exception on loading state", e);
+            Log.e(TAG, "Exception on loading legacy state", e);
         } finally {
             try {
                 if (ois != null) {
                     ois.close();
                 }
-                if (fis != null) {
-                    fis.close();
-                }
             } catch (IOException e) {
                 // ignored, can't do anything anyway
             }
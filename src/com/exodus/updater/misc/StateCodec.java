@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.misc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the update list.
+ *
+ * Layout (all integers big endian, "varint" is an unsigned LEB128 value):
+ * <pre>
+ *   int     MAGIC
+ *   byte    VERSION
+ *   varint  string count, followed by that many (varint length, UTF-8 bytes)
+ *   varint  entry count, followed by that many entries:
+ *     varint  file name        (string index)
+ *     byte    type             (UpdateInfo.Type ordinal)
+ *     varint  api level
+ *     long    build date
+ *     varint  url prefix       (string index + 1, 0 if there is no url)
+ *     varint  url file part    (string index + 1)
+ *     varint  md5              (string index + 1, 0 if unknown)
+ *     varint  extra count, followed by that many (byte tag, varint string index)
+ * </pre>
+ * All strings live in the string table, so repeated values like the download
+ * url prefix or a url ending in the file name are stored only once. Extras
+ * carry optional fields, all stored as strings; decoders skip tags they do
+ * not know:
+ * <pre>
+ *   1  full download size in bytes
+ *   2  delta patch source file name
+ *   3  delta patch url
+ *   4  delta patch md5
+ *   5  delta patch size in bytes
+ *   6  change log url, if the server named one
+ * </pre>
+ */
+public class StateCodec {
+    public static final int MAGIC = 0x45585354; // "EXST"
+    public static final int VERSION = 1;
+
+    // Extra tags
+    private static final int EXTRA_FILE_SIZE = 1;
+    private static final int EXTRA_DELTA_SOURCE = 2;
+    private static final int EXTRA_DELTA_URL = 3;
+    private static final int EXTRA_DELTA_MD5 = 4;
+    private static final int EXTRA_DELTA_SIZE = 5;
+    private static final int EXTRA_CHANGELOG_URL = 6;
+
+    // file name, type, api level, date, url prefix, url file, md5, extra count
+    private static final int MIN_ENTRY_BYTES = 1 + 1 + 1 + 8 + 1 + 1 + 1 + 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private StateCodec() {
+        // this class is not supposed to be instantiated
+    }
+
+    public static boolean hasMagic(ByteBuffer buffer) {
+        return buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    public static byte[] encode(List<UpdateInfo> updates) {
+        ArrayList<String> strings = new ArrayList<String>();
+        HashMap<String, Integer> index = new HashMap<String, Integer>();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(updates.size() * 24);
+
+        ByteArrayOutputStream extras = new ByteArrayOutputStream();
+
+        writeVarint(entries, updates.size());
+        for (UpdateInfo ui : updates) {
+            String url = ui.getDownloadUrl();
+            String urlPrefix = null, urlFile = null;
+            if (url != null) {
+                int slash = url.lastIndexOf('/') + 1;
+                urlPrefix = url.substring(0, slash);
+                urlFile = url.substring(slash);
+            }
+
+            writeVarint(entries, intern(ui.getFileName(), strings, index));
+            entries.write(ui.getType().ordinal());
+            writeVarint(entries, ui.getApiLevel());
+            writeLong(entries, ui.getDate());
+            writeVarint(entries, internOptional(urlPrefix, strings, index));
+            writeVarint(entries, internOptional(urlFile, strings, index));
+            writeVarint(entries, internOptional(ui.getMD5Sum(), strings, index));
+
+            extras.reset();
+            int extraCount = 0;
+            if (ui.getFileSize() >= 0) {
+                extraCount += writeExtra(extras, EXTRA_FILE_SIZE,
+                        String.valueOf(ui.getFileSize()), strings, index);
+            }
+            if (ui.hasDelta()) {
+                extraCount += writeExtra(extras, EXTRA_DELTA_SOURCE,
+                        ui.getDeltaSourceFileName(), strings, index);
+                extraCount += writeExtra(extras, EXTRA_DELTA_URL,
+                        ui.getDeltaUrl(), strings, index);
+                extraCount += writeExtra(extras, EXTRA_DELTA_MD5,
+                        ui.getDeltaMD5Sum(), strings, index);
+                extraCount += writeExtra(extras, EXTRA_DELTA_SIZE,
+                        String.valueOf(ui.getDeltaSize()), strings, index);
+            }
+            if (ui.hasChangeLogUrl()) {
+                extraCount += writeExtra(extras, EXTRA_CHANGELOG_URL,
+                        ui.getChangeLogUrl(), strings, index);
+            }
+            writeVarint(entries, extraCount);
+            byte[] extraBytes = extras.toByteArray();
+            entries.write(extraBytes, 0, extraBytes.length);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(entries.size() + strings.size() * 48);
+        writeInt(out, MAGIC);
+        out.write(VERSION);
+        writeVarint(out, strings.size());
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(UTF8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        byte[] body = entries.toByteArray();
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    public static LinkedList<UpdateInfo> decode(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a state file");
+            }
+            int version = buffer.get() & 0xff;
+            if (version > VERSION) {
+                throw new IOException("Unsupported state version " + version);
+            }
+
+            // Every count is checked against what is left, so a damaged file can't
+            // make us allocate arrays of arbitrary size
+            int stringCount = readCount(buffer, 1);
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                int length = readCount(buffer, 1);
+                strings[i] = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        length, UTF8);
+                buffer.position(buffer.position() + length);
+            }
+
+            UpdateInfo.Type[] types = UpdateInfo.Type.values();
+            int count = readCount(buffer, MIN_ENTRY_BYTES);
+            LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+            for (int i = 0; i < count; i++) {
+                String fileName = strings[readVarint(buffer)];
+                int typeOrdinal = buffer.get() & 0xff;
+                int apiLevel = readVarint(buffer);
+                long date = buffer.getLong();
+                String urlPrefix = optional(strings, readVarint(buffer));
+                String urlFile = optional(strings, readVarint(buffer));
+                String md5 = optional(strings, readVarint(buffer));
+
+                long fileSize = -1, deltaSize = -1;
+                String deltaSource = null, deltaUrl = null, deltaMd5 = null;
+                String changeLogUrl = null;
+                int extras = readCount(buffer, 2);
+                for (int j = 0; j < extras; j++) {
+                    int tag = buffer.get() & 0xff;
+                    String value = strings[readVarint(buffer)];
+                    switch (tag) {
+                        case EXTRA_FILE_SIZE: fileSize = parseLong(value); break;
+                        case EXTRA_DELTA_SOURCE: deltaSource = value; break;
+                        case EXTRA_DELTA_URL: deltaUrl = value; break;
+                        case EXTRA_DELTA_MD5: deltaMd5 = value; break;
+                        case EXTRA_DELTA_SIZE: deltaSize = parseLong(value); break;
+                        case EXTRA_CHANGELOG_URL: changeLogUrl = value; break;
+                        default: break; // written by a newer version
+                    }
+                }
+
+                UpdateInfo.Type type = typeOrdinal < types.length
+                        ? types[typeOrdinal] : UpdateInfo.Type.UNKNOWN;
+                String url = urlPrefix != null ? urlPrefix + urlFile : null;
+                UpdateInfo ui = new UpdateInfo(fileName, date, apiLevel, url, md5, type);
+                ui.setFileSize(fileSize);
+                ui.setChangeLogUrl(changeLogUrl);
+                if (deltaUrl != null) {
+                    ui.setDelta(deltaSource, deltaUrl, deltaMd5, deltaSize);
+                }
+                updates.add(ui);
+            }
+            return updates;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated state file", e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt state file", e);
+        }
+    }
+
+    private static int writeExtra(ByteArrayOutputStream out, int tag, String value,
+            ArrayList<String> strings, HashMap<String, Integer> index) {
+        if (value == null) {
+            return 0;
+        }
+        out.write(tag);
+        writeVarint(out, intern(value, strings, index));
+        return 1;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int intern(String s, ArrayList<String> strings, HashMap<String, Integer> index) {
+        Integer i = index.get(s);
+        if (i == null) {
+            i = strings.size();
+            strings.add(s);
+            index.put(s, i);
+        }
+        return i;
+    }
+
+    private static int internOptional(String s, ArrayList<String> strings,
+            HashMap<String, Integer> index) {
+        return s == null ? 0 : intern(s, strings, index) + 1;
+    }
+
+    private static String optional(String[] strings, int i) {
+        return i == 0 ? null : strings[i - 1];
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Read a count of items that take at least minBytes each.
+     */
+    private static int readCount(ByteBuffer buffer, int minBytes) throws IOException {
+        int count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining() / minBytes) {
+            throw new IOException("Corrupt state file, invalid count " + count);
+        }
+        return count;
+    }
+
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        writeInt(out, (int) (value >>> 32));
+        writeInt(out, (int) value);
+    }
+}
@@ -9,14 +9,12 @@
 
 package com.exodus.updater.misc;
 
-import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
 import com.exodus.updater.utils.Utils;
 
-import java.io.File;
 import java.io.Serializable;
 
 public class UpdateInfo implements Parcelable, Serializable {
@@ -37,6 +35,14 @@ public class UpdateInfo implements Parcelable, Serializable {
     private long mBuildDate;
     private String mDownloadUrl;
     private String mMd5Sum;
+    private long mFileSize = -1;
+    private String mChangeLogUrl;
+
+    // Optional patch that turns an older build into this one
+    private String mDeltaSourceFileName;
+    private String mDeltaUrl;
+    private String mDeltaMd5Sum;
+    private long mDeltaSize = -1;
 
     private Boolean mIsNewerThanInstalled;
 
@@ -58,10 +64,6 @@ public class UpdateInfo implements Parcelable, Serializable {
         readFromParcel(in);
     }
 
-    public File getChangeLogFile(Context context) {
-        return new File(context.getCacheDir(), mFileName + ".changelog");
-    }
-
     /**
      * Get name for UI display
      */
@@ -90,6 +92,13 @@ public class UpdateInfo implements Parcelable, Serializable {
         return mMd5Sum;
     }
 
+    /**
+     * Get API level
+     */
+    public int getApiLevel() {
+        return mApiLevel;
+    }
+
     /**
      * Get build date
      */
@@ -104,6 +113,83 @@ public class UpdateInfo implements Parcelable, Serializable {
         return mDownloadUrl;
     }
 
+    /**
+     * Get size of the full download in bytes, -1 if unknown
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public void setFileSize(long size) {
+        mFileSize = size;
+    }
+
+    /**
+     * Get change log location. Unless the server names one, the change log
+     * is expected next to the download.
+     */
+    public String getChangeLogUrl() {
+        return mChangeLogUrl != null ? mChangeLogUrl : mDownloadUrl + ".changelog";
+    }
+
+    public void setChangeLogUrl(String url) {
+        mChangeLogUrl = url;
+    }
+
+    public boolean hasChangeLogUrl() {
+        return mChangeLogUrl != null;
+    }
+
+    /**
+     * Offer a patch that rebuilds this update from the build in sourceFileName.
+     */
+    public void setDelta(String sourceFileName, String url, String md5, long size) {
+        mDeltaSourceFileName = sourceFileName;
+        mDeltaUrl = url;
+        mDeltaMd5Sum = md5;
+        mDeltaSize = size;
+    }
+
+    /**
+     * Mark the sizes of an object read from a legacy state file as unknown
+     * if they weren't stored. Deserialization skips the field initializers,
+     * so sizes missing from the stream read as 0 instead of -1.
+     */
+    void resetUnstoredSizes() {
+        if (mFileSize == 0) {
+            mFileSize = -1;
+        }
+        if (mDeltaSize == 0) {
+            mDeltaSize = -1;
+        }
+    }
+
+    public boolean hasDelta() {
+        return mDeltaUrl != null;
+    }
+
+    /**
+     * Get file name of the build the delta patch applies to
+     */
+    public String getDeltaSourceFileName() {
+        return mDeltaSourceFileName;
+    }
+
+    public String getDeltaUrl() {
+        return mDeltaUrl;
+    }
+
+    public String getDeltaMD5Sum() {
+        return mDeltaMd5Sum;
+    }
+
+    /**
+     * Get size of the delta patch in bytes, -1 if unknown
+     */
+    public long getDeltaSize() {
+        return mDeltaSize;
+    }
+
     public boolean isNewerThanInstalled() {
         if (mIsNewerThanInstalled != null) {
             return mIsNewerThanInstalled;
@@ -135,6 +221,14 @@ public class UpdateInfo implements Parcelable, Serializable {
         return uiName.replaceAll("-" + deviceType + "-?", "");
     }
 
+    /**
+     * Whether other is the same build, whatever server, mirror or delta
+     * patch it is offered through.
+     */
+    public boolean isSameBuild(UpdateInfo other) {
+        return TextUtils.equals(mFileName, other.mFileName) && mBuildDate == other.mBuildDate;
+    }
+
     @Override
     public String toString() {
         return "UpdateInfo: " + mFileName;
@@ -155,7 +249,17 @@ public class UpdateInfo implements Parcelable, Serializable {
                 && mType.equals(ui.mType)
                 && mBuildDate == ui.mBuildDate
                 && TextUtils.equals(mDownloadUrl, ui.mDownloadUrl)
-                && TextUtils.equals(mMd5Sum, ui.mMd5Sum);
+                && TextUtils.equals(mMd5Sum, ui.mMd5Sum)
+                && TextUtils.equals(mDeltaUrl, ui.mDeltaUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        // The file name and date tell builds apart, the urls rarely do
+        int result = mFileName != null ? mFileName.hashCode() : 0;
+        result = 31 * result + (mType != null ? mType.ordinal() : 0);
+        result = 31 * result + (int) (mBuildDate ^ (mBuildDate >>> 32));
+        return result;
     }
 
     public static final Parcelable.Creator<UpdateInfo> CREATOR = new Parcelable.Creator<UpdateInfo>() {
@@ -182,6 +286,12 @@ public class UpdateInfo implements Parcelable, Serializable {
         out.writeLong(mBuildDate);
         out.writeString(mDownloadUrl);
         out.writeString(mMd5Sum);
+        out.writeLong(mFileSize);
+        out.writeString(mChangeLogUrl);
+        out.writeString(mDeltaSourceFileName);
+        out.writeString(mDeltaUrl);
+        out.writeString(mDeltaMd5Sum);
+        out.writeLong(mDeltaSize);
     }
 
     private void readFromParcel(Parcel in) {
@@ -192,5 +302,11 @@ public class UpdateInfo implements Parcelable, Serializable {
         mBuildDate = in.readLong();
         mDownloadUrl = in.readString();
         mMd5Sum = in.readString();
+        mFileSize = in.readLong();
+        mChangeLogUrl = in.readString();
+        mDeltaSourceFileName = in.readString();
+        mDeltaUrl = in.readString();
+        mDeltaMd5Sum = in.readString();
+        mDeltaSize = in.readLong();
     }
 }
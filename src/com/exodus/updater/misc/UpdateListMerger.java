@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.misc;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.exodus.updater.misc.Reversed.reversed;
+
+/**
+ * Builds the list of updates shown to the user from the downloaded files
+ * and the builds the server offers.
+ */
+public class UpdateListMerger {
+    // Older builds than this are only listed if downloaded or installed
+    private static final int MAX_AVAILABLE = 14;
+
+    private static final Comparator<UpdateInfo> NEWEST_FIRST = new Comparator<UpdateInfo>() {
+        @Override
+        public int compare(UpdateInfo lhs, UpdateInfo rhs) {
+            // sort in descending 'UI name' order (newest first)
+            return -lhs.getName().compareTo(rhs.getName());
+        }
+    };
+
+    /**
+     * Merge the downloaded files with the available updates, oldest first
+     * as the server lists them, into one list sorted newest first. Builds
+     * that were downloaded are only listed once.
+     */
+    public static LinkedList<UpdateInfo> merge(Collection<String> downloadedFiles,
+            List<UpdateInfo> availableUpdates, String installedZip) {
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        for (String fileName : downloadedFiles) {
+            updates.add(new UpdateInfo(fileName));
+        }
+
+        int versions = 0;
+        for (UpdateInfo update : reversed(availableUpdates)) {
+            // Only add updates to the list that are not already downloaded
+            versions++;
+            if (downloadedFiles.contains(update.getFileName()) ||
+                    (!update.getFileName().equals(installedZip) && versions > MAX_AVAILABLE)) {
+                continue;
+            }
+            updates.add(update);
+        }
+
+        Collections.sort(updates, NEWEST_FIRST);
+        return updates;
+    }
+}
@@ -22,6 +22,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Parcelable;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
@@ -31,7 +32,10 @@ import com.exodus.updater.UpdateApplication;
 import com.exodus.updater.UpdatesSettings;
 import com.exodus.updater.misc.Constants;
 import com.exodus.updater.misc.UpdateInfo;
-import com.exodus.updater.utils.MD5;
+import com.exodus.updater.service.DownloadService;
+import com.exodus.updater.service.DownloadVerifyService;
+import com.exodus.updater.utils.DeltaPatcher;
+import com.exodus.updater.utils.UpdateMetrics;
 import com.exodus.updater.utils.Utils;
 
 import java.io.File;
@@ -42,6 +46,8 @@ public class DownloadReceiver extends BroadcastReceiver{
 
     public static final String ACTION_START_DOWNLOAD = "com.exodus.exodusupdater.action.START_DOWNLOAD";
     public static final String EXTRA_UPDATE_INFO = "update_info";
+    // extra for ACTION_START_DOWNLOAD: download the full update even if a delta is available
+    public static final String EXTRA_FULL_DOWNLOAD = "full_download";
 
     public static final String ACTION_DOWNLOAD_STARTED = "com.exodus.exodusupdater.action.DOWNLOAD_STARTED";
 
@@ -55,7 +61,8 @@ public class DownloadReceiver extends BroadcastReceiver{
 
         if (ACTION_START_DOWNLOAD.equals(action)) {
             UpdateInfo ui = (UpdateInfo) intent.getParcelableExtra(EXTRA_UPDATE_INFO);
-            handleStartDownload(context, prefs, ui);
+            boolean fullDownload = intent.getBooleanExtra(EXTRA_FULL_DOWNLOAD, false);
+            handleStartDownload(context, prefs, ui, fullDownload);
         } else if (DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(action)) {
             long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
             handleDownloadComplete(context, prefs, id);
@@ -74,7 +81,40 @@ public class DownloadReceiver extends BroadcastReceiver{
         }
     }
 
-    private void handleStartDownload(Context context, SharedPreferences prefs, UpdateInfo ui) {
+    private void handleStartDownload(Context context, SharedPreferences prefs, UpdateInfo ui,
+            boolean fullDownload) {
+        // Prefer the patch if we have the build it applies to
+        File deltaSource = fullDownload ? null : Utils.getDeltaSource(ui);
+        String deltaSourcePath = deltaSource != null ? deltaSource.getAbsolutePath() : null;
+
+        long downloadId;
+        if (prefs.getBoolean(Constants.IN_APP_DOWNLOAD_PREF, false)) {
+            Intent serviceIntent = new Intent(context, DownloadService.class);
+            serviceIntent.setAction(DownloadService.ACTION_DOWNLOAD);
+            serviceIntent.putExtra(DownloadService.EXTRA_UPDATE_INFO, (Parcelable) ui);
+            serviceIntent.putExtra(DownloadService.EXTRA_DELTA_SOURCE, deltaSourcePath);
+            context.startService(serviceIntent);
+            downloadId = DownloadService.DOWNLOAD_ID;
+        } else {
+            downloadId = enqueueDownload(context, ui, deltaSource != null);
+        }
+
+        // Store in shared preferences
+        prefs.edit()
+                .putLong(Constants.DOWNLOAD_ID, downloadId)
+                .putString(Constants.DOWNLOAD_MD5,
+                        deltaSource != null ? ui.getDeltaMD5Sum() : ui.getMD5Sum())
+                .putString(Constants.DOWNLOAD_DELTA_SOURCE, deltaSourcePath)
+                .apply();
+
+        Utils.cancelNotification(context);
+
+        Intent intent = new Intent(ACTION_DOWNLOAD_STARTED);
+        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, downloadId);
+        context.sendBroadcast(intent);
+    }
+
+    private long enqueueDownload(Context context, UpdateInfo ui, boolean delta) {
         // If directory doesn't exist, create it
         File directory = Utils.makeUpdateFolder();
         if (!directory.exists()) {
@@ -83,10 +123,12 @@ public class DownloadReceiver extends BroadcastReceiver{
         }
 
         // Build the name of the file to download, adding .partial at the end.  It will get
-        // stripped off when the download completes
-        String fullFilePath = "file://" + directory.getAbsolutePath() + "/" + ui.getFileName() + ".partial";
+        // stripped off when the download completes. A patch is rebuilt into the full update
+        // once verified.
+        String fileName = delta ? ui.getFileName() + DeltaPatcher.PATCH_SUFFIX : ui.getFileName();
+        String fullFilePath = "file://" + directory.getAbsolutePath() + "/" + fileName + ".partial";
 
-        Request request = new Request(Uri.parse(ui.getDownloadUrl()));
+        Request request = new Request(Uri.parse(delta ? ui.getDeltaUrl() : ui.getDownloadUrl()));
         String userAgent = Utils.getUserAgentString(context);
         if (userAgent != null) {
             request.addRequestHeader("User-Agent", userAgent);
@@ -104,19 +146,7 @@ public class DownloadReceiver extends BroadcastReceiver{
         // Start the download
         final DownloadManager dm =
                 (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-        long downloadId = dm.enqueue(request);
-
-        // Store in shared preferences
-        prefs.edit()
-                .putLong(Constants.DOWNLOAD_ID, downloadId)
-                .putString(Constants.DOWNLOAD_MD5, ui.getMD5Sum())
-                .apply();
-
-        Utils.cancelNotification(context);
-
-        Intent intent = new Intent(ACTION_DOWNLOAD_STARTED);
-        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, downloadId);
-        context.sendBroadcast(intent);
+        return dm.enqueue(request);
     }
 
     private void handleDownloadComplete(Context context, SharedPreferences prefs, long id) {
@@ -141,12 +171,6 @@ public class DownloadReceiver extends BroadcastReceiver{
         }
 
         final int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
-        int failureMessageResId = -1;
-        File updateFile = null;
-
-        Intent updateIntent = new Intent(context, UpdatesSettings.class);
-        updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP |
-                Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
 
         if (status == DownloadManager.STATUS_SUCCESSFUL) {
             // Get the full path name of the downloaded file and the MD5
@@ -157,41 +181,64 @@ public class DownloadReceiver extends BroadcastReceiver{
             String completedFileFullPath = partialFileFullPath.replace(".partial", "");
 
             File partialFile = new File(partialFileFullPath);
-            updateFile = new File(completedFileFullPath);
+            File updateFile = new File(completedFileFullPath);
             partialFile.renameTo(updateFile);
 
             String downloadedMD5 = prefs.getString(Constants.DOWNLOAD_MD5, "");
 
-            // Start the MD5 check of the downloaded file
-            if (MD5.checkMD5(downloadedMD5, updateFile)) {
-                // We passed. Bring the main app to the foreground and trigger download completed
-                updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_ID, id);
-                updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_PATH, completedFileFullPath);
-            } else {
-                // We failed. Clear the file and reset everything
-                dm.remove(id);
-
-                if (updateFile.exists()) {
-                    updateFile.delete();
-                }
-
-                failureMessageResId = R.string.md5_verification_failed;
+            // Hashing the whole file takes far too long for a receiver, let the
+            // verification service do it and report the result
+            Intent verifyIntent = new Intent(context, DownloadVerifyService.class);
+            verifyIntent.putExtra(DownloadVerifyService.EXTRA_DOWNLOAD_ID, id);
+            verifyIntent.putExtra(DownloadVerifyService.EXTRA_FILE_PATH, completedFileFullPath);
+            verifyIntent.putExtra(DownloadVerifyService.EXTRA_MD5, downloadedMD5);
+            verifyIntent.putExtra(DownloadVerifyService.EXTRA_DELTA_SOURCE,
+                    prefs.getString(Constants.DOWNLOAD_DELTA_SOURCE, null));
+            context.startService(verifyIntent);
+            long size = c.getLong(c.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+            if (size > 0) {
+                UpdateMetrics.getInstance(context).record(UpdateMetrics.DOWNLOAD_BYTES, size);
             }
         } else if (status == DownloadManager.STATUS_FAILED) {
             // The download failed, reset
+            int reason = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_REASON));
+            UpdateMetrics.getInstance(context).recordFailure(
+                    UpdateMetrics.FAILURE_DOWNLOAD_MANAGER + reason);
             dm.remove(id);
-
-            failureMessageResId = R.string.unable_to_download_file;
         }
 
         // Clear the shared prefs
         prefs.edit()
                 .remove(Constants.DOWNLOAD_MD5)
                 .remove(Constants.DOWNLOAD_ID)
+                .remove(Constants.DOWNLOAD_DELTA_SOURCE)
                 .apply();
 
         c.close();
 
+        if (status == DownloadManager.STATUS_FAILED) {
+            notifyDownloadResult(context, id, null, R.string.unable_to_download_file);
+        }
+    }
+
+    /**
+     * Tell the user about a finished download: bring the updater to the front
+     * if it is visible, otherwise post a notification. A failureMessageResId
+     * of -1 means the download at updateFile was verified successfully.
+     */
+    public static void notifyDownloadResult(Context context, long id, File updateFile,
+            int failureMessageResId) {
+        Intent updateIntent = new Intent(context, UpdatesSettings.class);
+        updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP |
+                Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+
+        if (failureMessageResId < 0) {
+            // We passed. Bring the main app to the foreground and trigger download completed
+            updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_ID, id);
+            updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_PATH,
+                    updateFile.getAbsolutePath());
+        }
+
         final UpdateApplication app = (UpdateApplication) context.getApplicationContext();
         if (app.isMainActivityActive()) {
             if (failureMessageResId >= 0) {
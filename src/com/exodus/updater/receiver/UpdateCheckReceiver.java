@@ -13,12 +13,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.exodus.updater.misc.Constants;
 import com.exodus.updater.GappsCheckerActivity;
+import com.exodus.updater.service.UpdateCheckJobService;
 import com.exodus.updater.service.UpdateCheckService;
 import com.exodus.updater.utils.Utils;
 
@@ -42,16 +42,13 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
             }
         }
 
-        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
-            // Connectivity has changed
-            boolean hasConnection = !intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
-            Log.i(TAG, "Got connectivity change, has connection: " + hasConnection);
-            if (!hasConnection) {
-                return;
-            }
-        } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
-            // We just booted. Store the boot check state
-            prefs.edit().putBoolean(Constants.BOOT_CHECK_COMPLETED, false).apply();
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            // We just booted. Store the boot check state and forget about
+            // failures before the reboot
+            prefs.edit()
+                    .putBoolean(Constants.BOOT_CHECK_COMPLETED, false)
+                    .remove(Constants.CHECK_FAILURE_COUNT_PREF)
+                    .apply();
 
             if (!Utils.areGappsInstalled(context)) {
                 // Check for Gapps install && open message in the case of their absence
@@ -66,26 +63,14 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
             Intent i = new Intent(context, UpdateCheckService.class);
             i.setAction(UpdateCheckService.ACTION_CHECK);
             i.putExtra("isFromQuicksettings", 1);
+            i.putExtra(UpdateCheckService.EXTRA_USER_REQUEST, true);
             context.startService(i);
             return;
         }
 
-        // Handle the actual update check based on the defined frequency
-        if (updateFrequency == Constants.UPDATE_FREQ_AT_BOOT) {
-            boolean bootCheckCompleted = prefs.getBoolean(Constants.BOOT_CHECK_COMPLETED, false);
-            if (!bootCheckCompleted) {
-                Log.i(TAG, "Start an on-boot check");
-                Intent i = new Intent(context, UpdateCheckService.class);
-                i.setAction(UpdateCheckService.ACTION_CHECK);
-                context.startService(i);
-            } else {
-                // Nothing to do
-                Log.i(TAG, "On-boot update check was already completed.");
-                return;
-            }
-        } else if (updateFrequency > 0) {
-            Log.i(TAG, "Scheduling future, repeating update checks.");
-            Utils.scheduleUpdateService(context, updateFrequency * 1000);
-        }
+        // The job waits for a network connection, so checks that were due
+        // while the device was offline run once it is back online
+        Log.i(TAG, "Scheduling the next update check.");
+        UpdateCheckJobService.schedule(context);
     }
 }
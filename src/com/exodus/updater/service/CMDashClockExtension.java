@@ -21,11 +21,13 @@ import com.exodus.updater.misc.UpdateInfo;
 import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.List;
 
-public class CMDashClockExtension extends DashClockExtension {
+public class CMDashClockExtension extends DashClockExtension
+        implements State.OnStateChangedListener {
     private static final String TAG = "VanirDashClockExtension";
 
     public static final String ACTION_DATA_UPDATE = "com.exodus.updater.action.DASHCLOCK_DATA_UPDATE";
@@ -38,11 +40,26 @@ public class CMDashClockExtension extends DashClockExtension {
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
         mInitialized = true;
+        State.addOnStateChangedListener(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        State.removeOnStateChangedListener(this);
+        super.onDestroy();
+    }
+
+    @Override
+    public void onStateChanged(List<UpdateInfo> updates) {
+        if (mInitialized) {
+            onUpdateData(UPDATE_REASON_CONTENT_CHANGED);
+        }
     }
 
     @Override
     protected void onUpdateData(int reason) {
-        LinkedList<UpdateInfo> updates = State.loadState(this);
+        // Served from the in-memory snapshot, copied since it gets sorted below
+        List<UpdateInfo> updates = new ArrayList<UpdateInfo>(State.getUpdates(this));
 
         Log.d(TAG, "Update dash clock for " + updates.size() + " updates");
 
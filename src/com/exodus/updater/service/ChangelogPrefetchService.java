@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.service;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import com.exodus.updater.misc.State;
+import com.exodus.updater.utils.ChangelogFetcher;
+
+/**
+ * Fetches the change logs an update check left out, while the device is idle
+ * on an unmetered network.
+ */
+public class ChangelogPrefetchService extends JobService {
+    private static final String TAG = "ChangelogPrefetchService";
+
+    private static final int JOB_ID = 1;
+
+    private ChangelogFetcher mFetcher;
+    private Thread mThread;
+
+    public static void schedule(Context context) {
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, ChangelogPrefetchService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresDeviceIdle(true)
+                .build();
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final ChangelogFetcher fetcher = new ChangelogFetcher(this);
+        mFetcher = fetcher;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int fetched = fetcher.fetch(State.getUpdates(ChangelogPrefetchService.this));
+                Log.d(TAG, "Prefetched " + fetched + " change logs");
+                if (!fetcher.isCancelled()) {
+                    jobFinished(params, false);
+                }
+            }
+        }, TAG);
+        mThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The device left idle or the network changed, try again later
+        mFetcher.cancel();
+        mThread.interrupt();
+        return true;
+    }
+}
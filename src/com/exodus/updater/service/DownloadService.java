@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.service;
+
+import android.app.DownloadManager;
+import android.app.IntentService;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.exodus.updater.R;
+import com.exodus.updater.UpdatesSettings;
+import com.exodus.updater.misc.Constants;
+import com.exodus.updater.misc.UpdateInfo;
+import com.exodus.updater.receiver.DownloadReceiver;
+import com.exodus.updater.utils.DeltaPatcher;
+import com.exodus.updater.utils.DownloadProgressObserver;
+import com.exodus.updater.utils.HttpConnector;
+import com.exodus.updater.utils.HttpDownloader;
+import com.exodus.updater.utils.MD5;
+import com.exodus.updater.utils.MirrorSelector;
+import com.exodus.updater.utils.TransferRate;
+import com.exodus.updater.utils.UpdateMetrics;
+import com.exodus.updater.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * Built-in alternative to DownloadManager.
+ *
+ * Interrupted downloads are continued where they stopped instead of starting
+ * over, and large files are fetched over several connections in parallel,
+ * see {@link HttpDownloader}. Progress is reported with DownloadManager
+ * status codes so the UI can treat both downloaders alike.
+ */
+public class DownloadService extends IntentService implements HttpDownloader.Listener {
+    private static final String TAG = "DownloadService";
+
+    public static final String ACTION_DOWNLOAD = "com.exodus.exodusupdater.action.DOWNLOAD";
+    public static final String ACTION_CANCEL_DOWNLOAD = "com.exodus.exodusupdater.action.CANCEL_DOWNLOAD";
+    public static final String EXTRA_UPDATE_INFO = "update_info";
+    // Optional path of the local build to download the update's delta patch for
+    public static final String EXTRA_DELTA_SOURCE = "delta_source";
+
+    // Stands in for a DownloadManager id in preferences and broadcasts
+    public static final long DOWNLOAD_ID = Long.MAX_VALUE;
+
+    private static final String EXTRA_SEQUENCE = "sequence";
+    private static final int NOTIFICATION_ID = R.string.not_downloading_update;
+    private static final long PROGRESS_INTERVAL_MS = 200;
+    private static final long NOTIFICATION_INTERVAL_MS = 1000;
+    private static final int NOTIFICATION_PROGRESS_MAX = 1000;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the main thread
+    private static String sActiveFileName;
+    private static DownloadProgressObserver.OnProgressListener sProgressListener;
+    private static int sLastStatus;
+    private static long sLastDownloaded = -1;
+    private static long sLastTotal = -1;
+    private static long sLastRate = -1;
+    private static long sLastEta = -1;
+
+    private int mStartCount = 0;
+    private volatile int mCancelledUpTo = 0;
+    private volatile HttpDownloader mDownloader;
+
+    private final TransferRate mRate = new TransferRate();
+    private Notification.Builder mNotificationBuilder;
+    private long mLastProgressTime;
+    private long mLastNotificationTime;
+
+    public DownloadService() {
+        super("DownloadService");
+    }
+
+    /**
+     * Returns the name of the update being downloaded or queued, or null.
+     * Must be called on the main thread.
+     */
+    public static String getActiveFileName() {
+        return sActiveFileName;
+    }
+
+    /**
+     * Follow the progress of the current download. The listener is called on
+     * the main thread, right away with the last known state if a download is
+     * running. Pass null to stop listening.
+     */
+    public static void setProgressListener(DownloadProgressObserver.OnProgressListener listener) {
+        sProgressListener = listener;
+        if (listener != null && sActiveFileName != null) {
+            listener.onProgress(sLastStatus, sLastDownloaded, sLastTotal, sLastRate, sLastEta);
+        }
+    }
+
+    /**
+     * Report a download of this service that failed verification after
+     * STATUS_SUCCESSFUL was published, so the UI stops showing it as running.
+     */
+    public static void reportVerificationFailed() {
+        publishProgress(DownloadManager.STATUS_FAILED, -1, -1, -1, -1);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (TextUtils.equals(intent.getAction(), ACTION_CANCEL_DOWNLOAD)) {
+            // Also covers downloads that are still queued
+            mCancelledUpTo = mStartCount;
+            HttpDownloader downloader = mDownloader;
+            if (downloader != null) {
+                Log.d(TAG, "Cancelling download");
+                downloader.cancel();
+            }
+            sActiveFileName = null;
+            return START_NOT_STICKY;
+        }
+
+        UpdateInfo ui = (UpdateInfo) intent.getParcelableExtra(EXTRA_UPDATE_INFO);
+        if (ui == null) {
+            return START_NOT_STICKY;
+        }
+        intent.putExtra(EXTRA_SEQUENCE, ++mStartCount);
+        sActiveFileName = ui.getFileName();
+        publishProgress(DownloadManager.STATUS_PENDING, -1, -1, -1, -1);
+
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent.getIntExtra(EXTRA_SEQUENCE, 0) <= mCancelledUpTo) {
+            return;
+        }
+
+        final UpdateInfo ui = (UpdateInfo) intent.getParcelableExtra(EXTRA_UPDATE_INFO);
+        final String deltaSource = intent.getStringExtra(EXTRA_DELTA_SOURCE);
+        final Resources res = getResources();
+
+        File directory = Utils.makeUpdateFolder();
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        // The .partial suffix gets stripped off when the download completes. A patch
+        // is rebuilt into the full update once verified.
+        String fileName = deltaSource != null
+                ? ui.getFileName() + DeltaPatcher.PATCH_SUFFIX : ui.getFileName();
+        final File partialFile = new File(directory, fileName + ".partial");
+        final File updateFile = new File(directory, fileName);
+
+        MessageDigest digest = MD5.newDigest();
+        HttpDownloader downloader = new HttpDownloader(HttpConnector.getInstance(this),
+                deltaSource != null ? ui.getDeltaUrl() : ui.getDownloadUrl(),
+                partialFile, digest, this);
+        downloader.setRetryPolicy(res.getInteger(R.integer.conf_download_max_retries),
+                res.getInteger(R.integer.conf_download_retry_backoff_ms));
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        downloader.setConnectionCount(prefs.getInt(Constants.DOWNLOAD_CONNECTIONS_PREF,
+                res.getInteger(R.integer.conf_download_connections)));
+        MirrorSelector mirrors = null;
+        if (!UpdateCheckService.isJsonApi(res.getString(R.string.conf_update_server_url))) {
+            mirrors = MirrorSelector.getInstance(this);
+            downloader.setMirrors(mirrors.getAlternateUrls(downloader.getCurrentUrl()));
+        }
+        mDownloader = downloader;
+
+        mNotificationBuilder = new Notification.Builder(this)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(res.getString(R.string.not_downloading_update))
+                .setContentText(UpdateInfo.extractUiName(ui.getFileName()))
+                .setContentIntent(PendingIntent.getActivity(this, 0,
+                        new Intent(this, UpdatesSettings.class), 0))
+                .setOngoing(true)
+                .setProgress(0, 0, true);
+        startForeground(NOTIFICATION_ID, mNotificationBuilder.build());
+
+        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.acquire();
+
+        mRate.reset();
+        mLastProgressTime = 0;
+        mLastNotificationTime = 0;
+        UpdateMetrics metrics = UpdateMetrics.getInstance(this);
+        long start = SystemClock.elapsedRealtime();
+        long bytesBefore = Utils.getTrafficBytes();
+        int failureMessageResId = -1;
+        try {
+            downloader.download();
+            if (!partialFile.renameTo(updateFile)) {
+                throw new IOException("Unable to rename " + partialFile + " to " + updateFile);
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "Downloaded " + ui.getFileName() + " in " + elapsed + "ms");
+            long bytesAfter = Utils.getTrafficBytes();
+            if (bytesBefore >= 0 && bytesAfter >= bytesBefore) {
+                metrics.record(UpdateMetrics.DOWNLOAD_BYTES, bytesAfter - bytesBefore);
+                if (elapsed > 0) {
+                    metrics.record(UpdateMetrics.DOWNLOAD_THROUGHPUT,
+                            (bytesAfter - bytesBefore) * 1000 / elapsed);
+                }
+            }
+            if (mirrors != null) {
+                mirrors.reportThroughput(downloader.getCurrentUrl(), mRate.getBytesPerSecond());
+            }
+        } catch (IOException e) {
+            if (downloader.isCancelled()) {
+                // The user gave up on this download, don't keep it around for resuming
+                Log.d(TAG, "Download of " + ui.getFileName() + " cancelled");
+                downloader.discard();
+                return;
+            }
+            // Keep the partial file, a later attempt continues from there
+            Log.e(TAG, "Download of " + ui.getFileName() + " failed", e);
+            metrics.recordFailure(UpdateMetrics.FAILURE_DOWNLOAD_NETWORK);
+            failureMessageResId = R.string.unable_to_download_file;
+        } finally {
+            mDownloader = null;
+            wakeLock.release();
+            stopForeground(true);
+            clearDownloadPrefs();
+        }
+
+        if (failureMessageResId >= 0) {
+            publishProgress(DownloadManager.STATUS_FAILED, -1, -1, -1, -1);
+            final int messageResId = failureMessageResId;
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    clearActiveFileName(ui.getFileName());
+                    DownloadReceiver.notifyDownloadResult(getApplicationContext(), DOWNLOAD_ID,
+                            null, messageResId);
+                }
+            });
+            return;
+        }
+
+        publishProgress(DownloadManager.STATUS_SUCCESSFUL, -1, -1, -1, -1);
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                clearActiveFileName(ui.getFileName());
+            }
+        });
+
+        // The downloader already hashed the file, no need to read it again
+        Intent verifyIntent = new Intent(this, DownloadVerifyService.class);
+        verifyIntent.putExtra(DownloadVerifyService.EXTRA_DOWNLOAD_ID, DOWNLOAD_ID);
+        verifyIntent.putExtra(DownloadVerifyService.EXTRA_FILE_PATH, updateFile.getAbsolutePath());
+        verifyIntent.putExtra(DownloadVerifyService.EXTRA_MD5,
+                deltaSource != null ? ui.getDeltaMD5Sum() : ui.getMD5Sum());
+        verifyIntent.putExtra(DownloadVerifyService.EXTRA_DELTA_SOURCE, deltaSource);
+        verifyIntent.putExtra(DownloadVerifyService.EXTRA_CALCULATED_MD5,
+                MD5.toHex(digest.digest()));
+        startService(verifyIntent);
+    }
+
+    @Override
+    public void onProgress(long downloadedBytes, long totalBytes) {
+        long now = SystemClock.elapsedRealtime();
+        mRate.update(now, downloadedBytes);
+        if (now - mLastProgressTime < PROGRESS_INTERVAL_MS) {
+            return;
+        }
+        mLastProgressTime = now;
+        publishProgress(DownloadManager.STATUS_RUNNING, downloadedBytes, totalBytes,
+                mRate.getBytesPerSecond(), mRate.getEtaMillis(downloadedBytes, totalBytes));
+
+        if (now - mLastNotificationTime >= NOTIFICATION_INTERVAL_MS && totalBytes > 0) {
+            mLastNotificationTime = now;
+            mNotificationBuilder.setProgress(NOTIFICATION_PROGRESS_MAX,
+                    (int) (downloadedBytes * NOTIFICATION_PROGRESS_MAX / totalBytes), false);
+            NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            nm.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+        }
+    }
+
+    @Override
+    public void onFailover(String failedUrl, String nextUrl) {
+        Log.w(TAG, "Download from " + failedUrl + " keeps failing, trying " + nextUrl);
+        MirrorSelector.getInstance(this).reportFailure(failedUrl);
+    }
+
+    private void clearDownloadPrefs() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (prefs.getLong(Constants.DOWNLOAD_ID, -1) == DOWNLOAD_ID) {
+            prefs.edit()
+                    .remove(Constants.DOWNLOAD_ID)
+                    .remove(Constants.DOWNLOAD_MD5)
+                    .remove(Constants.DOWNLOAD_DELTA_SOURCE)
+                    .apply();
+        }
+    }
+
+    private static void clearActiveFileName(String fileName) {
+        // Another download may have been queued in the meantime
+        if (fileName.equals(sActiveFileName)) {
+            sActiveFileName = null;
+        }
+    }
+
+    private static void publishProgress(final int status, final long downloaded,
+            final long total, final long rate, final long eta) {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                sLastStatus = status;
+                sLastDownloaded = downloaded;
+                sLastTotal = total;
+                sLastRate = rate;
+                sLastEta = eta;
+                if (sProgressListener != null) {
+                    sProgressListener.onProgress(status, downloaded, total, rate, eta);
+                }
+            }
+        });
+    }
+}
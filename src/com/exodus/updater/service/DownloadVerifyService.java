@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.service;
+
+import android.app.DownloadManager;
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.exodus.updater.R;
+import com.exodus.updater.misc.State;
+import com.exodus.updater.misc.UpdateInfo;
+import com.exodus.updater.receiver.DownloadReceiver;
+import com.exodus.updater.utils.DeltaPatcher;
+import com.exodus.updater.utils.MD5;
+import com.exodus.updater.utils.UpdateMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * Verifies a finished download in the background and reports the result.
+ *
+ * Downloaders that hash the data while writing it pass the calculated digest
+ * along, in which case the file does not have to be read again. A delta
+ * patch is verified on its own, then applied to the build it was made for;
+ * the rebuilt update is verified like a full download. If that fails, the
+ * full update is downloaded instead.
+ */
+public class DownloadVerifyService extends IntentService {
+    private static final String TAG = "DownloadVerifyService";
+
+    public static final String EXTRA_DOWNLOAD_ID = "download_id";
+    public static final String EXTRA_FILE_PATH = "file_path";
+    public static final String EXTRA_MD5 = "md5";
+    public static final String EXTRA_CALCULATED_MD5 = "calculated_md5";
+    // If set, the file is a delta patch for the build at this path
+    public static final String EXTRA_DELTA_SOURCE = "delta_source";
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public DownloadVerifyService() {
+        super("DownloadVerifyService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final long id = intent.getLongExtra(EXTRA_DOWNLOAD_ID, -1);
+        File downloadedFile = new File(intent.getStringExtra(EXTRA_FILE_PATH));
+        String md5 = intent.getStringExtra(EXTRA_MD5);
+        String calculatedMD5 = intent.getStringExtra(EXTRA_CALCULATED_MD5);
+        String deltaSource = intent.getStringExtra(EXTRA_DELTA_SOURCE);
+
+        UpdateMetrics metrics = UpdateMetrics.getInstance(this);
+        // Downloads hashed while they were written come with their md5, only
+        // time the hashing actually done here
+        if (calculatedMD5 == null) {
+            long start = SystemClock.elapsedRealtime();
+            calculatedMD5 = MD5.calculateMD5(downloadedFile);
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "Hashed " + downloadedFile.getName() + " in " + elapsed + "ms");
+            metrics.record(UpdateMetrics.VERIFY_MS, elapsed);
+        }
+        boolean verified = MD5.checkMD5(md5, calculatedMD5);
+        Log.d(TAG, "Verified " + downloadedFile.getName() + ": " + verified);
+        if (!verified) {
+            metrics.recordFailure(UpdateMetrics.FAILURE_VERIFY_MD5);
+        }
+
+        File updateFile = downloadedFile;
+        if (deltaSource != null) {
+            String patchPath = downloadedFile.getPath();
+            updateFile = new File(patchPath.substring(0,
+                    patchPath.length() - DeltaPatcher.PATCH_SUFFIX.length()));
+            UpdateInfo ui = findUpdate(updateFile.getName());
+
+            String rebuiltMD5 = null;
+            if (verified && ui != null) {
+                rebuiltMD5 = applyDelta(new File(deltaSource), downloadedFile, updateFile);
+            }
+            downloadedFile.delete();
+            if (verified && ui != null && rebuiltMD5 == null) {
+                metrics.recordFailure(UpdateMetrics.FAILURE_DELTA_APPLY);
+            }
+            verified = rebuiltMD5 != null && MD5.checkMD5(ui.getMD5Sum(), rebuiltMD5);
+            if (rebuiltMD5 != null && !verified) {
+                metrics.recordFailure(UpdateMetrics.FAILURE_VERIFY_MD5);
+            }
+
+            if (!verified && ui != null) {
+                Log.w(TAG, "Delta update failed, downloading " + ui.getFileName() + " instead");
+                removeDownload(id);
+                updateFile.delete();
+                Intent fullIntent = new Intent(this, DownloadReceiver.class);
+                fullIntent.setAction(DownloadReceiver.ACTION_START_DOWNLOAD);
+                fullIntent.putExtra(DownloadReceiver.EXTRA_UPDATE_INFO, (Parcelable) ui);
+                fullIntent.putExtra(DownloadReceiver.EXTRA_FULL_DOWNLOAD, true);
+                sendBroadcast(fullIntent);
+                return;
+            }
+        }
+
+        final File resultFile = updateFile;
+        final int failureMessageResId;
+        if (verified) {
+            failureMessageResId = -1;
+        } else {
+            // We failed. Clear the file and reset everything
+            removeDownload(id);
+            if (id == DownloadService.DOWNLOAD_ID) {
+                DownloadService.reportVerificationFailed();
+            }
+            if (resultFile.exists()) {
+                resultFile.delete();
+            }
+            failureMessageResId = R.string.md5_verification_failed;
+        }
+
+        // Toasts and activity starts belong on the main thread
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                DownloadReceiver.notifyDownloadResult(getApplicationContext(), id,
+                        resultFile, failureMessageResId);
+            }
+        });
+    }
+
+    /**
+     * Rebuild target from source and patch. Returns the MD5 of the result,
+     * or null if the patch could not be applied.
+     */
+    private String applyDelta(File source, File patch, File target) {
+        File partial = new File(target.getPath() + ".partial");
+        MessageDigest digest = MD5.newDigest();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            long size = DeltaPatcher.apply(source, patch, partial, digest);
+            if (!partial.renameTo(target)) {
+                throw new IOException("Unable to rename " + partial + " to " + target);
+            }
+            Log.d(TAG, "Rebuilt " + target.getName() + " (" + size + " bytes) from "
+                    + source.getName() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            return MD5.toHex(digest.digest());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to apply " + patch.getName() + " to " + source.getName(), e);
+            partial.delete();
+            return null;
+        }
+    }
+
+    private UpdateInfo findUpdate(String fileName) {
+        for (UpdateInfo ui : State.getUpdates(this)) {
+            if (ui.getFileName().equals(fileName)) {
+                return ui;
+            }
+        }
+        return null;
+    }
+
+    private void removeDownload(long id) {
+        if (id >= 0 && id != DownloadService.DOWNLOAD_ID) {
+            DownloadManager dm = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
+            dm.remove(id);
+        }
+    }
+}
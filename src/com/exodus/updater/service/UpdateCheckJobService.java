@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.service;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.exodus.updater.R;
+import com.exodus.updater.misc.Constants;
+import com.exodus.updater.utils.CheckSchedulePolicy;
+
+import java.util.Random;
+
+/**
+ * Runs the periodic update check. Every check schedules the next one, see
+ * {@link CheckSchedulePolicy} for how the delay is chosen. The job scheduler
+ * may hold the check back to run it together with other work and until the
+ * network and charging constraints the user picked are met.
+ */
+public class UpdateCheckJobService extends JobService {
+    private static final String TAG = "UpdateCheckJobService";
+
+    private static final int JOB_ID = 2;
+
+    /**
+     * Schedule the next update check according to the check frequency, or
+     * cancel it if no more checks are due.
+     */
+    public static void schedule(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int updateFrequency = prefs.getInt(Constants.UPDATE_CHECK_PREF,
+                Constants.UPDATE_FREQ_WEEKLY);
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        if (updateFrequency == Constants.UPDATE_FREQ_NONE
+                || (updateFrequency == Constants.UPDATE_FREQ_AT_BOOT
+                        && prefs.getBoolean(Constants.BOOT_CHECK_COMPLETED, false))) {
+            scheduler.cancel(JOB_ID);
+            return;
+        }
+
+        final Resources res = context.getResources();
+        long lastCheck = prefs.getLong(Constants.LAST_UPDATE_CHECK_PREF, 0);
+        long lastAttempt = prefs.getLong(Constants.LAST_CHECK_ATTEMPT_PREF, 0);
+        int failures = prefs.getInt(Constants.CHECK_FAILURE_COUNT_PREF, 0);
+        long initialBackoff = res.getInteger(R.integer.conf_check_backoff_minutes) * 60000L;
+
+        CheckSchedulePolicy policy = CheckSchedulePolicy.forFrequency(updateFrequency,
+                res.getInteger(R.integer.conf_check_jitter_percent) / 100f,
+                initialBackoff, CheckSchedulePolicy.SYSTEM_CLOCK, new Random());
+        if (policy == null) {
+            scheduler.cancel(JOB_ID);
+            return;
+        }
+        long delay = policy.getDelay(lastCheck, lastAttempt, failures);
+
+        boolean unmeteredOnly = prefs.getBoolean(Constants.CHECK_UNMETERED_ONLY_PREF, false);
+        boolean whileCharging = prefs.getBoolean(Constants.CHECK_WHILE_CHARGING_PREF, false);
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, UpdateCheckJobService.class))
+                .setMinimumLatency(delay)
+                .setRequiredNetworkType(unmeteredOnly
+                        ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(whileCharging)
+                .setPersisted(true);
+        if (!unmeteredOnly && !whileCharging) {
+            // A deadline overrides all constraints, so only bound the wait
+            // if the user did not ask to hold checks back
+            builder.setOverrideDeadline(delay + policy.getFlex(failures));
+        }
+        scheduler.schedule(builder.build());
+
+        Log.i(TAG, "Next update check in " + (delay / 1000) + "s"
+                + (failures > 0 ? " after " + failures + " failed checks" : ""));
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Intent i = new Intent(this, UpdateCheckService.class);
+        i.setAction(UpdateCheckService.ACTION_CHECK);
+        startService(i);
+        // The check schedules the next job once it is done
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
@@ -19,7 +19,10 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.media.RingtoneManager;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -32,6 +35,15 @@ import com.exodus.updater.misc.Constants;
 import com.exodus.updater.misc.State;
 import com.exodus.updater.misc.UpdateInfo;
 import com.exodus.updater.receiver.DownloadReceiver;
+import com.exodus.updater.utils.ChangelogFetcher;
+import com.exodus.updater.utils.BuildListParser;
+import com.exodus.updater.utils.CheckCoordinator;
+import com.exodus.updater.utils.CheckSchedulePolicy;
+import com.exodus.updater.utils.HttpCache;
+import com.exodus.updater.utils.HttpConnector;
+import com.exodus.updater.utils.ManifestParser;
+import com.exodus.updater.utils.MirrorSelector;
+import com.exodus.updater.utils.UpdateMetrics;
 import com.exodus.updater.utils.Utils;
 
 import org.apache.http.HttpEntity;
@@ -50,15 +62,19 @@ import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 
 public class UpdateCheckService extends IntentService {
     private static final String TAG = "UpdateCheckService";
@@ -79,20 +95,49 @@ public class UpdateCheckService extends IntentService {
     public static final String EXTRA_REAL_UPDATE_COUNT = "real_update_count";
     // extra for ACTION_CHECK_FINISHED: amount of updates that were found for the first time
     public static final String EXTRA_NEW_UPDATE_COUNT = "new_update_count";
+    // extra for ACTION_CHECK_FINISHED: true if the check was cancelled
+    public static final String EXTRA_CANCELLED = "cancelled";
+
+    // extra for ACTION_CHECK: true if the user asked for the check, it then isn't
+    // answered from a recent result
+    public static final String EXTRA_USER_REQUEST = "user_request";
+    // extra for ACTION_CHECK: number the coordinator gave the request on arrival
+    private static final String EXTRA_REQUEST_ID = "request_id";
+
+    // Update server urls starting with this speak the JSON build list API
+    // instead of serving a list per device, e.g. "json:https://example.com/api"
+    private static final String JSON_API_PREFIX = "json:";
 
     // max. number of updates listed in the expanded notification
     private static final int EXPANDED_NOTIF_UPDATE_COUNT = 4;
 
     //private HttpRequestExecutor mHttpExecutor;
+    private volatile CancellationSignal mCheckSignal;
+    private CheckCoordinator mCoordinator;
 
     public UpdateCheckService() {
         super("UpdateCheckService");
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        if (TextUtils.equals(intent.getAction(), ACTION_CANCEL_CHECK)) {
+    public void onCreate() {
+        super.onCreate();
+        mCoordinator = new CheckCoordinator(
+                getResources().getInteger(R.integer.conf_check_freshness_seconds) * 1000L,
+                CheckSchedulePolicy.SYSTEM_CLOCK);
+    }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (TextUtils.equals(intent.getAction(), ACTION_CHECK)) {
+            // Requests queued behind a running check are answered by it
+            intent.putExtra(EXTRA_REQUEST_ID, mCoordinator.onRequested());
+        } else if (TextUtils.equals(intent.getAction(), ACTION_CANCEL_CHECK)) {
+            CancellationSignal signal = mCheckSignal;
+            if (signal != null) {
+                Log.d(TAG, "Cancelling the running update check");
+                signal.cancel();
+            }
             return START_NOT_STICKY;
         }
 
@@ -107,14 +152,37 @@ public class UpdateCheckService extends IntentService {
         final boolean updaterIsForeground = app.isMainActivityActive();
 	final boolean fromQuicksettings = intent.hasExtra("isFromQuicksettings");
 
-        if (!Utils.isOnline(this)) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int decision = mCoordinator.decide(intent.getLongExtra(EXTRA_REQUEST_ID, 0),
+                prefs.getLong(Constants.LAST_UPDATE_CHECK_PREF, 0),
+                intent.getBooleanExtra(EXTRA_USER_REQUEST, false));
+        final boolean reuseResult = decision != CheckCoordinator.RUN;
+        if (decision == CheckCoordinator.JOIN && mCoordinator.lastCancelled()) {
+            // Cancelling a check also cancels the requests that were waiting for it
+            Log.i(TAG, "Skipping update check, the previous check was cancelled.");
+            Intent cancelledIntent = new Intent(ACTION_CHECK_FINISHED);
+            cancelledIntent.putExtra(EXTRA_CANCELLED, true);
+            sendBroadcast(cancelledIntent);
+            return;
+        }
+        if (decision == CheckCoordinator.JOIN && !mCoordinator.lastSucceeded()) {
+            // The check this request waited for failed, it gets the same answer
+            Log.i(TAG, "Skipping update check, the previous check just failed.");
+            sendBroadcast(new Intent(ACTION_CHECK_FINISHED));
+            return;
+        }
+
+        if (!reuseResult && !Utils.isOnline(this)) {
             // Only check for updates if the device is actually connected to a network
             Log.i(TAG, "Could not check for updates. Not connected to the network.");
+            UpdateMetrics.getInstance(this).recordFailure(UpdateMetrics.FAILURE_CHECK_OFFLINE);
             if (!updaterIsForeground) {
                 final Context mContext = getApplicationContext();
                 final String cheese = mContext.getString(R.string.update_check_failed);
                 Toast.makeText(mContext, cheese, Toast.LENGTH_SHORT).show();
             }
+            mCoordinator.onFinished(false);
+            recordCheckResult(false);
             return;
         }
 
@@ -123,7 +191,7 @@ public class UpdateCheckService extends IntentService {
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 	Uri soundUri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
 
-        if (fromQuicksettings) {
+        if (fromQuicksettings && !reuseResult) {
             Notification.Builder progress = new Notification.Builder(this)
                     .setSmallIcon(R.drawable.cm_updater)
                     .setWhen(System.currentTimeMillis())
@@ -134,38 +202,85 @@ public class UpdateCheckService extends IntentService {
             nm.notify(progressID, progress.build());
          }
 
-        // Start the update check
+        // Start the update check, unless the last result can be used
         Intent finishedIntent = new Intent(ACTION_CHECK_FINISHED);
         LinkedList<UpdateInfo> availableUpdates;
-        try {
-            availableUpdates = getAvailableUpdatesAndFillIntent(finishedIntent);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not check for updates", e);
-            availableUpdates = null;
-            if (!updaterIsForeground) nm.cancel(progressID);
+        if (reuseResult) {
+            Log.i(TAG, decision == CheckCoordinator.JOIN
+                    ? "Sharing the result of the update check that just finished."
+                    : "The last update check is recent, reusing its result.");
+            availableUpdates = getLastUpdatesAndFillIntent(finishedIntent);
+            // A check started by the scheduled job still has to plan the next one
+            UpdateCheckJobService.schedule(this);
+        } else {
+            HttpConnector connector = HttpConnector.getInstance(this);
+            int requestsBefore = connector.getRequestCount();
+            int tlsRequestsBefore = connector.getTlsRequestCount();
+            int handshakesBefore = connector.getTlsHandshakeCount();
+            UpdateMetrics metrics = UpdateMetrics.getInstance(this);
+            long start = SystemClock.elapsedRealtime();
+            long bytesBefore = Utils.getTrafficBytes();
+            CancellationSignal signal = new CancellationSignal();
+            mCheckSignal = signal;
+            try {
+                availableUpdates = getAvailableUpdatesAndFillIntent(finishedIntent, signal);
+                metrics.record(UpdateMetrics.CHECK_TOTAL_MS, SystemClock.elapsedRealtime() - start);
+                long bytesAfter = Utils.getTrafficBytes();
+                if (bytesBefore >= 0 && bytesAfter >= bytesBefore) {
+                    metrics.record(UpdateMetrics.CHECK_BYTES, bytesAfter - bytesBefore);
+                }
+            } catch (OperationCanceledException e) {
+                // Nothing of the cancelled check was kept, the next one starts over
+                Log.i(TAG, "The update check was cancelled.");
+                mCoordinator.onCancelled();
+                nm.cancel(progressID);
+                UpdateCheckJobService.schedule(this);
+                finishedIntent.putExtra(EXTRA_CANCELLED, true);
+                sendBroadcast(finishedIntent);
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not check for updates", e);
+                metrics.recordFailure(UpdateMetrics.FAILURE_CHECK_NETWORK);
+                availableUpdates = null;
+                if (!updaterIsForeground) nm.cancel(progressID);
+            } finally {
+                mCheckSignal = null;
+                int tlsRequests = connector.getTlsRequestCount() - tlsRequestsBefore;
+                int handshakes = connector.getTlsHandshakeCount() - handshakesBefore;
+                Log.d(TAG, "The update check made "
+                        + (connector.getRequestCount() - requestsBefore) + " requests, "
+                        + tlsRequests + " over TLS with " + handshakes + " handshakes ("
+                        + Math.max(0, tlsRequests - handshakes) + " saved by reused connections)");
+            }
+            mCoordinator.onFinished(availableUpdates != null);
         }
 
         if (availableUpdates == null) {// || mHttpExecutor.isAborted()) {
             if (fromQuicksettings) nm.cancel(progressID);
+            recordCheckResult(false);
             sendBroadcast(finishedIntent);
             return;
         }
 
-        // Store the last update check time and ensure boot check completed is true
-        Date d = new Date();
-        PreferenceManager.getDefaultSharedPreferences(UpdateCheckService.this).edit()
-                .putLong(Constants.LAST_UPDATE_CHECK_PREF, d.getTime())
-                .putBoolean(Constants.BOOT_CHECK_COMPLETED, true)
-                .apply();
-
         int realUpdateCount = finishedIntent.getIntExtra(EXTRA_REAL_UPDATE_COUNT, 0);
 
-        // Write to log
-        Log.i(TAG, "The update check successfully completed at " + d + " and found "
-                + availableUpdates.size() + " updates ("
-                + realUpdateCount + " newer than installed)");
+        if (!reuseResult) {
+            // Store the last update check time and ensure boot check completed is true
+            Date d = new Date();
+            prefs.edit()
+                    .putLong(Constants.LAST_UPDATE_CHECK_PREF, d.getTime())
+                    .putBoolean(Constants.BOOT_CHECK_COMPLETED, true)
+                    .apply();
+            recordCheckResult(true);
+
+            // Write to log
+            Log.i(TAG, "The update check successfully completed at " + d + " and found "
+                    + availableUpdates.size() + " updates ("
+                    + realUpdateCount + " newer than installed)");
+        }
 
-        if (realUpdateCount == 0 && fromQuicksettings) {
+        // A reused result was already announced by the check that produced it
+        if (realUpdateCount == 0 && fromQuicksettings && !reuseResult) {
             Intent i = new Intent(this, UpdatesSettings.class);
             i.putExtra(UpdatesSettings.EXTRA_UPDATE_LIST_UPDATED, true);
             PendingIntent contentIntent = PendingIntent.getActivity(this, 0, i,
@@ -188,7 +303,7 @@ public class UpdateCheckService extends IntentService {
 	    sendBroadcast(finishedIntent);
 	}
 
-	if (realUpdateCount != 0 && !updaterIsForeground) {
+	if (realUpdateCount != 0 && !updaterIsForeground && !reuseResult) {
 	    Intent i = new Intent(this, UpdatesSettings.class);
 	    i.putExtra(UpdatesSettings.EXTRA_UPDATE_LIST_UPDATED, true);
 	    PendingIntent contentIntent = PendingIntent.getActivity(this, 0, i,
@@ -264,6 +379,20 @@ public class UpdateCheckService extends IntentService {
         sendBroadcast(finishedIntent);
     }
 
+    /**
+     * Keep track of failed checks for the backoff and schedule the next
+     * periodic check.
+     */
+    private void recordCheckResult(boolean success) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int failures = success ? 0 : prefs.getInt(Constants.CHECK_FAILURE_COUNT_PREF, 0) + 1;
+        prefs.edit()
+                .putInt(Constants.CHECK_FAILURE_COUNT_PREF, failures)
+                .putLong(Constants.LAST_CHECK_ATTEMPT_PREF, System.currentTimeMillis())
+                .apply();
+        UpdateCheckJobService.schedule(this);
+    }
+
     private void addRequestHeaders(HttpRequestBase request) {
         String userAgent = Utils.getUserAgentString(this);
         if (userAgent != null) {
@@ -272,7 +401,27 @@ public class UpdateCheckService extends IntentService {
         request.addHeader("Cache-Control", "no-cache");
     }
 
-    private LinkedList<UpdateInfo> getAvailableUpdatesAndFillIntent(Intent intent) throws IOException {
+    /**
+     * Answer a check from the stored result of the last successful check.
+     */
+    private LinkedList<UpdateInfo> getLastUpdatesAndFillIntent(Intent intent) {
+        LinkedList<UpdateInfo> updates = State.loadState(this);
+        int realUpdates = 0;
+        for (UpdateInfo ui : updates) {
+            if (ui.isNewerThanInstalled()) {
+                realUpdates++;
+            }
+        }
+
+        intent.putExtra(EXTRA_UPDATE_COUNT, updates.size());
+        intent.putExtra(EXTRA_REAL_UPDATE_COUNT, realUpdates);
+        // Everything was already reported by the check that found it
+        intent.putExtra(EXTRA_NEW_UPDATE_COUNT, 0);
+        return updates;
+    }
+
+    private LinkedList<UpdateInfo> getAvailableUpdatesAndFillIntent(Intent intent,
+            CancellationSignal signal) throws IOException {
         // Get the type of update we should check for
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         //TODO handle releases too!
@@ -280,13 +429,65 @@ public class UpdateCheckService extends IntentService {
 
         LinkedList<UpdateInfo> lastUpdates = State.loadState(this);
 
-        LinkedList<UpdateInfo> updates = getUpdateInfos(getString(R.string.conf_update_server_url)+Utils.getDeviceType()+"/", updateType);
+        // Only ask for an unchanged list if we still have the previous result
+        HttpCache httpCache = new HttpCache(this);
+        if (lastUpdates.isEmpty()) {
+            httpCache.clear();
+        }
+
+        LinkedList<UpdateInfo> updates = null;
+        String serverUrl = getServerUrl(this);
+        if (isJsonApi(serverUrl)) {
+            updates = getUpdateInfos(serverUrl, updateType, httpCache, signal);
+        } else {
+            // Ask the mirrors in the order of their ranking until one answers
+            MirrorSelector mirrors = MirrorSelector.getInstance(this);
+            mirrors.refreshIfStale();
+            IOException lastError = null;
+            for (String mirrorUrl : mirrors.getUrls()) {
+                try {
+                    updates = getUpdateInfos(mirrorUrl, updateType, httpCache, signal);
+                    lastError = null;
+                    break;
+                } catch (IOException e) {
+                    signal.throwIfCanceled();
+                    Log.w(TAG, "Could not read the update list from " + mirrorUrl, e);
+                    mirrors.reportFailure(mirrorUrl);
+                    lastError = e;
+                }
+            }
+            if (lastError != null) {
+                throw lastError;
+            }
+        }
 
         //updates.addAll(getUpdateInfos(getString(R.string.conf_nightly_server_url)+Utils.getDeviceType()+"/", updateType));
 
+        boolean notModified = updates == null;
+        int checks = prefs.getInt(Constants.CHECK_COUNT_PREF, 0) + 1;
+        int notModifiedChecks = prefs.getInt(Constants.CHECK_NOT_MODIFIED_COUNT_PREF, 0)
+                + (notModified ? 1 : 0);
+        prefs.edit()
+                .putInt(Constants.CHECK_COUNT_PREF, checks)
+                .putInt(Constants.CHECK_NOT_MODIFIED_COUNT_PREF, notModifiedChecks)
+                .apply();
+        UpdateMetrics metrics = UpdateMetrics.getInstance(this);
+        metrics.increment(UpdateMetrics.CHECKS);
+        if (notModified) {
+            metrics.increment(UpdateMetrics.CHECKS_NOT_MODIFIED);
+        }
+
+        if (notModified) {
+            // Nothing changed on the server, the stored state is still current
+            Log.d(TAG, "Update list not modified (" + notModifiedChecks + " of "
+                    + checks + " checks answered by 304)");
+            updates = lastUpdates;
+        }
+
         int newUpdates = 0, realUpdates = 0;
         for (UpdateInfo ui : updates) {
-            if (!lastUpdates.contains(ui)) {
+            // A mirror failover or a new delta changes the urls, not the build
+            if (!notModified && !containsBuild(lastUpdates, ui)) {
                 newUpdates++;
             }
             if (ui.isNewerThanInstalled()) {
@@ -299,73 +500,223 @@ public class UpdateCheckService extends IntentService {
         intent.putExtra(EXTRA_REAL_UPDATE_COUNT, realUpdates);
         intent.putExtra(EXTRA_NEW_UPDATE_COUNT, newUpdates);
 
-        State.saveState(this, updates);
+        if (!notModified) {
+            State.saveState(this, updates);
+            httpCache.save();
+        }
 
         return updates;
     }
 
-    private LinkedList<UpdateInfo> getUpdateInfos(String url, int updateType) {
-        Context mContext = getApplicationContext();
+    private static boolean containsBuild(List<UpdateInfo> updates, UpdateInfo ui) {
+        for (UpdateInfo update : updates) {
+            if (update.isSameBuild(ui)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the url the update list of this device is read from, the best
+     * ranked mirror unless the server speaks the JSON API. JSON API urls
+     * keep their prefix, see {@link #isJsonApi(String)}.
+     */
+    public static String getServerUrl(Context context) {
+        String serverUrl = context.getString(R.string.conf_update_server_url);
+        if (isJsonApi(serverUrl)) {
+            return serverUrl;
+        }
+        return MirrorSelector.getInstance(context).getBestUrl();
+    }
+
+    public static boolean isJsonApi(String serverUrl) {
+        return serverUrl.startsWith(JSON_API_PREFIX);
+    }
+
+    /**
+     * Read the update list and fetch the newest change log. Cancelling the
+     * signal makes this throw an OperationCanceledException.
+     */
+    private LinkedList<UpdateInfo> getUpdateInfos(String url, int updateType,
+            HttpCache httpCache, CancellationSignal signal) throws IOException {
         boolean includeAll = true ; //updateType == Constants.UPDATE_TYPE_ALL_NIGHTLY;
             //|| updateType == Constants.UPDATE_TYPE_ALL_STABLE;
-        Log.d(TAG, "Looking for updates at "+url+"exodus_update_list");
-        LinkedList<String> versions = Utils.readMultilineFile(url+getString(R.string.conf_update_filename));
-        LinkedList<UpdateInfo> infos = new LinkedList<UpdateInfo>();        
-        for (String v : versions) {
-            Log.d(TAG, "Fetching info for build "+v);
-            UpdateInfo ui = getUpdateInfo(url, v,mContext);
-            if (ui != null) {
-                if (!includeAll && !ui.isNewerThanInstalled()) {
-                     Log.d(TAG, "Build " + ui.getFileName() + " is older than the installed build");
-                     continue;
-                }
-                infos.add(ui);
-            } else {
-                Log.e(TAG, "getUpdateInfo returned null UpdateInfo");
+        boolean jsonApi = isJsonApi(url);
+        if (jsonApi) {
+            url = url.substring(JSON_API_PREFIX.length());
+            Log.d(TAG, "Asking " + url + " for updates");
+        } else {
+            Log.d(TAG, "Looking for updates at "+url+"exodus_update_list");
+        }
+
+        UpdateListCollector collector = new UpdateListCollector(url, includeAll, signal);
+        if (jsonApi) {
+            readBuildList(url, collector, signal);
+        } else if (!Utils.readUpdateList(this, url + getString(R.string.conf_update_filename),
+                httpCache, new ManifestParser(collector), signal)) {
+            return null;
+        }
+        collector.attachDeltas();
+
+        long start = SystemClock.elapsedRealtime();
+        fetchChangeLogs(collector.mInfos, signal);
+        signal.throwIfCanceled();
+        UpdateMetrics.getInstance(this).record(UpdateMetrics.CHECK_CHANGELOG_MS,
+                SystemClock.elapsedRealtime() - start);
+        return collector.mInfos;
+    }
+
+    /**
+     * Only the change log of the newest build is fetched right away, the
+     * others are prefetched once the device is idle on an unmetered network
+     * or loaded when the user opens them.
+     */
+    private void fetchChangeLogs(List<UpdateInfo> infos, CancellationSignal signal) {
+        UpdateInfo newest = null;
+        for (UpdateInfo ui : infos) {
+            if (newest == null || ui.getDate() > newest.getDate()) {
+                newest = ui;
             }
         }
-        return infos;
+        if (newest == null) {
+            return;
+        }
+
+        final ChangelogFetcher fetcher = new ChangelogFetcher(this);
+        signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                fetcher.cancel();
+            }
+        });
+        try {
+            fetcher.fetch(Collections.singletonList(newest));
+        } finally {
+            signal.setOnCancelListener(null);
+        }
+
+        if (!signal.isCanceled() && !ChangelogFetcher.getMissing(this, infos).isEmpty()) {
+            ChangelogPrefetchService.schedule(this);
+        }
     }
 
-    private UpdateInfo getUpdateInfo(String urlBase, String version,Context mContext) {
-        String[] parts = version.split(";");
-        //Log.v(TAG, "getting update info for: "+urlBase+version+"*");
-        UpdateInfo ui = null;
-        String Filename = parts[0].trim();
-        String md5sum = parts[1].trim(); //Utils.readFile(urlBase+version+".zip.md5");
-        //if (md5sum == null) md5sum = Utils.readFile(urlBase+version+".zip.md5sum");
-        String utcStr = parts[2].trim(); //Utils.readFile(urlBase+version+".utc");
-        String apiStr = parts[3].trim(); //Utils.readFile(urlBase+version+".api");
-        if (md5sum != null && utcStr != null && apiStr != null) {
-            Log.i(TAG, Filename+" INFO -- md5:"+md5sum+" utc:"+utcStr+" api:"+apiStr);
-            try {
-                long utc = Long.valueOf(utcStr).longValue();
-                int api = Integer.valueOf(apiStr).intValue();
-                ui = new UpdateInfo(Filename+".zip", utc, api, urlBase+Filename+".zip", md5sum, UpdateInfo.Type.NIGHTLY);
-                if (!ui.getChangeLogFile(mContext).exists()) {
-                    Utils.DownloadChangelog(ui, mContext);
+    private static class Delta {
+        final String source;
+        final String patchUrl;
+        final String md5;
+        final long size;
+
+        Delta(String source, String patchUrl, String md5, long size) {
+            this.source = source;
+            this.patchUrl = patchUrl;
+            this.md5 = md5;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Turns the parsed update list into UpdateInfos.
+     */
+    private class UpdateListCollector implements ManifestParser.Listener,
+            BuildListParser.Listener {
+        private final String mUrlBase;
+        private final boolean mIncludeAll;
+        private final String mInstalledZip = "exodus-" + Utils.getInstalledVersion() + ".zip";
+        private final HashMap<String, Delta> mDeltas = new HashMap<String, Delta>();
+        private final CancellationSignal mSignal;
+        final LinkedList<UpdateInfo> mInfos = new LinkedList<UpdateInfo>();
+
+        UpdateListCollector(String urlBase, boolean includeAll, CancellationSignal signal) {
+            mUrlBase = urlBase;
+            mIncludeAll = includeAll;
+            mSignal = signal;
+        }
+
+        @Override
+        public void onBuild(String build, String md5, long date, int apiLevel, long size) {
+            Log.i(TAG, build+" INFO -- md5:"+md5+" utc:"+date+" api:"+apiLevel);
+            UpdateInfo ui = new UpdateInfo(build + ".zip", date, apiLevel,
+                    mUrlBase + build + ".zip", md5, UpdateInfo.Type.NIGHTLY);
+            ui.setFileSize(size);
+            addUpdate(ui);
+        }
+
+        @Override
+        public void onUpdate(UpdateInfo ui) {
+            addUpdate(ui);
+        }
+
+        void addUpdate(UpdateInfo ui) {
+            // Stop parsing a list that is already received once cancelled
+            mSignal.throwIfCanceled();
+            if (!mIncludeAll && !ui.isNewerThanInstalled()) {
+                Log.d(TAG, "Build " + ui.getFileName() + " is older than the installed build");
+                return;
+            }
+            mInfos.add(ui);
+        }
+
+        /**
+         * Remember a delta patch if we have the build it applies to. Of several
+         * patches for the same target, the one from the installed build wins,
+         * otherwise the smallest one.
+         */
+        @Override
+        public void onDelta(String fromBuild, String toBuild, String patchFile, String md5,
+                long size) {
+            String source = fromBuild + ".zip";
+            String target = toBuild + ".zip";
+            if (!new File(Utils.makeUpdateFolder(), source).isFile()) {
+                return;
+            }
+
+            Delta current = mDeltas.get(target);
+            if (current != null) {
+                boolean currentFromInstalled = mInstalledZip.equals(current.source);
+                boolean fromInstalled = mInstalledZip.equals(source);
+                if (currentFromInstalled && !fromInstalled) {
+                    return;
+                }
+                if (currentFromInstalled == fromInstalled
+                        && (size < 0 || (current.size >= 0 && current.size <= size))) {
+                    return;
+                }
+            }
+            Log.d(TAG, "Found delta from " + source + " to " + target);
+            mDeltas.put(target, new Delta(source, mUrlBase + patchFile, md5, size));
+        }
+
+        @Override
+        public void onMalformedLine(String line) {
+            Log.w(TAG, "Ignoring malformed update list entry " + line);
+        }
+
+        @Override
+        public void onMalformedEntry(String fileName) {
+            Log.w(TAG, "Ignoring incomplete build entry " + fileName);
+        }
+
+        /**
+         * Deltas may be listed before or after their target, so they can only
+         * be matched up once the whole list was read.
+         */
+        void attachDeltas() {
+            for (UpdateInfo ui : mInfos) {
+                Delta delta = mDeltas.get(ui.getFileName());
+                if (delta != null) {
+                    ui.setDelta(delta.source, delta.patchUrl, delta.md5, delta.size);
                 }
-            } catch (Exception anyexception) {
-                Log.e(TAG, "getUpdateInfo()", anyexception);
             }
-        } else {
-            if (md5sum == null) Log.w(TAG, version+": NO MD5");
-            if (utcStr == null) Log.w(TAG, version+": NO DATE");
-            if (apiStr == null) Log.w(TAG, version+": NO API LEVEL");
         }
-        
-        return ui;
     }
 
-    /*private JSONObject buildUpdateRequest(int updateType) throws JSONException {
+    private JSONObject buildUpdateRequest() throws JSONException {
         JSONArray channels = new JSONArray();
         channels.put("stable");
         channels.put("snapshot");
         channels.put("RC");
-        if (updateType == Constants.UPDATE_TYPE_NEW_NIGHTLY
-                || updateType == Constants.UPDATE_TYPE_ALL_NIGHTLY) {
-            channels.put("nightly");
-        }
+        channels.put("nightly");
 
         JSONObject params = new JSONObject();
         params.put("device", TESTING_DOWNLOAD ? "cmtestdevice" : Utils.getDeviceType());
@@ -378,74 +729,67 @@ public class UpdateCheckService extends IntentService {
         return request;
     }
 
-    private LinkedList<UpdateInfo> parseJSON(String jsonString, int updateType) {
-        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+    /**
+     * Ask the build list API for the builds of all channels. The response is
+     * read as a stream, without building a tree of the whole result.
+     */
+    private void readBuildList(String apiUrl, UpdateListCollector collector,
+            CancellationSignal signal) throws IOException {
+        byte[] body;
         try {
-            JSONObject result = new JSONObject(jsonString);
-            JSONArray updateList = result.getJSONArray("result");
-            int length = updateList.length();
-
-            Log.d(TAG, "Got update JSON data with " + length + " entries");
-
-            for (int i = 0; i < length; i++) {
-                if (mHttpExecutor.isAborted()) {
-                    break;
-                }
-                if (updateList.isNull(i)) {
-                    continue;
-                }
-                JSONObject item = updateList.getJSONObject(i);
-                UpdateInfo info = parseUpdateJSONObject(item, updateType);
-                if (info != null) {
-                    updates.add(info);
-                }
-            }
+            body = buildUpdateRequest().toString().getBytes("UTF-8");
         } catch (JSONException e) {
-            Log.e(TAG, "Error in JSON result", e);
-        }
-        return updates;
-    }
-
-    private UpdateInfo parseUpdateJSONObject(JSONObject obj, int updateType) throws JSONException {
-        String fileName = obj.getString("filename");
-        String url = obj.getString("url");
-        String md5 = obj.getString("md5sum");
-        int apiLevel = obj.getInt("api_level");
-        long timestamp = obj.getLong("timestamp");
-        String typeString = obj.getString("channel");
-        UpdateInfo.Type type;
-
-        if (TextUtils.equals(typeString, "stable")) {
-            type = UpdateInfo.Type.STABLE;
-        } else if (TextUtils.equals(typeString, "RC")) {
-            type = UpdateInfo.Type.RC;
-        } else if (TextUtils.equals(typeString, "snapshot")) {
-            type = UpdateInfo.Type.SNAPSHOT;
-        } else if (TextUtils.equals(typeString, "nightly")) {
-            type = UpdateInfo.Type.NIGHTLY;
-        } else {
-            type = UpdateInfo.Type.UNKNOWN;
+            throw new IOException("Unable to build update request", e);
         }
 
-        UpdateInfo ui = new UpdateInfo(fileName, timestamp, apiLevel, url, md5, type);
-        boolean includeAll = updateType == Constants.UPDATE_TYPE_ALL_STABLE
-            || updateType == Constants.UPDATE_TYPE_ALL_NIGHTLY;
+        HttpURLConnection conn = HttpConnector.getInstance(this).open(apiUrl);
+        InputStreamReader reader = null;
+        signal.setOnCancelListener(new Utils.DisconnectOnCancel(conn));
+        try {
+            signal.throwIfCanceled();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(body.length);
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setRequestProperty("Cache-Control", "no-cache");
+
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
 
-        if (!includeAll && !ui.isNewerThanInstalled()) {
-            Log.d(TAG, "Build " + fileName + " is older than the installed build");
-            return null;
-        }
+            UpdateMetrics metrics = UpdateMetrics.getInstance(this);
+            long start = SystemClock.elapsedRealtime();
+            int code = conn.getResponseCode();
+            long fetched = SystemClock.elapsedRealtime();
+            metrics.record(UpdateMetrics.CHECK_FETCH_MS, fetched - start);
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + code + " for " + apiUrl);
+            }
 
-        // fetch change log after checking whether to include this build to
-        // avoid useless network traffic
-        if (!ui.getChangeLogFile(this).exists()) {
-            fetchChangeLog(ui, obj.getString("changes"));
+            reader = new InputStreamReader(conn.getInputStream(), "UTF-8");
+            new BuildListParser(collector).parse(reader);
+            metrics.record(UpdateMetrics.CHECK_PARSE_MS, SystemClock.elapsedRealtime() - fetched);
+        } catch (IOException e) {
+            // the connection was closed by the cancellation
+            signal.throwIfCanceled();
+            throw e;
+        } finally {
+            signal.setOnCancelListener(null);
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+            conn.disconnect();
         }
-
-        return ui;
     }
 
-    private void fetchChangeLog(UpdateInfo info, String url) {
+    /*    private void fetchChangeLog(UpdateInfo info, String url) {
         Log.d(TAG, "Getting change log for " + info + ", url " + url);
 
         BufferedReader reader = null;
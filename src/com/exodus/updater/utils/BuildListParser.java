@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.exodus.updater.misc.UpdateInfo;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming parser for the answer of the build list API,
+ * <pre>
+ *   {"result": [{"filename": ..., "url": ..., "md5sum": ..., "api_level": ...,
+ *       "timestamp": ..., "channel": ..., "changes": ..., "size": ...}, ...]}
+ * </pre>
+ * The response is read token by token, without building a tree of the whole
+ * result, and every build is reported as soon as its entry is complete.
+ */
+public class BuildListParser {
+    private static final String TAG = "BuildListParser";
+
+    public interface Listener {
+        void onUpdate(UpdateInfo info);
+
+        /**
+         * An entry of the result lacked a required field or was no object.
+         * fileName is null if the entry didn't name its file.
+         */
+        void onMalformedEntry(String fileName);
+    }
+
+    private final Listener mListener;
+
+    public BuildListParser(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Parse the whole response and return the number of entries in its
+     * result. The reader is not closed.
+     */
+    public int parse(Reader in) throws IOException {
+        try {
+            return parseResponse(new JsonReader(in));
+        } catch (IllegalStateException e) {
+            // JsonReader reports unexpected value types this way
+            throw new IOException("Error in JSON result", e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Error in JSON result", e);
+        }
+    }
+
+    private int parseResponse(JsonReader reader) throws IOException {
+        int length = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!name.equals("result") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                length++;
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    mListener.onMalformedEntry(null);
+                    continue;
+                }
+                UpdateInfo info = parseEntry(reader);
+                if (info != null) {
+                    mListener.onUpdate(info);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        Log.d(TAG, "Got update JSON data with " + length + " entries");
+        return length;
+    }
+
+    private UpdateInfo parseEntry(JsonReader reader) throws IOException {
+        String fileName = null, url = null, md5 = null, changes = null;
+        String typeString = null;
+        int apiLevel = -1;
+        long timestamp = -1, size = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals("filename")) {
+                fileName = reader.nextString();
+            } else if (name.equals("url")) {
+                url = reader.nextString();
+            } else if (name.equals("md5sum")) {
+                md5 = reader.nextString();
+            } else if (name.equals("api_level")) {
+                apiLevel = reader.nextInt();
+            } else if (name.equals("timestamp")) {
+                timestamp = reader.nextLong();
+            } else if (name.equals("channel")) {
+                typeString = reader.nextString();
+            } else if (name.equals("changes")) {
+                changes = reader.nextString();
+            } else if (name.equals("size")) {
+                size = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (fileName == null || url == null || md5 == null || apiLevel < 0 || timestamp < 0) {
+            mListener.onMalformedEntry(fileName);
+            return null;
+        }
+
+        UpdateInfo ui = new UpdateInfo(fileName, timestamp, apiLevel, url, md5,
+                parseChannel(typeString));
+        ui.setFileSize(size);
+        ui.setChangeLogUrl(changes);
+        return ui;
+    }
+
+    private static UpdateInfo.Type parseChannel(String channel) {
+        if (TextUtils.equals(channel, "stable")) {
+            return UpdateInfo.Type.STABLE;
+        } else if (TextUtils.equals(channel, "RC")) {
+            return UpdateInfo.Type.RC;
+        } else if (TextUtils.equals(channel, "snapshot")) {
+            return UpdateInfo.Type.SNAPSHOT;
+        } else if (TextUtils.equals(channel, "nightly")) {
+            return UpdateInfo.Type.NIGHTLY;
+        }
+        return UpdateInfo.Type.UNKNOWN;
+    }
+}
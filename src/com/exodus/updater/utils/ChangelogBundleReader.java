@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a change log bundle into the change logs of the single builds.
+ *
+ * A bundle is a sequence of sections, each made of a header line
+ * <pre>
+ *   @@file &lt;build file name&gt; &lt;length in bytes&gt;
+ * </pre>
+ * followed by exactly that many bytes of change log text. Blank lines
+ * between sections are ignored. Every section is handed out as a stream
+ * while the bundle is being received, nothing is buffered beyond the
+ * current read.
+ */
+public class ChangelogBundleReader {
+    private static final String HEADER_PREFIX = "@@file ";
+    private static final int MAX_HEADER_LENGTH = 1024;
+
+    public interface Listener {
+        /**
+         * Consume the change log of one build. Bytes the listener does not
+         * read are skipped.
+         */
+        void onChangelog(String fileName, InputStream content) throws IOException;
+    }
+
+    private ChangelogBundleReader() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Read the whole bundle. Returns the number of sections. The stream is
+     * not closed.
+     */
+    public static int read(InputStream bundle, Listener listener) throws IOException {
+        InputStream in = new BufferedInputStream(bundle);
+        byte[] header = new byte[MAX_HEADER_LENGTH];
+        int count = 0;
+        String line;
+        while ((line = readLine(in, header)) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            int space = line.lastIndexOf(' ');
+            if (!line.startsWith(HEADER_PREFIX) || space < HEADER_PREFIX.length()) {
+                throw new IOException("Malformed bundle header " + line);
+            }
+            String fileName = line.substring(HEADER_PREFIX.length(), space).trim();
+            long length;
+            try {
+                length = Long.parseLong(line.substring(space + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed bundle header " + line);
+            }
+            if (fileName.isEmpty() || length < 0) {
+                throw new IOException("Malformed bundle header " + line);
+            }
+
+            SectionInputStream section = new SectionInputStream(in, length);
+            listener.onChangelog(fileName, section);
+            section.skipRemaining();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Read an ASCII header line, returns null at the end of the stream.
+     */
+    private static String readLine(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == buffer.length) {
+                throw new IOException("Bundle header too long");
+            }
+            buffer[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) {
+            return null;
+        }
+        if (length > 0 && buffer[length - 1] == '\r') {
+            length--;
+        }
+        return new String(buffer, 0, length, "US-ASCII");
+    }
+
+    /**
+     * Exposes the next length bytes of the bundle. Closing it does not
+     * close the bundle.
+     */
+    private static class SectionInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        SectionInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated change log bundle");
+            }
+            mRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (read == -1) {
+                throw new EOFException("Truncated change log bundle");
+            }
+            mRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(Math.min(count, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // the bundle stays open for the following sections
+        }
+
+        void skipRemaining() throws IOException {
+            while (mRemaining > 0) {
+                if (skip(mRemaining) <= 0 && read() == -1) {
+                    break;
+                }
+            }
+        }
+    }
+}
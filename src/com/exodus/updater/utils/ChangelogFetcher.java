@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.os.CancellationSignal;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.exodus.updater.R;
+import com.exodus.updater.misc.Constants;
+import com.exodus.updater.misc.UpdateInfo;
+import com.exodus.updater.service.UpdateCheckService;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Fills the change log cache for a list of builds. Missing change logs are
+ * requested in one bundle if the server offers that, anything left over is
+ * fetched per build through a small worker pool.
+ */
+public class ChangelogFetcher {
+    private static final String TAG = "ChangelogFetcher";
+
+    // How long to wait before asking a server without change log bundle again
+    private static final long BUNDLE_RETRY_INTERVAL = Constants.UPDATE_FREQ_WEEKLY * 1000L;
+
+    private final Context mContext;
+    private volatile FetchPool<Boolean> mPool;
+    private volatile boolean mCancelled = false;
+    // one per running download, a signal only takes a single listener
+    private final LinkedList<CancellationSignal> mSignals = new LinkedList<CancellationSignal>();
+
+    public ChangelogFetcher(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Get the builds whose change log is not cached yet.
+     */
+    public static List<UpdateInfo> getMissing(Context context, List<UpdateInfo> infos) {
+        ChangelogStore store = ChangelogStore.getInstance(context);
+        LinkedList<UpdateInfo> missing = new LinkedList<UpdateInfo>();
+        for (UpdateInfo ui : infos) {
+            if (!store.contains(ui.getFileName())) {
+                missing.add(ui);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Fetch the missing change logs of the given builds and wait for them.
+     * Returns the number of change logs that were fetched.
+     */
+    public int fetch(List<UpdateInfo> infos) {
+        List<UpdateInfo> missing = getMissing(mContext, infos);
+        if (missing.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        String bundleUrl = getBundleUrl();
+        if (bundleUrl != null) {
+            LinkedList<UpdateInfo> bundled = new LinkedList<UpdateInfo>();
+            for (UpdateInfo ui : missing) {
+                // Change logs the server placed elsewhere are not in the bundle
+                if (!ui.hasChangeLogUrl()) {
+                    bundled.add(ui);
+                }
+            }
+            if (bundled.size() > 1 && !mCancelled) {
+                fetchBundle(bundleUrl, bundled);
+            }
+        }
+
+        final Resources res = mContext.getResources();
+        FetchPool<Boolean> pool = new FetchPool<Boolean>("ChangelogFetch",
+                res.getInteger(R.integer.conf_changelog_fetch_threads),
+                res.getInteger(R.integer.conf_changelog_fetch_host_connections));
+        mPool = pool;
+        if (mCancelled) {
+            pool.cancel();
+        }
+
+        ChangelogStore store = ChangelogStore.getInstance(mContext);
+        for (final UpdateInfo ui : missing) {
+            if (store.contains(ui.getFileName())) {
+                continue;
+            }
+            pool.submit(ui.getChangeLogUrl(), new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    CancellationSignal signal = obtainSignal();
+                    try {
+                        return Utils.DownloadChangelog(ui, mContext, signal);
+                    } finally {
+                        releaseSignal(signal);
+                    }
+                }
+            });
+        }
+
+        try {
+            pool.awaitAll();
+        } catch (InterruptedException e) {
+            pool.cancel();
+            Thread.currentThread().interrupt();
+        } finally {
+            mPool = null;
+        }
+
+        int fetched = missing.size() - getMissing(mContext, missing).size();
+        Log.d(TAG, "Fetched " + fetched + " of " + missing.size() + " change logs in "
+                + (System.currentTimeMillis() - start) + "ms"
+                + (mCancelled ? " (cancelled)" : ""));
+        return fetched;
+    }
+
+    /**
+     * Abort a running fetch. Open connections are closed right away and
+     * change logs that were not completely written are dropped.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (mSignals) {
+            for (CancellationSignal signal : mSignals) {
+                signal.cancel();
+            }
+        }
+        FetchPool<Boolean> pool = mPool;
+        if (pool != null) {
+            pool.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private CancellationSignal obtainSignal() {
+        CancellationSignal signal = new CancellationSignal();
+        synchronized (mSignals) {
+            if (mCancelled) {
+                signal.cancel();
+            }
+            mSignals.add(signal);
+        }
+        return signal;
+    }
+
+    private void releaseSignal(CancellationSignal signal) {
+        synchronized (mSignals) {
+            mSignals.remove(signal);
+        }
+    }
+
+    private void fetchBundle(String bundleUrl, List<UpdateInfo> bundled) {
+        long start = System.currentTimeMillis();
+        CancellationSignal signal = obtainSignal();
+        int saved;
+        try {
+            saved = Utils.DownloadChangelogBundle(bundleUrl, bundled, mContext, signal);
+        } finally {
+            releaseSignal(signal);
+        }
+        if (saved < 0) {
+            Log.d(TAG, "Server has no change log bundle, fetching change logs one by one");
+            PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                    .putString(Constants.CHANGELOG_BUNDLE_MISSING_URL, bundleUrl)
+                    .putLong(Constants.CHANGELOG_BUNDLE_MISSING_TIME, System.currentTimeMillis())
+                    .apply();
+        } else {
+            Log.d(TAG, "Fetched " + saved + " of " + bundled.size()
+                    + " change logs in one bundle in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Get the change log bundle endpoint next to the update list, or null if
+     * there is none or the server recently told us it has none.
+     */
+    private String getBundleUrl() {
+        String serverUrl = UpdateCheckService.getServerUrl(mContext);
+        String fileName = mContext.getString(R.string.conf_changelog_bundle_filename);
+        if (UpdateCheckService.isJsonApi(serverUrl) || TextUtils.isEmpty(fileName)) {
+            return null;
+        }
+        String bundleUrl = serverUrl + fileName;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        long missingSince = prefs.getLong(Constants.CHANGELOG_BUNDLE_MISSING_TIME, 0);
+        if (bundleUrl.equals(prefs.getString(Constants.CHANGELOG_BUNDLE_MISSING_URL, null))
+                && System.currentTimeMillis() - missingSince < BUNDLE_RETRY_INTERVAL) {
+            return null;
+        }
+        return bundleUrl;
+    }
+}
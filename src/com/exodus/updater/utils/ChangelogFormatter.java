@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Renders the plain text change logs of the build server as HTML.
+ *
+ * Lines between '=' lines are category headers, lines starting with '*'
+ * name a project and all other lines are entries. Blank lines are dropped.
+ */
+public class ChangelogFormatter {
+    /**
+     * Turn the change log text into HTML. Returns whether there was any
+     * content. Stops early if the calling thread is interrupted.
+     */
+    public static boolean toHtml(BufferedReader reader, Writer writer) throws IOException {
+        boolean categoryMatch = false, hasData = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("=")) {
+                categoryMatch = !categoryMatch;
+            } else if (categoryMatch) {
+                if (hasData) {
+                    writer.append("<br />");
+                }
+                writer.append("<b><u>");
+                writer.append(line);
+                writer.append("</u></b>");
+                writer.append("<br />");
+                hasData = true;
+            } else if (line.startsWith("*")) {
+                writer.append("<br /><b>");
+                for (int i = 0; i < line.length(); i++) {
+                    char c = line.charAt(i);
+                    if (c != '*') {
+                        writer.append(c);
+                    }
+                }
+                writer.append("</b>");
+                writer.append("<br />");
+                hasData = true;
+            } else {
+                writer.append("&#8226;&nbsp;");
+                writer.append(line);
+                writer.append("<br />");
+                hasData = true;
+            }
+        }
+        return hasData;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.exodus.updater.R;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of rendered change logs.
+ *
+ * Change logs are converted to HTML once when they are stored and kept gzip
+ * compressed, one file per build. An empty change log is stored as an empty
+ * file. The total size of the files is held below a byte budget by evicting
+ * the least recently used entries. The index lives in memory, so looking up
+ * whether a change log is cached does not touch the file system.
+ */
+public class ChangelogStore {
+    private static final String TAG = "ChangelogStore";
+
+    private static final String DIRECTORY = "changelogs";
+    private static final String SUFFIX = ".gz";
+    // Change logs were kept uncompressed directly in the cache dir before
+    private static final String LEGACY_SUFFIX = ".changelog";
+
+    private static ChangelogStore sInstance;
+
+    private final File mDirectory;
+    private final long mBudget;
+    // file name -> stored size, in access order
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long mSize = 0;
+
+    public static synchronized ChangelogStore getInstance(Context context) {
+        if (sInstance == null) {
+            File cacheDir = context.getCacheDir();
+            removeLegacyFiles(cacheDir);
+            sInstance = new ChangelogStore(new File(cacheDir, DIRECTORY),
+                    context.getResources().getInteger(R.integer.conf_changelog_cache_bytes));
+        }
+        return sInstance;
+    }
+
+    ChangelogStore(File directory, long budget) {
+        mDirectory = directory;
+        mBudget = budget;
+        mDirectory.mkdirs();
+        loadIndex();
+    }
+
+    /**
+     * Whether the change log of the given build is cached.
+     */
+    public synchronized boolean contains(String fileName) {
+        return mEntries.containsKey(fileName);
+    }
+
+    /**
+     * Whether the change log of the given build is cached and has no content.
+     */
+    public synchronized boolean isEmpty(String fileName) {
+        Long size = mEntries.get(fileName);
+        return size != null && size == 0;
+    }
+
+    /**
+     * Get the rendered change log of the given build, or null if it is not
+     * cached.
+     */
+    public String read(String fileName) throws IOException {
+        File file;
+        synchronized (this) {
+            if (mEntries.get(fileName) == null) {
+                return null;
+            }
+            file = getFile(fileName);
+        }
+        if (file.length() == 0) {
+            return "";
+        }
+        file.setLastModified(System.currentTimeMillis());
+
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length() * 4);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore, not much we can do anyway
+            }
+        }
+    }
+
+    /**
+     * Render a plain text change log and store it for the given build. The
+     * stream is not closed. Returns false if the signal was cancelled or the
+     * calling thread was interrupted, in which case nothing is stored.
+     */
+    public boolean save(String fileName, InputStream plainText, CancellationSignal signal)
+            throws IOException {
+        File temp = File.createTempFile(fileName, ".tmp", mDirectory);
+        boolean finished = false;
+        try {
+            boolean hasData;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(new FileOutputStream(temp)), "UTF-8"));
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(plainText));
+                hasData = ChangelogFormatter.toHtml(reader, writer);
+                writer.close();
+            } finally {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+            if (signal.isCanceled() || Thread.currentThread().isInterrupted()) {
+                // the fetch was cancelled, drop the partial file below
+                return false;
+            }
+            if (!hasData) {
+                // keep empty change logs recognizable without reading them
+                new FileOutputStream(temp).close();
+            }
+
+            synchronized (this) {
+                File file = getFile(fileName);
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + temp + " to " + file);
+                }
+                finished = true;
+                put(fileName, file.length());
+                trimToBudget(fileName);
+            }
+            return true;
+        } finally {
+            if (!finished) {
+                temp.delete();
+            }
+        }
+    }
+
+    private File getFile(String fileName) {
+        return new File(mDirectory, fileName + SUFFIX);
+    }
+
+    private void put(String fileName, long size) {
+        Long previous = mEntries.put(fileName, size);
+        if (previous != null) {
+            mSize -= previous;
+        }
+        mSize += size;
+    }
+
+    private void trimToBudget(String keep) {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > mBudget && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            Log.d(TAG, "Evicting change log of " + eldest.getKey());
+            getFile(eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void loadIndex() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Oldest first, reads touch the files so this restores the LRU order
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                if (lhsModified == rhsModified) {
+                    return 0;
+                }
+                return lhsModified < rhsModified ? -1 : 1;
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+            } else {
+                // left over from an interrupted save
+                file.delete();
+            }
+        }
+        trimToBudget(null);
+    }
+
+    private static void removeLegacyFiles(File cacheDir) {
+        File[] files = cacheDir.listFiles(new UpdateFilter(LEGACY_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges update check requests that arrive while a check is queued or
+ * running into that check, and answers requests from the last result while
+ * it is still fresh.
+ *
+ * Every request is numbered when it arrives. A finished check covers all
+ * requests numbered up to then, so requests that were waiting behind it
+ * share its result instead of repeating the same network check.
+ */
+public class CheckCoordinator {
+    /** Run a new check */
+    public static final int RUN = 0;
+    /** Share the result of the check that just finished */
+    public static final int JOIN = 1;
+    /** Reuse the last successful check, it is recent enough */
+    public static final int FRESH = 2;
+
+    private final long mFreshnessWindow;
+    private final CheckSchedulePolicy.Clock mClock;
+    private final AtomicLong mRequested = new AtomicLong();
+    private volatile long mCovered = 0;
+    private volatile boolean mLastSucceeded = false;
+    private volatile boolean mLastCancelled = false;
+
+    public CheckCoordinator(long freshnessWindowMillis, CheckSchedulePolicy.Clock clock) {
+        mFreshnessWindow = freshnessWindowMillis;
+        mClock = clock;
+    }
+
+    /**
+     * Number a new request. Call this when the request arrives, before it is
+     * queued.
+     */
+    public long onRequested() {
+        return mRequested.incrementAndGet();
+    }
+
+    /**
+     * Decide how to answer a request once it is its turn.
+     *
+     * @param request the number {@link #onRequested()} gave the request
+     * @param lastCheck time of the last successful check, 0 if there was none
+     * @param userRequested whether the user asked for the check, which is
+     *         never answered from an older result, only joined
+     * @return one of {@link #RUN}, {@link #JOIN} or {@link #FRESH}
+     */
+    public int decide(long request, long lastCheck, boolean userRequested) {
+        if (request > 0 && request <= mCovered) {
+            return JOIN;
+        }
+        if (userRequested) {
+            return RUN;
+        }
+        long age = mClock.currentTimeMillis() - lastCheck;
+        if (lastCheck > 0 && age >= 0 && age < mFreshnessWindow) {
+            return FRESH;
+        }
+        return RUN;
+    }
+
+    /**
+     * Record the outcome of a check that was run.
+     */
+    public void onFinished(boolean success) {
+        mLastSucceeded = success;
+        mLastCancelled = false;
+        mCovered = mRequested.get();
+    }
+
+    /**
+     * Record that the running check was cancelled. The requests waiting for
+     * it are dropped along with it instead of each starting a new check.
+     */
+    public void onCancelled() {
+        mLastSucceeded = false;
+        mLastCancelled = true;
+        mCovered = mRequested.get();
+    }
+
+    /**
+     * Whether the check that joined requests share succeeded.
+     */
+    public boolean lastSucceeded() {
+        return mLastSucceeded;
+    }
+
+    /**
+     * Whether the check that joined requests share was cancelled.
+     */
+    public boolean lastCancelled() {
+        return mLastCancelled;
+    }
+}
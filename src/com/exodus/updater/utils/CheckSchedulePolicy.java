@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.os.SystemClock;
+
+import com.exodus.updater.misc.Constants;
+
+import java.util.Random;
+
+/**
+ * Decides when the next background update check is due.
+ *
+ * Checks run once per interval, counted from the last successful check.
+ * Each scheduled check gets a random delay of up to a fraction of the
+ * interval on top, so devices that checked at the same time drift apart.
+ * After failed checks the next attempt is made after an exponentially
+ * growing backoff, but never later than the regular interval. Retries are
+ * spread by the same fraction of the backoff. A wall clock that was set
+ * back doesn't push a check out by more than one interval. The clock
+ * and the random source are passed in, so the policy does not depend on
+ * the system time.
+ */
+public class CheckSchedulePolicy {
+    public interface Clock {
+        long currentTimeMillis();
+
+        /**
+         * Monotonic milliseconds since some fixed point, for measuring
+         * durations. Unlike the wall clock it doesn't jump when the time is
+         * set.
+         */
+        long elapsedRealtime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    // Failed on-boot checks are retried at least once a day
+    private static final long AT_BOOT_RETRY_INTERVAL = Constants.UPDATE_FREQ_DAILY * 1000L;
+
+    private final long mInterval;
+    private final float mJitterFraction;
+    private final long mInitialBackoff;
+    private final Clock mClock;
+    private final Random mRandom;
+    private boolean mIgnoreLastCheck = false;
+
+    public CheckSchedulePolicy(long intervalMillis, float jitterFraction,
+            long initialBackoffMillis, Clock clock, Random random) {
+        mInterval = intervalMillis;
+        mJitterFraction = jitterFraction;
+        mInitialBackoff = initialBackoffMillis;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    /**
+     * Get the policy of a check frequency, one of the Constants.UPDATE_FREQ_
+     * values, or null if the frequency schedules no checks. A check at boot
+     * is due right away, whenever the last check was. There is no need to
+     * spread checks that are bound to the boot time anyway, so it gets no
+     * jitter.
+     */
+    public static CheckSchedulePolicy forFrequency(int updateFrequency, float jitterFraction,
+            long initialBackoffMillis, Clock clock, Random random) {
+        if (updateFrequency == Constants.UPDATE_FREQ_AT_BOOT) {
+            CheckSchedulePolicy policy = new CheckSchedulePolicy(AT_BOOT_RETRY_INTERVAL, 0,
+                    initialBackoffMillis, clock, random);
+            policy.mIgnoreLastCheck = true;
+            return policy;
+        }
+        if (updateFrequency <= 0) {
+            return null;
+        }
+        return new CheckSchedulePolicy(updateFrequency * 1000L, jitterFraction,
+                initialBackoffMillis, clock, random);
+    }
+
+    /**
+     * Get the delay from now until the next check should run.
+     *
+     * @param lastCheck time of the last successful check, 0 if there was none
+     * @param lastAttempt time of the last check attempt, successful or not
+     * @param failures number of failed attempts since the last successful check
+     */
+    public long getDelay(long lastCheck, long lastAttempt, int failures) {
+        long now = mClock.currentTimeMillis();
+        long wait = getWait(failures);
+        long due = (failures > 0 ? lastAttempt : (mIgnoreLastCheck ? 0 : lastCheck)) + wait;
+        // A check or attempt in the future means the clock was set back
+        return Math.min(Math.max(0, due - now), wait) + getJitter(wait);
+    }
+
+    /**
+     * Get the time the scheduler may wait on top of the delay to run the
+     * check together with other work.
+     */
+    public long getFlex(int failures) {
+        return (long) (getWait(failures) * mJitterFraction);
+    }
+
+    private long getWait(int failures) {
+        if (failures <= 0) {
+            return mInterval;
+        }
+        // Cap the shift, the interval limits the backoff anyway
+        return Math.min(mInitialBackoff << Math.min(failures - 1, 20), mInterval);
+    }
+
+    private long getJitter(long wait) {
+        long maxJitter = (long) (wait * mJitterFraction);
+        if (maxJitter <= 0) {
+            return 0;
+        }
+        return (long) (mRandom.nextDouble() * maxJitter);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds a full update zip from an older build and a delta patch.
+ *
+ * A patch is a gzip compressed stream of (all integers big endian, "varlong"
+ * is an unsigned LEB128 value):
+ * <pre>
+ *   int     MAGIC
+ *   byte    VERSION
+ *   long    source size
+ *   long    target size
+ *   ops, each starting with an op code byte:
+ *     COPY    varlong source offset, varlong length
+ *     ADD     varlong length, followed by that many literal bytes
+ *     END     no arguments, must be the last op
+ * </pre>
+ * The target is written front to back while the patch is read, so only a
+ * fixed size buffer is held in memory no matter how large the builds are.
+ */
+public class DeltaPatcher {
+    public static final int MAGIC = 0x45584450; // "EXDP"
+    public static final int VERSION = 1;
+
+    // Patches are downloaded next to the target, with this suffix appended
+    public static final String PATCH_SUFFIX = ".patch";
+
+    public static final int OP_END = 0;
+    public static final int OP_COPY = 1;
+    public static final int OP_ADD = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DeltaPatcher() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Apply patch to source, writing the result to target. If digest is not
+     * null, the target data is fed into it. Returns the size of the target.
+     */
+    public static long apply(File source, File patch, File target, MessageDigest digest)
+            throws IOException {
+        FileInputStream sourceStream = new FileInputStream(source);
+        InputStream patchStream = null;
+        FileOutputStream out = null;
+        try {
+            FileChannel sourceChannel = sourceStream.getChannel();
+            patchStream = new GZIPInputStream(new FileInputStream(patch), BUFFER_SIZE);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(patchStream));
+            out = new FileOutputStream(target);
+
+            if (in.readInt() != MAGIC) {
+                throw new IOException(patch + " is not a delta patch");
+            }
+            int version = in.readUnsignedByte();
+            if (version > VERSION) {
+                throw new IOException("Unsupported patch version " + version);
+            }
+            long sourceSize = in.readLong();
+            long targetSize = in.readLong();
+            if (sourceSize != sourceChannel.size()) {
+                throw new IOException("Patch does not apply to " + source);
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long written = 0;
+            while (true) {
+                int op = in.readUnsignedByte();
+                if (op == OP_END) {
+                    break;
+                }
+
+                long offset = op == OP_COPY ? readVarlong(in) : 0;
+                long length = readVarlong(in);
+                if (written + length > targetSize) {
+                    throw new IOException("Patch exceeds the target size");
+                }
+
+                if (op == OP_COPY) {
+                    if (offset + length > sourceSize) {
+                        throw new IOException("Patch reads past the end of " + source);
+                    }
+                    long position = offset;
+                    long end = offset + length;
+                    while (position < end) {
+                        wrapped.clear();
+                        wrapped.limit((int) Math.min(buffer.length, end - position));
+                        int read = sourceChannel.read(wrapped, position);
+                        if (read < 0) {
+                            throw new EOFException("Unexpected end of " + source);
+                        }
+                        write(out, digest, buffer, read);
+                        position += read;
+                    }
+                } else if (op == OP_ADD) {
+                    long remaining = length;
+                    while (remaining > 0) {
+                        int count = (int) Math.min(buffer.length, remaining);
+                        in.readFully(buffer, 0, count);
+                        write(out, digest, buffer, count);
+                        remaining -= count;
+                    }
+                } else {
+                    throw new IOException("Unknown patch op " + op);
+                }
+                written += length;
+            }
+
+            if (written != targetSize) {
+                throw new IOException("Patch produced " + written + " of " + targetSize + " bytes");
+            }
+            out.getFD().sync();
+            return written;
+        } finally {
+            try {
+                sourceStream.close();
+            } catch (IOException e) {
+                // ignore, not much we can do anyway
+            }
+            if (patchStream != null) {
+                try {
+                    patchStream.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+        }
+    }
+
+    private static void write(FileOutputStream out, MessageDigest digest, byte[] buffer,
+            int count) throws IOException {
+        out.write(buffer, 0, count);
+        if (digest != null) {
+            digest.update(buffer, 0, count);
+        }
+    }
+
+    private static long readVarlong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varlong in patch");
+    }
+}
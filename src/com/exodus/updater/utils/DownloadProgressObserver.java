@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.app.DownloadManager;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Follows the progress of a single DownloadManager download.
+ *
+ * Instead of polling, the download's row is observed for changes. Bursts of
+ * change notifications are coalesced so that the row is queried at most once
+ * per frame. Must be used from the main thread.
+ */
+public class DownloadProgressObserver extends ContentObserver
+        implements Choreographer.FrameCallback {
+    private static final Uri DOWNLOADS_URI = Uri.parse("content://downloads/my_downloads");
+
+    public interface OnProgressListener {
+        /**
+         * Called with the current state of the download. Sizes are -1 if
+         * unknown, as are rate and remaining time until they can be estimated.
+         */
+        void onProgress(int status, long downloadedBytes, long totalBytes,
+                long bytesPerSecond, long etaMillis);
+    }
+
+    private final DownloadManager mDownloadManager;
+    private final Context mContext;
+    private final long mDownloadId;
+    private final OnProgressListener mListener;
+
+    private boolean mRegistered = false;
+    private boolean mFramePending = false;
+
+    private int mStatusColumn = -1;
+    private int mDownloadedColumn;
+    private int mTotalColumn;
+
+    private final TransferRate mRate = new TransferRate();
+
+    public DownloadProgressObserver(Context context, long downloadId, OnProgressListener listener) {
+        super(new Handler());
+        mContext = context;
+        mDownloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        mDownloadId = downloadId;
+        mListener = listener;
+    }
+
+    public long getDownloadId() {
+        return mDownloadId;
+    }
+
+    public void start() {
+        if (mRegistered) {
+            return;
+        }
+        mContext.getContentResolver().registerContentObserver(
+                ContentUris.withAppendedId(DOWNLOADS_URI, mDownloadId), true, this);
+        mRegistered = true;
+
+        // Report the current state right away
+        onChange(false);
+    }
+
+    public void stop() {
+        if (!mRegistered) {
+            return;
+        }
+        mContext.getContentResolver().unregisterContentObserver(this);
+        Choreographer.getInstance().removeFrameCallback(this);
+        mRegistered = false;
+        mFramePending = false;
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        if (mRegistered && !mFramePending) {
+            mFramePending = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFramePending = false;
+        if (!mRegistered) {
+            return;
+        }
+
+        Cursor cursor = mDownloadManager.query(
+                new DownloadManager.Query().setFilterById(mDownloadId));
+        try {
+            if (cursor == null || !cursor.moveToFirst()) {
+                // The download was removed, most likely due to failure or MD5 mismatch
+                mListener.onProgress(DownloadManager.STATUS_FAILED, -1, -1, -1, -1);
+                return;
+            }
+
+            if (mStatusColumn < 0) {
+                mStatusColumn = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+                mDownloadedColumn = cursor.getColumnIndex(
+                        DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+                mTotalColumn = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+            }
+
+            int status = cursor.getInt(mStatusColumn);
+            long downloaded = cursor.getLong(mDownloadedColumn);
+            long total = cursor.getLong(mTotalColumn);
+
+            if (status == DownloadManager.STATUS_RUNNING) {
+                mRate.update(SystemClock.elapsedRealtime(), downloaded);
+            } else {
+                mRate.reset();
+            }
+
+            mListener.onProgress(status, downloaded, total, mRate.getBytesPerSecond(),
+                    mRate.getEtaMillis(downloaded, total));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded worker pool for fetching a batch of small remote files concurrently.
+ *
+ * At most {@code workers} requests run at the same time, and at most
+ * {@code perHostLimit} of them talk to the same host. Results are returned
+ * in submission order regardless of the order in which the fetches complete.
+ */
+public class FetchPool<T> {
+    private final ExecutorService mExecutor;
+    private final int mPerHostLimit;
+    private final HashMap<String, Semaphore> mHostPermits = new HashMap<String, Semaphore>();
+    private final List<Future<T>> mFutures = new ArrayList<Future<T>>();
+    private volatile boolean mCancelled = false;
+
+    public FetchPool(final String name, int workers, int perHostLimit) {
+        mPerHostLimit = Math.max(1, perHostLimit);
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, workers), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + mCount.incrementAndGet());
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queue a fetch of the given url. The returned index is the position of
+     * the result in the list returned by {@link #awaitAll()}, or -1 if the
+     * pool was already cancelled.
+     */
+    public synchronized int submit(String url, final Callable<T> task) {
+        if (mCancelled) {
+            return -1;
+        }
+        final Semaphore permits = getHostPermits(url);
+        mFutures.add(mExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                permits.acquire();
+                try {
+                    if (mCancelled) {
+                        throw new CancellationException();
+                    }
+                    return task.call();
+                } finally {
+                    permits.release();
+                }
+            }
+        }));
+        return mFutures.size() - 1;
+    }
+
+    /**
+     * Wait for all submitted fetches and return their results in submission
+     * order. Failed or cancelled fetches yield null. The pool can not be
+     * reused afterwards.
+     */
+    public List<T> awaitAll() throws InterruptedException {
+        List<Future<T>> futures;
+        synchronized (this) {
+            futures = new ArrayList<Future<T>>(mFutures);
+        }
+        mExecutor.shutdown();
+
+        List<T> results = new ArrayList<T>(futures.size());
+        for (Future<T> f : futures) {
+            T result = null;
+            try {
+                result = f.get();
+            } catch (CancellationException e) {
+                // cancelled fetches simply have no result
+            } catch (ExecutionException e) {
+                // the task is responsible for reporting its own failure
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Abort all queued and running fetches. Running workers are interrupted.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            for (Future<T> f : mFutures) {
+                f.cancel(true);
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private Semaphore getHostPermits(String url) {
+        String host;
+        try {
+            host = new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            host = "";
+        }
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            permits = new Semaphore(mPerHostLimit, true);
+            mHostPermits.put(host, permits);
+        }
+        return permits;
+    }
+}
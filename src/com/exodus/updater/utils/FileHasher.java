@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest calculation for large files.
+ *
+ * Files are read through a FileChannel into a per-thread direct buffer, so
+ * hashing a multi-gigabyte image does not churn through heap buffers.
+ */
+public class FileHasher {
+    public enum Algorithm {
+        MD5("MD5"),
+        SHA256("SHA-256");
+
+        private final String mName;
+
+        Algorithm(String name) {
+            mName = name;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private FileHasher() {
+        // this class is not supposed to be instantiated
+    }
+
+    public static MessageDigest newDigest(Algorithm algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm.mName);
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 and SHA-256 are mandatory for every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static byte[] hash(File file, Algorithm algorithm) throws IOException {
+        MessageDigest digest = newDigest(algorithm);
+        update(digest, file, 0, Long.MAX_VALUE);
+        return digest.digest();
+    }
+
+    public static String hashHex(File file, Algorithm algorithm) throws IOException {
+        return toHex(hash(file, algorithm));
+    }
+
+    /**
+     * Feed up to length bytes of the file, starting at offset, into digest.
+     * Returns the number of bytes that were hashed.
+     */
+    public static long update(MessageDigest digest, File file, long offset, long length)
+            throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = sBuffer.get();
+            long position = offset;
+            long end = length == Long.MAX_VALUE ? Long.MAX_VALUE : offset + length;
+
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) {
+                    buffer.limit((int) (end - position));
+                }
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+            return position - offset;
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException e) {
+                // ignore, not much we can do anyway
+            }
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        char[] out = new char[digest.length * 2];
+        for (int i = 0, j = 0; i < digest.length; i++) {
+            int b = digest[i] & 0xff;
+            out[j++] = HEX_DIGITS[b >>> 4];
+            out[j++] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(out);
+    }
+}
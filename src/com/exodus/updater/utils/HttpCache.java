@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Properties;
+
+/**
+ * Small on-disk store of HTTP validators (ETag / Last-Modified), keyed by URL.
+ *
+ * Only the validators are kept, not the response bodies: a 304 answer means
+ * the caller can keep using whatever it derived from the previous response.
+ * Updated validators are held in memory until {@link #save()} is called, so
+ * callers should only save once the new response has been fully processed.
+ */
+public class HttpCache {
+    private static final String TAG = "HttpCache";
+    private static final String FILENAME = "exodusupdater.httpcache";
+
+    private static final String ETAG_SUFFIX = ".etag";
+    private static final String LAST_MODIFIED_SUFFIX = ".lastmod";
+
+    private final File mFile;
+    private final Properties mEntries = new Properties();
+    private boolean mDirty = false;
+
+    public HttpCache(Context context) {
+        mFile = new File(context.getCacheDir(), FILENAME);
+        load();
+    }
+
+    /**
+     * Add If-None-Match / If-Modified-Since headers to the connection, if
+     * validators are known for the URL that was requested.
+     */
+    public void addConditionalHeaders(String url, HttpURLConnection conn) {
+        String etag = mEntries.getProperty(url + ETAG_SUFFIX);
+        String lastModified = mEntries.getProperty(url + LAST_MODIFIED_SUFFIX);
+
+        if (etag != null) {
+            conn.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            conn.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Remember the validators of a successful (200) response. The url must
+     * be the one requested, not where redirects ended up, otherwise they
+     * are never found again.
+     */
+    public void update(String url, HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        String lastModified = conn.getHeaderField("Last-Modified");
+
+        remove(url);
+        if (!TextUtils.isEmpty(etag)) {
+            mEntries.setProperty(url + ETAG_SUFFIX, etag);
+        }
+        if (!TextUtils.isEmpty(lastModified)) {
+            mEntries.setProperty(url + LAST_MODIFIED_SUFFIX, lastModified);
+        }
+        mDirty = true;
+    }
+
+    public void remove(String url) {
+        if (mEntries.remove(url + ETAG_SUFFIX) != null
+                | mEntries.remove(url + LAST_MODIFIED_SUFFIX) != null) {
+            mDirty = true;
+        }
+    }
+
+    public void clear() {
+        if (!mEntries.isEmpty()) {
+            mEntries.clear();
+            mDirty = true;
+        }
+    }
+
+    public void save() {
+        if (!mDirty) {
+            return;
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile);
+            mEntries.store(fos, null);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving HTTP cache", e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+    }
+
+    private void load() {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(mFile);
+            mEntries.load(fis);
+        } catch (FileNotFoundException e) {
+            // nothing cached yet
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading HTTP cache", e);
+            mEntries.clear();
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Unexpected HTTP cache file format", e);
+            mEntries.clear();
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    // ignored, can't do anything anyway
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import com.exodus.updater.R;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens all HTTP connections of the app with the same timeouts and
+ * User-Agent.
+ *
+ * The platform keeps idle connections alive and reuses them for the next
+ * request to the same host, as long as the response body was read to the
+ * end and closed before disconnect() is called. It also asks for gzip and
+ * decompresses transparently, unless a request sets its own
+ * Accept-Encoding. All TLS connections are made through one counting socket
+ * factory, so the pool can share them and the number of handshakes that
+ * reuse saved is known.
+ */
+public class HttpConnector {
+    private static HttpConnector sInstance;
+
+    private final String mUserAgent;
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+    private final CountingSocketFactory mSocketFactory;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mTlsRequests = new AtomicInteger();
+
+    public static synchronized HttpConnector getInstance(Context context) {
+        if (sInstance == null) {
+            final Resources res = context.getResources();
+            // Read by the platform when the first connection is made
+            System.setProperty("http.keepAlive", "true");
+            System.setProperty("http.maxConnections",
+                    String.valueOf(res.getInteger(R.integer.conf_http_max_idle_connections)));
+            sInstance = new HttpConnector(Utils.getUserAgentString(context),
+                    res.getInteger(R.integer.conf_http_connect_timeout_ms),
+                    res.getInteger(R.integer.conf_http_read_timeout_ms));
+        }
+        return sInstance;
+    }
+
+    public HttpConnector(String userAgent, int connectTimeoutMs, int readTimeoutMs) {
+        mUserAgent = userAgent;
+        mConnectTimeout = connectTimeoutMs;
+        mReadTimeout = readTimeoutMs;
+        mSocketFactory = new CountingSocketFactory(
+                HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+
+    /**
+     * Prepare a connection to the given url. Nothing is sent before the
+     * caller asks for the response.
+     */
+    public HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(mConnectTimeout);
+        conn.setReadTimeout(mReadTimeout);
+        if (mUserAgent != null) {
+            conn.setRequestProperty("User-Agent", mUserAgent);
+        }
+        if (conn instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(mSocketFactory);
+            mTlsRequests.incrementAndGet();
+        }
+        mRequests.incrementAndGet();
+        return conn;
+    }
+
+    public String getUserAgent() {
+        return mUserAgent;
+    }
+
+    /**
+     * Number of connections opened so far.
+     */
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * Number of connections opened so far to https urls.
+     */
+    public int getTlsRequestCount() {
+        return mTlsRequests.get();
+    }
+
+    /**
+     * Number of TLS handshakes made so far. Requests that reused a pooled
+     * connection did not need one.
+     */
+    public int getTlsHandshakeCount() {
+        return mSocketFactory.mSockets.get();
+    }
+
+    /**
+     * Counts the TLS sockets the platform creates, one per handshake.
+     */
+    private static class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+        final AtomicInteger mSockets = new AtomicInteger();
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            mSockets.incrementAndGet();
+            return mDelegate.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            mSockets.incrementAndGet();
+            return mDelegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            mSockets.incrementAndGet();
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            mSockets.incrementAndGet();
+            return mDelegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            mSockets.incrementAndGet();
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            mSockets.incrementAndGet();
+            return mDelegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -0,0 +1,829 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+/**
+ * Resumable HTTP download into a partial file.
+ *
+ * Progress is checkpointed next to the partial file. A new download for the
+ * same url picks up at the last checkpoint with a Range request, guarded by
+ * If-Range so that a changed file on the server restarts from scratch.
+ * Network errors are retried with exponential backoff.
+ *
+ * With more than one connection, the file is preallocated and split into
+ * byte ranges that are fetched in parallel and written in place. Each range
+ * is checkpointed on its own, and a resumed download keeps the layout it
+ * was started with. Servers that don't support ranges get a single stream.
+ *
+ * If a digest is supplied, every byte of the file is fed into it, including
+ * the part downloaded by an earlier run. A single stream is hashed while it
+ * is written; ranges arrive out of order, so they are hashed once complete.
+ *
+ * Mirrors of the file may be given. After repeated failures without
+ * progress the download carries on from the next one. If-Range makes sure
+ * a mirror serving a different file restarts the download instead of
+ * corrupting it.
+ */
+public class HttpDownloader {
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+    private static final String KEY_URL = "url";
+    private static final String KEY_VALIDATOR = "validator";
+    private static final String KEY_TOTAL = "total";
+    private static final String KEY_OFFSET = "offset";
+    private static final String KEY_SEGMENTS = "segments";
+    private static final String KEY_SEGMENT_PREFIX = "segment.";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+    // Below this, the extra connections cost more than they gain
+    private static final long MIN_SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+    // Failed attempts in a row before moving on to the next mirror
+    private static final int FAILOVER_AFTER_FAILURES = 2;
+
+    public interface Listener {
+        /**
+         * Called from a downloading thread, but never concurrently.
+         * totalBytes is -1 if unknown.
+         */
+        void onProgress(long downloadedBytes, long totalBytes);
+
+        /**
+         * Called when the download moves on from a failing mirror, from
+         * any downloading thread.
+         */
+        void onFailover(String failedUrl, String nextUrl);
+    }
+
+    private static class Segment {
+        final long start;
+        final long end;
+        volatile long pos;
+
+        Segment(long start, long end, long pos) {
+            this.start = start;
+            this.end = end;
+            this.pos = pos;
+        }
+    }
+
+    /**
+     * One network transfer that can be retried from where it stopped.
+     */
+    private abstract class Attempt {
+        abstract long position();
+
+        /**
+         * Returns true once the transfer is complete.
+         */
+        abstract boolean run() throws IOException;
+    }
+
+    private final HttpConnector mConnector;
+    private final String mUrl;
+    private final File mFile;
+    private final File mCheckpointFile;
+    private final MessageDigest mDigest;
+    private final Listener mListener;
+
+    private int mMaxRetries = 5;
+    private long mInitialBackoffMs = 2000;
+    private int mConnectionCount = 1;
+
+    private final ArrayList<String> mMirrors = new ArrayList<String>();
+    private int mNextMirror = 0;
+    private volatile String mCurrentUrl;
+
+    private String mValidator;
+    private volatile long mTotal = -1;
+    private long mOffset = 0;
+    private Segment[] mSegments;
+
+    private final Object mProgressLock = new Object();
+    private long mLastCheckpointBytes;
+
+    private final HashSet<HttpURLConnection> mOpenConnections = new HashSet<HttpURLConnection>();
+    // Notified on cancel, so retries waiting for their backoff stop right away
+    private final Object mBackoffLock = new Object();
+    private volatile boolean mCancelled = false;
+    // Set when one range failed for good, so the others stop as well
+    private volatile boolean mAborted = false;
+    private volatile boolean mRangesLost = false;
+    private IOException mSegmentError;
+
+    public HttpDownloader(HttpConnector connector, String url, File partialFile,
+            MessageDigest digest, Listener listener) {
+        mConnector = connector;
+        mUrl = url;
+        mCurrentUrl = url;
+        mFile = partialFile;
+        mCheckpointFile = new File(partialFile.getPath() + CHECKPOINT_SUFFIX);
+        mDigest = digest;
+        mListener = listener;
+    }
+
+    public void setRetryPolicy(int maxRetries, long initialBackoffMs) {
+        mMaxRetries = maxRetries;
+        mInitialBackoffMs = initialBackoffMs;
+    }
+
+    /**
+     * Set the number of parallel connections used for a new download.
+     */
+    public void setConnectionCount(int connections) {
+        mConnectionCount = Math.max(1, connections);
+    }
+
+    /**
+     * Set the urls of the same file on other servers, in the order they
+     * should be tried when the download url keeps failing.
+     */
+    public void setMirrors(List<String> urls) {
+        mMirrors.clear();
+        mMirrors.addAll(urls);
+    }
+
+    /**
+     * Get the url the download is currently fetched from.
+     */
+    public String getCurrentUrl() {
+        return mCurrentUrl;
+    }
+
+    public long getTotalBytes() {
+        return mTotal;
+    }
+
+    /**
+     * Abort the download. The partial file and its checkpoint are kept so
+     * that a later download can resume.
+     */
+    public void cancel() {
+        mCancelled = true;
+        wakeUpBackoffs();
+        disconnectAll();
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Delete the partial file and its checkpoint, so that nothing is left to
+     * resume from.
+     */
+    public void discard() {
+        mFile.delete();
+        mCheckpointFile.delete();
+    }
+
+    /**
+     * Download the file, blocking until it is complete. On success the
+     * checkpoint is removed and the digest, if any, covers the whole file.
+     */
+    public void download() throws IOException {
+        restoreCheckpoint();
+
+        if (mSegments == null && mOffset == 0 && mConnectionCount > 1) {
+            try {
+                mSegments = planSegments();
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                // A single stream gets the usual retries
+                mSegments = null;
+            }
+        }
+        if (mSegments != null) {
+            if (downloadSegments()) {
+                mCheckpointFile.delete();
+                return;
+            }
+            // The server stopped serving ranges, fall back to a single stream
+            mSegments = null;
+            mAborted = false;
+            mRangesLost = false;
+            restart();
+        }
+
+        runWithRetries(new Attempt() {
+            @Override
+            long position() {
+                return mOffset;
+            }
+
+            @Override
+            boolean run() throws IOException {
+                return transfer();
+            }
+        });
+        mCheckpointFile.delete();
+    }
+
+    private void runWithRetries(Attempt attempt) throws IOException {
+        int failures = 0;
+        long backoff = mInitialBackoffMs;
+        while (true) {
+            checkCancelled();
+            long before = attempt.position();
+            String url = mCurrentUrl;
+            try {
+                if (attempt.run()) {
+                    return;
+                }
+            } catch (IOException e) {
+                checkCancelled();
+                if (mRangesLost) {
+                    throw e;
+                }
+                if (attempt.position() > before) {
+                    // We made progress, start counting retries again
+                    failures = 0;
+                    backoff = mInitialBackoffMs;
+                }
+                if (++failures >= FAILOVER_AFTER_FAILURES && failOver(url)) {
+                    // A different server, no reason to wait
+                    failures = 0;
+                    backoff = mInitialBackoffMs;
+                    continue;
+                }
+                if (failures > mMaxRetries) {
+                    throw e;
+                }
+            }
+
+            waitForBackoff(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    private void waitForBackoff(long millis) throws InterruptedIOException {
+        long end = System.nanoTime() + millis * 1000000L;
+        synchronized (mBackoffLock) {
+            long remaining;
+            while (!mCancelled && !mAborted
+                    && (remaining = (end - System.nanoTime()) / 1000000L) > 0) {
+                try {
+                    mBackoffLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download of " + mUrl + " interrupted");
+                }
+            }
+        }
+        checkCancelled();
+    }
+
+    private void wakeUpBackoffs() {
+        synchronized (mBackoffLock) {
+            mBackoffLock.notifyAll();
+        }
+    }
+
+    /**
+     * Fetch the remaining bytes as a single stream. Returns true once the
+     * file is complete.
+     */
+    private boolean transfer() throws IOException {
+        HttpURLConnection conn = openConnection();
+        RandomAccessFile out = null;
+        InputStream in = null;
+        try {
+            if (mOffset > 0) {
+                conn.setRequestProperty("Range", "bytes=" + mOffset + "-");
+                if (mValidator != null) {
+                    conn.setRequestProperty("If-Range", mValidator);
+                }
+            }
+
+            int code = conn.getResponseCode();
+            checkCancelled();
+            if (code == 416 && mTotal > 0 && mOffset >= mTotal) {
+                // We already have everything
+                return true;
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                if (mOffset > 0) {
+                    // Range ignored or the file changed, start over
+                    restart();
+                }
+                mTotal = parseLength(conn.getHeaderField("Content-Length"));
+            } else if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = conn.getHeaderField("Content-Range");
+                long start = parseContentRangeStart(contentRange);
+                if (start != mOffset) {
+                    // Appending a different range than asked for would corrupt the file
+                    restart();
+                    if (start != 0) {
+                        throw new IOException("Got range " + contentRange + " for " + mUrl
+                                + ", starting over");
+                    }
+                }
+                long total = parseContentRangeTotal(contentRange);
+                if (total > 0) {
+                    mTotal = total;
+                }
+            } else {
+                throw new IOException("Unexpected response " + code + " for " + mUrl);
+            }
+            mValidator = getValidator(conn);
+            saveCheckpoint();
+
+            out = new RandomAccessFile(mFile, "rw");
+            out.setLength(mOffset);
+            out.seek(mOffset);
+            in = conn.getInputStream();
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long lastCheckpoint = mOffset;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checkCancelled();
+                out.write(buffer, 0, read);
+                if (mDigest != null) {
+                    mDigest.update(buffer, 0, read);
+                }
+                mOffset += read;
+
+                if (mOffset - lastCheckpoint >= CHECKPOINT_BYTES) {
+                    out.getFD().sync();
+                    saveCheckpoint();
+                    lastCheckpoint = mOffset;
+                }
+                mListener.onProgress(mOffset, mTotal);
+            }
+
+            out.getFD().sync();
+            saveCheckpoint();
+            if (mTotal >= 0 && mOffset < mTotal) {
+                throw new IOException("Connection closed at " + mOffset + " of " + mTotal);
+            }
+            return true;
+        } finally {
+            closeQuietly(in);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+            closeConnection(conn);
+        }
+    }
+
+    /**
+     * Ask the server for the file size and whether it serves ranges. Returns
+     * the segments to fetch, or null if a single stream has to be used.
+     */
+    private Segment[] planSegments() throws IOException {
+        HttpURLConnection conn = openConnection();
+        long total;
+        try {
+            conn.setRequestProperty("Range", "bytes=0-0");
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                return null;
+            }
+            total = parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+            mValidator = getValidator(conn);
+        } finally {
+            closeConnection(conn);
+        }
+
+        int count = (int) Math.min(mConnectionCount, total / MIN_SEGMENT_BYTES);
+        if (total <= 0 || count < 2 || mValidator == null) {
+            // Without a validator we could not tell if the file changed between ranges
+            return null;
+        }
+
+        mTotal = total;
+        Segment[] segments = new Segment[count];
+        long size = total / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = i == count - 1 ? total : start + size;
+            segments[i] = new Segment(start, end, start);
+        }
+
+        // Reserve the space up front, the ranges are written in place
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(total);
+        } finally {
+            file.close();
+        }
+        mSegments = segments;
+        saveCheckpoint();
+        return segments;
+    }
+
+    /**
+     * Fetch all segments in parallel. Returns false if the server no longer
+     * honours range requests for this file.
+     */
+    private boolean downloadSegments() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        final FileChannel channel = file.getChannel();
+        FetchPool<Boolean> pool = new FetchPool<Boolean>("HttpDownloader",
+                mSegments.length, mSegments.length);
+        try {
+            mLastCheckpointBytes = getSegmentedBytes();
+            for (final Segment segment : mSegments) {
+                pool.submit(mUrl, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        try {
+                            runWithRetries(new Attempt() {
+                                @Override
+                                long position() {
+                                    return segment.pos;
+                                }
+
+                                @Override
+                                boolean run() throws IOException {
+                                    return transferSegment(segment, channel);
+                                }
+                            });
+                            return true;
+                        } catch (IOException e) {
+                            abortSegments(e);
+                            return null;
+                        }
+                    }
+                });
+            }
+
+            List<Boolean> results;
+            try {
+                results = pool.awaitAll();
+            } catch (InterruptedException e) {
+                pool.cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download of " + mUrl + " interrupted");
+            }
+
+            if (mCancelled) {
+                throw new InterruptedIOException("Download of " + mUrl + " cancelled");
+            }
+            if (mRangesLost) {
+                return false;
+            }
+            if (results.contains(null)) {
+                throw mSegmentError != null
+                        ? mSegmentError : new IOException("Download of " + mUrl + " failed");
+            }
+
+            channel.force(false);
+        } finally {
+            // Keep whatever the segments got so far for the next attempt
+            try {
+                saveCheckpoint();
+            } catch (IOException e) {
+                // ignore, not much we can do anyway
+            }
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignore, not much we can do anyway
+            }
+        }
+
+        if (mDigest != null) {
+            mDigest.reset();
+            FileHasher.update(mDigest, mFile, 0, mTotal);
+        }
+        return true;
+    }
+
+    private boolean transferSegment(Segment segment, FileChannel channel) throws IOException {
+        if (segment.pos >= segment.end) {
+            return true;
+        }
+
+        HttpURLConnection conn = openConnection();
+        InputStream in = null;
+        try {
+            conn.setRequestProperty("Range", "bytes=" + segment.pos + "-" + (segment.end - 1));
+            conn.setRequestProperty("If-Range", mValidator);
+
+            int code = conn.getResponseCode();
+            checkCancelled();
+            if (code == HttpURLConnection.HTTP_OK) {
+                // The file changed on the server, none of the ranges are valid anymore
+                mRangesLost = true;
+                throw new IOException("Range request for " + mUrl + " was not honoured");
+            } else if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Unexpected response " + code + " for " + mUrl);
+            }
+            String contentRange = conn.getHeaderField("Content-Range");
+            if (parseContentRangeStart(contentRange) != segment.pos) {
+                // Ranges can't be trusted, a single stream can still be checked
+                mRangesLost = true;
+                throw new IOException("Got range " + contentRange + " for " + mUrl
+                        + " instead of one starting at " + segment.pos);
+            }
+
+            in = conn.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            int read;
+            while (segment.pos < segment.end && (read = in.read(buffer)) != -1) {
+                checkCancelled();
+                wrapped.clear();
+                wrapped.limit((int) Math.min(read, segment.end - segment.pos));
+                long position = segment.pos;
+                while (wrapped.hasRemaining()) {
+                    position += channel.write(wrapped, position);
+                }
+                segment.pos = position;
+                onSegmentProgress(channel);
+            }
+
+            if (segment.pos < segment.end) {
+                throw new IOException("Connection closed at " + segment.pos
+                        + " of range ending at " + segment.end);
+            }
+            return true;
+        } finally {
+            closeQuietly(in);
+            closeConnection(conn);
+        }
+    }
+
+    private void onSegmentProgress(FileChannel channel) throws IOException {
+        synchronized (mProgressLock) {
+            long downloaded = getSegmentedBytes();
+            if (downloaded - mLastCheckpointBytes >= CHECKPOINT_BYTES) {
+                // Only positions whose data was flushed may end up in the checkpoint
+                long[] positions = new long[mSegments.length];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = mSegments[i].pos;
+                }
+                channel.force(false);
+                saveCheckpoint(positions);
+                mLastCheckpointBytes = downloaded;
+            }
+            mListener.onProgress(downloaded, mTotal);
+        }
+    }
+
+    private long getSegmentedBytes() {
+        long downloaded = 0;
+        for (Segment segment : mSegments) {
+            downloaded += segment.pos - segment.start;
+        }
+        return downloaded;
+    }
+
+    /**
+     * Move on to the next mirror after the given url failed. Returns false
+     * if there is none left. Concurrent ranges that failed on the same url
+     * only move on once.
+     */
+    private synchronized boolean failOver(String failedUrl) {
+        if (!failedUrl.equals(mCurrentUrl)) {
+            // Another range already moved on
+            return true;
+        }
+        if (mNextMirror >= mMirrors.size()) {
+            return false;
+        }
+        mCurrentUrl = mMirrors.get(mNextMirror++);
+        mListener.onFailover(failedUrl, mCurrentUrl);
+        return true;
+    }
+
+    private synchronized void abortSegments(IOException e) {
+        if (mSegmentError == null) {
+            mSegmentError = e;
+        }
+        mAborted = true;
+        wakeUpBackoffs();
+        disconnectAll();
+    }
+
+    private HttpURLConnection openConnection() throws IOException {
+        checkCancelled();
+        HttpURLConnection conn = mConnector.open(mCurrentUrl);
+        // Byte offsets are only meaningful for the unencoded file
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        synchronized (mOpenConnections) {
+            mOpenConnections.add(conn);
+        }
+        return conn;
+    }
+
+    private void closeConnection(HttpURLConnection conn) {
+        synchronized (mOpenConnections) {
+            mOpenConnections.remove(conn);
+        }
+        conn.disconnect();
+    }
+
+    private void disconnectAll() {
+        ArrayList<HttpURLConnection> connections;
+        synchronized (mOpenConnections) {
+            connections = new ArrayList<HttpURLConnection>(mOpenConnections);
+        }
+        for (HttpURLConnection conn : connections) {
+            conn.disconnect();
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (mCancelled || mAborted) {
+            throw new InterruptedIOException("Download of " + mUrl + " cancelled");
+        }
+    }
+
+    private void restart() {
+        mOffset = 0;
+        mValidator = null;
+        if (mDigest != null) {
+            mDigest.reset();
+        }
+    }
+
+    private void restoreCheckpoint() throws IOException {
+        Properties checkpoint = new Properties();
+        FileInputStream fis = null;
+        try {
+            if (mCheckpointFile.exists() && mFile.exists()) {
+                fis = new FileInputStream(mCheckpointFile);
+                checkpoint.load(fis);
+            }
+        } catch (IOException e) {
+            checkpoint.clear();
+        } catch (IllegalArgumentException e) {
+            checkpoint.clear();
+        } finally {
+            closeQuietly(fis);
+        }
+
+        if (!mUrl.equals(checkpoint.getProperty(KEY_URL))) {
+            restart();
+            return;
+        }
+        mTotal = parseLength(checkpoint.getProperty(KEY_TOTAL));
+        mValidator = checkpoint.getProperty(KEY_VALIDATOR);
+
+        if (checkpoint.getProperty(KEY_SEGMENTS) != null) {
+            mSegments = restoreSegments(checkpoint);
+            if (mSegments == null) {
+                restart();
+            }
+            return;
+        }
+
+        long offset = parseLength(checkpoint.getProperty(KEY_OFFSET));
+        if (offset <= 0 || offset > mFile.length()) {
+            restart();
+            return;
+        }
+
+        mOffset = offset;
+        if (mDigest != null) {
+            // Catch the digest up with what is already on disk
+            if (FileHasher.update(mDigest, mFile, 0, mOffset) != mOffset) {
+                restart();
+            }
+        }
+    }
+
+    private Segment[] restoreSegments(Properties checkpoint) {
+        int count = (int) parseLength(checkpoint.getProperty(KEY_SEGMENTS));
+        if (count <= 0 || mTotal <= 0 || mValidator == null || mFile.length() != mTotal) {
+            return null;
+        }
+
+        Segment[] segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // start,end,pos
+            String value = checkpoint.getProperty(KEY_SEGMENT_PREFIX + i);
+            String[] parts = value != null ? value.split(",") : new String[0];
+            if (parts.length != 3) {
+                return null;
+            }
+            long start = parseLength(parts[0]);
+            long end = parseLength(parts[1]);
+            long pos = parseLength(parts[2]);
+            if (start < 0 || end > mTotal || pos < start || pos > end) {
+                return null;
+            }
+            segments[i] = new Segment(start, end, pos);
+        }
+        return segments;
+    }
+
+    private void saveCheckpoint() throws IOException {
+        long[] positions = null;
+        if (mSegments != null) {
+            positions = new long[mSegments.length];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = mSegments[i].pos;
+            }
+        }
+        saveCheckpoint(positions);
+    }
+
+    private synchronized void saveCheckpoint(long[] positions) throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(KEY_URL, mUrl);
+        checkpoint.setProperty(KEY_TOTAL, String.valueOf(mTotal));
+        if (mValidator != null) {
+            checkpoint.setProperty(KEY_VALIDATOR, mValidator);
+        }
+        if (positions != null) {
+            checkpoint.setProperty(KEY_SEGMENTS, String.valueOf(positions.length));
+            for (int i = 0; i < positions.length; i++) {
+                Segment segment = mSegments[i];
+                checkpoint.setProperty(KEY_SEGMENT_PREFIX + i,
+                        segment.start + "," + segment.end + "," + positions[i]);
+            }
+        } else {
+            checkpoint.setProperty(KEY_OFFSET, String.valueOf(mOffset));
+        }
+
+        File tmp = new File(mCheckpointFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            checkpoint.store(fos, null);
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(mCheckpointFile)) {
+            throw new IOException("Unable to write checkpoint " + mCheckpointFile);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore, not much we can do anyway
+            }
+        }
+    }
+
+    private static String getValidator(HttpURLConnection conn) {
+        // Weak ETags are not allowed in If-Range
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    private static long parseContentRangeStart(String contentRange) {
+        // bytes <first>-<last>/<total>
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        return dash < 0 ? -1 : parseLength(contentRange.substring("bytes ".length(), dash));
+    }
+
+    private static long parseContentRangeTotal(String contentRange) {
+        // bytes <first>-<last>/<total>
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        return slash < 0 ? -1 : parseLength(contentRange.substring(slash + 1));
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
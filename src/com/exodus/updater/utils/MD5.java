@@ -13,13 +13,9 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 public class MD5 {
     private static final String TAG = "MD5";
@@ -36,49 +32,47 @@ public class MD5 {
             return false;
         }
 
+        return checkMD5(md5, calculatedDigest);
+    }
+
+    /**
+     * Compare a provided MD5 against an already calculated digest, e.g. one
+     * that was computed while the file was being written.
+     */
+    public static boolean checkMD5(String md5, String calculatedDigest) {
+        if (TextUtils.isEmpty(md5) || calculatedDigest == null) {
+            Log.e(TAG, "MD5 string empty or calculatedDigest null");
+            return false;
+        }
+
         Log.v(TAG, "Calculated digest: " + calculatedDigest);
         Log.v(TAG, "Provided digest: " + md5);
 
-        return md5.startsWith(calculatedDigest);
+        return md5.toLowerCase().startsWith(calculatedDigest);
     }
 
-    public static String calculateMD5(File updateFile) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "Exception while getting digest", e);
-            return null;
-        }
+    public static MessageDigest newDigest() {
+        return FileHasher.newDigest(FileHasher.Algorithm.MD5);
+    }
+
+    public static String toHex(byte[] md5sum) {
+        return FileHasher.toHex(md5sum);
+    }
 
-        InputStream is;
+    /**
+     * Returns the hex encoded MD5 of the file, or null if it can't be read.
+     */
+    public static String calculateMD5(File updateFile) {
         try {
-            is = new FileInputStream(updateFile);
+            return FileHasher.hashHex(updateFile, FileHasher.Algorithm.MD5);
         } catch (FileNotFoundException e) {
             Log.e(TAG, "Exception while getting FileInputStream", e);
             return null;
-        }
-
-        byte[] buffer = new byte[8192];
-        int read;
-        try {
-            while ((read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            String output = bigInt.toString(16);
-            // Fill to 32 chars
-            output = String.format("%32s", output).replace(' ', '0');
-            return output;
         } catch (IOException e) {
-            throw new RuntimeException("Unable to process file for MD5", e);
-        } finally {
-            try {
-                is.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception on closing MD5 input stream", e);
-            }
+            // Callers run on worker threads, a thrown exception would take the
+            // whole service down without telling the user
+            Log.e(TAG, "Unable to process file for MD5", e);
+            return null;
         }
     }
 }
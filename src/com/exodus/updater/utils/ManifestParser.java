@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming parser for the update list.
+ *
+ * Each line is a ';' separated record, either a build
+ * <pre>
+ *   &lt;build&gt;;&lt;md5&gt;;&lt;utc date&gt;;&lt;api level&gt;[;&lt;size&gt;]
+ * </pre>
+ * or a delta patch between two builds
+ * <pre>
+ *   delta;&lt;from build&gt;;&lt;to build&gt;;&lt;patch file&gt;;&lt;patch md5&gt;[;&lt;patch size&gt;]
+ * </pre>
+ * Records are tokenized in the receive buffer and numbers are parsed straight
+ * from the bytes, so only the string fields are ever copied. Every record is
+ * reported as soon as its line is complete.
+ */
+public class ManifestParser {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] DELTA = { 'd', 'e', 'l', 't', 'a' };
+
+    private static final int MAX_FIELDS = 6;
+    private static final int BUFFER_SIZE = 8192;
+
+    public interface Listener {
+        /**
+         * A build was listed. size is -1 if unknown.
+         */
+        void onBuild(String build, String md5, long date, int apiLevel, long size);
+
+        /**
+         * A delta patch was listed. size is -1 if unknown.
+         */
+        void onDelta(String fromBuild, String toBuild, String patchFile, String md5, long size);
+
+        void onMalformedLine(String line);
+    }
+
+    private final Listener mListener;
+
+    // Field boundaries of the current line
+    private final int[] mStarts = new int[MAX_FIELDS];
+    private final int[] mEnds = new int[MAX_FIELDS];
+
+    // Start of a line that continues in the next chunk
+    private byte[] mPending = new byte[256];
+    private int mPendingLength = 0;
+
+    public ManifestParser(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Parse the whole stream. The stream is not closed.
+     */
+    public void parse(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            feed(buffer, 0, read);
+        }
+        finish();
+    }
+
+    /**
+     * Parse the next chunk of the list. Complete lines are reported right
+     * away, a trailing partial line is kept until more data arrives.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mPendingLength > 0) {
+                appendPending(data, lineStart, i);
+                parseLine(mPending, 0, mPendingLength);
+                mPendingLength = 0;
+            } else {
+                parseLine(data, lineStart, i);
+            }
+            lineStart = i + 1;
+        }
+        if (lineStart < end) {
+            appendPending(data, lineStart, end);
+        }
+    }
+
+    /**
+     * Report a last line that was not terminated by a newline.
+     */
+    public void finish() {
+        if (mPendingLength > 0) {
+            parseLine(mPending, 0, mPendingLength);
+            mPendingLength = 0;
+        }
+    }
+
+    private void appendPending(byte[] data, int start, int end) {
+        int length = end - start;
+        if (mPendingLength + length > mPending.length) {
+            byte[] grown = new byte[Math.max(mPending.length * 2, mPendingLength + length)];
+            System.arraycopy(mPending, 0, grown, 0, mPendingLength);
+            mPending = grown;
+        }
+        System.arraycopy(data, start, mPending, mPendingLength, length);
+        mPendingLength += length;
+    }
+
+    private void parseLine(byte[] b, int start, int end) {
+        // Split into trimmed fields
+        int fields = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end && fields < MAX_FIELDS; i++) {
+            if (i == end || b[i] == ';') {
+                int s = fieldStart, e = i;
+                while (s < e && (b[s] & 0xff) <= ' ') {
+                    s++;
+                }
+                while (e > s && (b[e - 1] & 0xff) <= ' ') {
+                    e--;
+                }
+                mStarts[fields] = s;
+                mEnds[fields] = e;
+                fields++;
+                fieldStart = i + 1;
+            }
+        }
+
+        if (fields == 1 && mStarts[0] == mEnds[0]) {
+            // blank line
+            return;
+        }
+
+        if (isDelta(b)) {
+            if (fields < 5 || isEmpty(1) || isEmpty(2) || isEmpty(3)) {
+                mListener.onMalformedLine(new String(b, start, end - start, UTF8));
+                return;
+            }
+            mListener.onDelta(string(b, 1), string(b, 2), string(b, 3), string(b, 4),
+                    fields > 5 ? parseNumber(b, mStarts[5], mEnds[5]) : -1);
+            return;
+        }
+
+        long date = fields >= 4 ? parseNumber(b, mStarts[2], mEnds[2]) : -1;
+        long api = fields >= 4 ? parseNumber(b, mStarts[3], mEnds[3]) : -1;
+        if (date < 0 || api < 0 || api > Integer.MAX_VALUE || isEmpty(0)) {
+            mListener.onMalformedLine(new String(b, start, end - start, UTF8));
+            return;
+        }
+        mListener.onBuild(string(b, 0), string(b, 1), date, (int) api,
+                fields > 4 ? parseNumber(b, mStarts[4], mEnds[4]) : -1);
+    }
+
+    private boolean isDelta(byte[] b) {
+        if (mEnds[0] - mStarts[0] != DELTA.length) {
+            return false;
+        }
+        for (int i = 0; i < DELTA.length; i++) {
+            if (b[mStarts[0] + i] != DELTA[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isEmpty(int field) {
+        return mStarts[field] == mEnds[field];
+    }
+
+    private String string(byte[] b, int field) {
+        return new String(b, mStarts[field], mEnds[field] - mStarts[field], UTF8);
+    }
+
+    /**
+     * Parse a non-negative decimal number, returns -1 if it isn't one.
+     */
+    private static long parseNumber(byte[] b, int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = b[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
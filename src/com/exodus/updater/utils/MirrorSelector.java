@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.exodus.updater.R;
+import com.exodus.updater.misc.Constants;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Ranks the mirrors that serve the update list and builds of this device.
+ *
+ * All mirrors are probed in parallel with a HEAD request for the update
+ * list. They are ranked by the measured latency plus the time a download
+ * of one megabyte would take at the throughput last seen from them.
+ * Unreachable mirrors go last. The ranking is kept for a while so that not
+ * every check probes, and it is demoted as soon as a mirror fails.
+ */
+public class MirrorSelector {
+    private static final String TAG = "MirrorSelector";
+
+    // Throughput is weighed as the time it takes to fetch this much
+    private static final long SCORE_BYTES = 1024 * 1024;
+    private static final long UNKNOWN = -1;
+    private static final long UNREACHABLE = Long.MAX_VALUE;
+
+    private static MirrorSelector sInstance;
+
+    private static class Mirror {
+        final String url;
+        long latency = UNKNOWN;
+        long throughput = UNKNOWN;
+
+        Mirror(String url) {
+            this.url = url;
+        }
+
+        long getScore() {
+            if (latency == UNREACHABLE) {
+                return UNREACHABLE;
+            }
+            if (latency == UNKNOWN) {
+                // Not probed yet, keep it behind the ones that answered
+                return UNREACHABLE - 1;
+            }
+            long score = latency;
+            if (throughput > 0) {
+                score += SCORE_BYTES * 1000 / throughput;
+            }
+            return score;
+        }
+    }
+
+    private static final Comparator<Mirror> BY_SCORE = new Comparator<Mirror>() {
+        @Override
+        public int compare(Mirror lhs, Mirror rhs) {
+            long lhsScore = lhs.getScore();
+            long rhsScore = rhs.getScore();
+            if (lhsScore == rhsScore) {
+                return 0;
+            }
+            return lhsScore < rhsScore ? -1 : 1;
+        }
+    };
+
+    private final ArrayList<Mirror> mMirrors = new ArrayList<Mirror>();
+    // Used when no mirror is configured at all
+    private final String mPrimaryUrl;
+    private final HttpConnector mConnector;
+    private final String mProbeFile;
+    private final int mProbeTimeout;
+    private final long mTtl;
+    private final CheckSchedulePolicy.Clock mClock;
+    private final SharedPreferences mPrefs;
+    private long mRankedAt = 0;
+
+    /**
+     * Get the mirrors of the update server, unless it speaks the JSON build
+     * list API. Those are queried at their one url.
+     */
+    public static synchronized MirrorSelector getInstance(Context context) {
+        if (sInstance == null) {
+            final Resources res = context.getResources();
+            ArrayList<String> urls = new ArrayList<String>();
+            urls.add(res.getString(R.string.conf_update_server_url));
+            Collections.addAll(urls, res.getStringArray(R.array.conf_update_mirror_urls));
+            for (int i = 0; i < urls.size(); i++) {
+                urls.set(i, urls.get(i) + Utils.getDeviceType() + "/");
+            }
+
+            sInstance = new MirrorSelector(urls, HttpConnector.getInstance(context),
+                    res.getString(R.string.conf_update_filename),
+                    res.getInteger(R.integer.conf_mirror_probe_timeout_ms),
+                    res.getInteger(R.integer.conf_mirror_ranking_ttl_minutes) * 60000L,
+                    CheckSchedulePolicy.SYSTEM_CLOCK,
+                    PreferenceManager.getDefaultSharedPreferences(context));
+        }
+        return sInstance;
+    }
+
+    MirrorSelector(List<String> urls, HttpConnector connector, String probeFile,
+            int probeTimeoutMs, long ttlMillis, CheckSchedulePolicy.Clock clock,
+            SharedPreferences prefs) {
+        mPrimaryUrl = urls.isEmpty() ? "" : urls.get(0);
+        for (String url : urls) {
+            if (!url.isEmpty()) {
+                mMirrors.add(new Mirror(url));
+            }
+        }
+        mConnector = connector;
+        mProbeFile = probeFile;
+        mProbeTimeout = probeTimeoutMs;
+        mTtl = ttlMillis;
+        mClock = clock;
+        mPrefs = prefs;
+        if (mPrefs != null) {
+            restore(mPrefs.getString(Constants.MIRROR_RANKING, null),
+                    mPrefs.getLong(Constants.MIRROR_RANKING_TIME, 0));
+        }
+    }
+
+    /**
+     * Get the base urls of all mirrors, best first.
+     */
+    public synchronized List<String> getUrls() {
+        ArrayList<String> urls = new ArrayList<String>(mMirrors.size());
+        for (Mirror mirror : mMirrors) {
+            urls.add(mirror.url);
+        }
+        return urls;
+    }
+
+    /**
+     * Get the base url of the best ranked mirror, or the configured server
+     * url if there are no usable mirrors.
+     */
+    public synchronized String getBestUrl() {
+        if (mMirrors.isEmpty()) {
+            return mPrimaryUrl;
+        }
+        return mMirrors.get(0).url;
+    }
+
+    /**
+     * Get the same file on the other mirrors, best first. Returns an empty
+     * list for urls that don't belong to a known mirror.
+     */
+    public synchronized List<String> getAlternateUrls(String url) {
+        ArrayList<String> alternates = new ArrayList<String>();
+        Mirror owner = findMirror(url);
+        if (owner == null) {
+            return alternates;
+        }
+        String path = url.substring(owner.url.length());
+        for (Mirror mirror : mMirrors) {
+            if (mirror != owner) {
+                alternates.add(mirror.url + path);
+            }
+        }
+        return alternates;
+    }
+
+    /**
+     * Probe the mirrors if the ranking is older than its time to live. This
+     * blocks for up to the probe timeout.
+     */
+    public void refreshIfStale() {
+        long now = mClock.currentTimeMillis();
+        synchronized (this) {
+            if (mMirrors.size() < 2 || (mRankedAt > 0 && now - mRankedAt >= 0
+                    && now - mRankedAt < mTtl)) {
+                return;
+            }
+        }
+        probe();
+    }
+
+    /**
+     * Measure the latency of all mirrors in parallel and rank them again.
+     */
+    public void probe() {
+        final List<String> urls = getUrls();
+        FetchPool<Long> pool = new FetchPool<Long>("MirrorProbe", urls.size(), 1);
+        for (final String url : urls) {
+            pool.submit(url, new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return probe(url + mProbeFile);
+                }
+            });
+        }
+
+        List<Long> latencies;
+        try {
+            latencies = pool.awaitAll();
+        } catch (InterruptedException e) {
+            pool.cancel();
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < urls.size(); i++) {
+                Mirror mirror = findMirror(urls.get(i));
+                Long latency = latencies.get(i);
+                mirror.latency = latency != null ? latency : UNREACHABLE;
+            }
+            mRankedAt = mClock.currentTimeMillis();
+            rank();
+        }
+    }
+
+    /**
+     * Demote the mirror serving the given url after a request to it failed.
+     */
+    public synchronized void reportFailure(String url) {
+        Mirror mirror = findMirror(url);
+        if (mirror != null) {
+            Log.d(TAG, "Mirror " + mirror.url + " failed");
+            mirror.latency = UNREACHABLE;
+            rank();
+        }
+    }
+
+    /**
+     * Remember the throughput of a transfer from the mirror serving the given
+     * url. Older measurements are averaged in.
+     */
+    public synchronized void reportThroughput(String url, long bytesPerSecond) {
+        Mirror mirror = findMirror(url);
+        if (mirror == null || bytesPerSecond <= 0) {
+            return;
+        }
+        mirror.throughput = mirror.throughput > 0
+                ? (mirror.throughput + bytesPerSecond) / 2 : bytesPerSecond;
+        rank();
+    }
+
+    private Long probe(String url) {
+        long start = mClock.elapsedRealtime();
+        HttpURLConnection conn = null;
+        try {
+            conn = mConnector.open(url);
+            conn.setRequestMethod("HEAD");
+            conn.setConnectTimeout(mProbeTimeout);
+            conn.setReadTimeout(mProbeTimeout);
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                Log.d(TAG, "Probe of " + url + " answered " + code);
+                return null;
+            }
+            return mClock.elapsedRealtime() - start;
+        } catch (IOException e) {
+            Log.d(TAG, "Probe of " + url + " failed: " + e);
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private Mirror findMirror(String url) {
+        for (Mirror mirror : mMirrors) {
+            if (url.startsWith(mirror.url)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private void rank() {
+        // A stable sort keeps the configured order among equals
+        Collections.sort(mMirrors, BY_SCORE);
+
+        StringBuilder ranking = new StringBuilder();
+        for (Mirror mirror : mMirrors) {
+            ranking.append(mirror.url).append(' ')
+                    .append(mirror.latency).append(' ')
+                    .append(mirror.throughput).append('\n');
+        }
+        Log.d(TAG, "Mirror ranking (url latency throughput):\n" + ranking);
+        if (mPrefs != null) {
+            mPrefs.edit()
+                    .putString(Constants.MIRROR_RANKING, ranking.toString())
+                    .putLong(Constants.MIRROR_RANKING_TIME, mRankedAt)
+                    .apply();
+        }
+    }
+
+    /**
+     * Restore a ranking saved by {@link #rank()}. Mirrors that were not part
+     * of it keep their configured place after the ranked ones.
+     */
+    private void restore(String ranking, long rankedAt) {
+        if (ranking == null) {
+            return;
+        }
+        HashMap<String, Integer> order = new HashMap<String, Integer>();
+        for (String line : ranking.split("\n")) {
+            String[] parts = line.split(" ");
+            Mirror mirror = parts.length == 3 ? findMirror(parts[0]) : null;
+            if (mirror == null || !mirror.url.equals(parts[0])) {
+                continue;
+            }
+            try {
+                mirror.latency = Long.parseLong(parts[1]);
+                mirror.throughput = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            order.put(mirror.url, order.size());
+        }
+
+        final HashMap<String, Integer> positions = order;
+        final int unranked = order.size();
+        Collections.sort(mMirrors, new Comparator<Mirror>() {
+            @Override
+            public int compare(Mirror lhs, Mirror rhs) {
+                Integer lhsPos = positions.get(lhs.url);
+                Integer rhsPos = positions.get(rhs.url);
+                return (lhsPos != null ? lhsPos : unranked)
+                        - (rhsPos != null ? rhsPos : unranked);
+            }
+        });
+        mRankedAt = rankedAt;
+    }
+}
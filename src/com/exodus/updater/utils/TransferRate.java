@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+/**
+ * Smoothed transfer rate and remaining time estimate.
+ *
+ * The rate is measured over windows of a fixed length and averaged
+ * exponentially, so a single slow or fast window does not make the
+ * estimate jump around.
+ */
+public class TransferRate {
+    private static final long WINDOW_MS = 1000;
+    private static final float SMOOTHING = 0.3f;
+
+    private long mWindowStartTime = -1;
+    private long mWindowStartBytes;
+    private long mBytesPerSecond = -1;
+
+    /**
+     * Forget the current estimate, e.g. because the transfer stalled.
+     */
+    public void reset() {
+        mWindowStartTime = -1;
+        mBytesPerSecond = -1;
+    }
+
+    /**
+     * Record the amount of bytes transferred at the given (monotonic) time.
+     */
+    public void update(long nowMillis, long bytes) {
+        if (mWindowStartTime < 0) {
+            mWindowStartTime = nowMillis;
+            mWindowStartBytes = bytes;
+            return;
+        }
+
+        long elapsed = nowMillis - mWindowStartTime;
+        if (elapsed < WINDOW_MS) {
+            return;
+        }
+
+        long rate = (bytes - mWindowStartBytes) * 1000 / elapsed;
+        mBytesPerSecond = mBytesPerSecond < 0
+                ? rate : (long) (SMOOTHING * rate + (1 - SMOOTHING) * mBytesPerSecond);
+        mWindowStartTime = nowMillis;
+        mWindowStartBytes = bytes;
+    }
+
+    /**
+     * Returns the estimated rate, or -1 if it is not known yet.
+     */
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Returns the estimated time left, or -1 if it can't be estimated.
+     */
+    public long getEtaMillis(long bytes, long totalBytes) {
+        if (mBytesPerSecond <= 0 || totalBytes <= 0) {
+            return -1;
+        }
+        return Math.max(0, totalBytes - bytes) * 1000 / mBytesPerSecond;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 The Exodus Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.exodus.updater.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.exodus.updater.R;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Small persistent store of update check and download measurements.
+ *
+ * Every metric keeps its most recent samples, so the distribution shown
+ * follows the current behaviour instead of averaging over all time.
+ * Counters count events such as unchanged update lists and failures by
+ * cause. Everything is written to one file right away, the store only
+ * changes a few times per check or download.
+ */
+public class UpdateMetrics {
+    private static final String TAG = "UpdateMetrics";
+    private static final String FILENAME = "exodusupdater.metrics";
+
+    private static final String SAMPLES_PREFIX = "samples.";
+    private static final String COUNTER_PREFIX = "count.";
+
+    // Connecting and waiting for the response headers of the update list
+    public static final String CHECK_FETCH_MS = "check.fetch_ms";
+    // Receiving and parsing the update list, which happens as a stream
+    public static final String CHECK_PARSE_MS = "check.parse_ms";
+    public static final String CHECK_CHANGELOG_MS = "check.changelog_ms";
+    public static final String CHECK_TOTAL_MS = "check.total_ms";
+    // All traffic of the app while the check ran, including headers and TLS
+    public static final String CHECK_BYTES = "check.bytes";
+    public static final String DOWNLOAD_BYTES = "download.bytes";
+    public static final String DOWNLOAD_THROUGHPUT = "download.throughput_bps";
+    public static final String VERIFY_MS = "verify.total_ms";
+    // From tapping a build until its change log is on screen
+    public static final String CHANGELOG_NATIVE_MS = "changelog.native.shown_ms";
+    public static final String CHANGELOG_WEBVIEW_MS = "changelog.webview.shown_ms";
+
+    public static final String CHECKS = "check.runs";
+    public static final String CHECKS_NOT_MODIFIED = "check.not_modified";
+
+    /** Failure causes, see {@link #recordFailure(String)} */
+    public static final String FAILURE_PREFIX = "failure.";
+    public static final String FAILURE_CHECK_OFFLINE = "check.offline";
+    public static final String FAILURE_CHECK_NETWORK = "check.network";
+    public static final String FAILURE_DOWNLOAD_NETWORK = "download.network";
+    // Followed by the reason the DownloadManager gave
+    public static final String FAILURE_DOWNLOAD_MANAGER = "download.manager.";
+    public static final String FAILURE_VERIFY_MD5 = "verify.md5";
+    public static final String FAILURE_DELTA_APPLY = "delta.apply";
+
+    private static final int HISTOGRAM_WIDTH = 20;
+
+    private static UpdateMetrics sInstance;
+
+    private final File mFile;
+    private final int mMaxSamples;
+    private final TreeMap<String, ArrayDeque<Long>> mSamples =
+            new TreeMap<String, ArrayDeque<Long>>();
+    private final TreeMap<String, Long> mCounters = new TreeMap<String, Long>();
+
+    public static synchronized UpdateMetrics getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdateMetrics(new File(context.getFilesDir(), FILENAME),
+                    context.getResources().getInteger(R.integer.conf_metrics_samples));
+        }
+        return sInstance;
+    }
+
+    UpdateMetrics(File file, int maxSamples) {
+        mFile = file;
+        mMaxSamples = Math.max(1, maxSamples);
+        load();
+    }
+
+    /**
+     * Add a sample to a metric, dropping the oldest one once the metric has
+     * its maximum number of samples.
+     */
+    public synchronized void record(String metric, long value) {
+        ArrayDeque<Long> samples = mSamples.get(metric);
+        if (samples == null) {
+            samples = new ArrayDeque<Long>();
+            mSamples.put(metric, samples);
+        }
+        samples.addLast(value);
+        while (samples.size() > mMaxSamples) {
+            samples.removeFirst();
+        }
+        save();
+    }
+
+    public synchronized void increment(String counter) {
+        Long count = mCounters.get(counter);
+        mCounters.put(counter, count != null ? count + 1 : 1);
+        save();
+    }
+
+    /**
+     * Count a failure of the given cause, one of the FAILURE_ constants.
+     */
+    public void recordFailure(String cause) {
+        increment(FAILURE_PREFIX + cause);
+    }
+
+    public synchronized void clear() {
+        mSamples.clear();
+        mCounters.clear();
+        save();
+    }
+
+    /**
+     * Describe all metrics as plain text: the percentiles and a histogram
+     * with power of two buckets of each metric, then the counters.
+     */
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, ArrayDeque<Long>> entry : mSamples.entrySet()) {
+            String metric = entry.getKey();
+            long[] values = new long[entry.getValue().size()];
+            int i = 0;
+            for (Long value : entry.getValue()) {
+                values[i++] = value;
+            }
+            Arrays.sort(values);
+
+            report.append(metric).append(": ").append(values.length).append(" samples\n")
+                    .append("  min ").append(format(metric, values[0]))
+                    .append("  p50 ").append(format(metric, percentile(values, 50)))
+                    .append("  p90 ").append(format(metric, percentile(values, 90)))
+                    .append("  max ").append(format(metric, values[values.length - 1]))
+                    .append('\n');
+            appendHistogram(report, metric, values);
+            report.append('\n');
+        }
+        for (Map.Entry<String, Long> entry : mCounters.entrySet()) {
+            report.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static void appendHistogram(StringBuilder report, String metric, long[] values) {
+        // values are sorted, so each bucket is a run of them
+        int largest = 0;
+        int[] counts = new int[65];
+        for (long value : values) {
+            int bucket = bucketOf(value);
+            counts[bucket]++;
+            largest = Math.max(largest, counts[bucket]);
+        }
+        for (int bucket = bucketOf(values[0]); bucket <= bucketOf(values[values.length - 1]);
+                bucket++) {
+            String bound = bucket < 63 ? format(metric, 1L << bucket) : "max";
+            report.append("  < ").append(bound);
+            for (int pad = bound.length(); pad < 10; pad++) {
+                report.append(' ');
+            }
+            int bar = (counts[bucket] * HISTOGRAM_WIDTH + largest - 1) / largest;
+            for (int i = 0; i < bar; i++) {
+                report.append('#');
+            }
+            report.append(' ').append(counts[bucket]).append('\n');
+        }
+    }
+
+    /**
+     * Bucket n holds the values below 2^n, down to the previous bucket.
+     */
+    private static int bucketOf(long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static String format(String metric, long value) {
+        if (metric.endsWith("_ms")) {
+            return value + "ms";
+        } else if (metric.endsWith("_bps")) {
+            return formatBytes(value) + "/s";
+        } else if (metric.endsWith("bytes")) {
+            return formatBytes(value);
+        }
+        return String.valueOf(value);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + "B";
+        } else if (bytes < 1024 * 1024) {
+            return (bytes / 1024) + "KiB";
+        }
+        return (bytes / (1024 * 1024)) + "MiB";
+    }
+
+    private void load() {
+        Properties stored = new Properties();
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(mFile);
+            stored.load(fis);
+        } catch (FileNotFoundException e) {
+            // nothing recorded yet
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading metrics", e);
+            stored.clear();
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Exception on loading metrics", e);
+            stored.clear();
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+        }
+
+        for (String key : stored.stringPropertyNames()) {
+            String value = stored.getProperty(key);
+            try {
+                if (key.startsWith(SAMPLES_PREFIX)) {
+                    ArrayDeque<Long> samples = new ArrayDeque<Long>();
+                    for (String sample : value.split(",")) {
+                        samples.addLast(Long.parseLong(sample));
+                    }
+                    while (samples.size() > mMaxSamples) {
+                        samples.removeFirst();
+                    }
+                    mSamples.put(key.substring(SAMPLES_PREFIX.length()), samples);
+                } else if (key.startsWith(COUNTER_PREFIX)) {
+                    mCounters.put(key.substring(COUNTER_PREFIX.length()), Long.parseLong(value));
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Dropping malformed metric " + key);
+            }
+        }
+    }
+
+    private void save() {
+        Properties stored = new Properties();
+        for (Map.Entry<String, ArrayDeque<Long>> entry : mSamples.entrySet()) {
+            StringBuilder value = new StringBuilder();
+            for (Long sample : entry.getValue()) {
+                if (value.length() > 0) {
+                    value.append(',');
+                }
+                value.append(sample);
+            }
+            stored.setProperty(SAMPLES_PREFIX + entry.getKey(), value.toString());
+        }
+        for (Map.Entry<String, Long> entry : mCounters.entrySet()) {
+            stored.setProperty(COUNTER_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+
+        // Write a copy first, a crash must not lose what was recorded so far
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            stored.store(fos, null);
+            fos.close();
+            fos = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Unable to write metrics to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving metrics", e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // ignore, not much we can do anyway
+                }
+            }
+        }
+    }
+}
@@ -9,24 +9,23 @@
 
 package com.exodus.updater.utils;
 
-import android.app.AlarmManager;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.TrafficStats;
+import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.storage.StorageManager;
 import android.os.storage.StorageVolume;
-import android.preference.PreferenceManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
@@ -35,24 +34,27 @@ import android.view.WindowManager;
 import com.exodus.updater.R;
 import com.exodus.updater.misc.Constants;
 import com.exodus.updater.misc.UpdateInfo;
-import com.exodus.updater.service.UpdateCheckService;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.InputStreamReader;
 
-import java.net.URL;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.List;
 
 public class Utils {
     // Device type reference
     private static int sDeviceType = -1;
+    private static String sUserAgent;
     private static final String TAG="ExodusUpdater";
     // Device types
     private static final int DEVICE_PHONE = 0;
@@ -68,6 +70,21 @@ public class Utils {
                 Constants.UPDATES_FOLDER);
     }
 
+    /**
+     * Returns the local build the update's delta patch applies to, or null if
+     * the full update is the smaller or the only possible download.
+     */
+    public static File getDeltaSource(UpdateInfo ui) {
+        if (!ui.hasDelta()) {
+            return null;
+        }
+        if (ui.getFileSize() >= 0 && ui.getDeltaSize() >= ui.getFileSize()) {
+            return null;
+        }
+        File source = new File(makeUpdateFolder(), ui.getDeltaSourceFileName());
+        return source.isFile() ? source : null;
+    }
+
     public static void cancelNotification(Context context) {
         final NotificationManager nm =
                 (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -92,13 +109,17 @@ public class Utils {
     }
 
     public static String getUserAgentString(Context context) {
-        try {
-            PackageManager pm = context.getPackageManager();
-            PackageInfo pi = pm.getPackageInfo(context.getPackageName(), 0);
-            return pi.packageName + "/" + pi.versionName;
-        } catch (PackageManager.NameNotFoundException nnfe) {
-            return null;
+        // The package can't change while we are running
+        if (sUserAgent == null) {
+            try {
+                PackageManager pm = context.getPackageManager();
+                PackageInfo pi = pm.getPackageInfo(context.getPackageName(), 0);
+                sUserAgent = pi.packageName + "/" + pi.versionName;
+            } catch (PackageManager.NameNotFoundException nnfe) {
+                return null;
+            }
         }
+        return sUserAgent;
     }
 
     public static boolean isOnline(Context context) {
@@ -110,23 +131,18 @@ public class Utils {
         return false;
     }
 
-    public static void scheduleUpdateService(Context context, int updateFrequency) {
-        // Load the required settings from preferences
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        long lastCheck = prefs.getLong(Constants.LAST_UPDATE_CHECK_PREF, 0);
-
-        // Get the intent ready
-        Intent i = new Intent(context, UpdateCheckService.class);
-        i.setAction(UpdateCheckService.ACTION_CHECK);
-        PendingIntent pi = PendingIntent.getService(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
-
-        // Clear any old alarms and schedule the new alarm
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(pi);
-
-        if (updateFrequency != Constants.UPDATE_FREQ_NONE) {
-            am.setRepeating(AlarmManager.RTC_WAKEUP, lastCheck + updateFrequency, updateFrequency, pi);
+    /**
+     * Get the bytes the app sent and received over the network so far, or -1
+     * if the device does not count them. Only differences are meaningful.
+     */
+    public static long getTrafficBytes() {
+        int uid = android.os.Process.myUid();
+        long received = TrafficStats.getUidRxBytes(uid);
+        long sent = TrafficStats.getUidTxBytes(uid);
+        if (received == TrafficStats.UNSUPPORTED || sent == TrafficStats.UNSUPPORTED) {
+            return -1;
         }
+        return received + sent;
     }
 
     public static void triggerUpdate(Context context, String updateFileName) throws IOException {
@@ -220,53 +236,85 @@ public class Utils {
         return "/sdcard";
     }
 
-    public static LinkedList<String> readMultilineFile(String urlstr) {
-        LinkedList<String> ret = new LinkedList<String>();
-        BufferedReader br = null;
-        InputStreamReader is = null;
+    /**
+     * Conditionally fetch the update list using the validators stored in the
+     * given cache and feed it to the parser while it is being received.
+     * Returns false if the server answered 304 Not Modified. The new
+     * validators are only kept in memory, callers need to save the cache once
+     * they are done with the result. Cancelling the signal closes the
+     * connection and makes this throw an OperationCanceledException.
+     */
+    public static boolean readUpdateList(Context context, String urlstr, HttpCache cache,
+            ManifestParser parser, CancellationSignal signal) throws IOException {
+        HttpURLConnection conn = HttpConnector.getInstance(context).open(urlstr);
+        InputStream in = null;
+        signal.setOnCancelListener(new DisconnectOnCancel(conn));
         try {
-            // Create a URL for the desired page
-            URL url = new URL(urlstr);
-
-            // Read all the text returned by the server
-            is = new InputStreamReader(url.openStream());
-            br = new BufferedReader(is);
-            String str;
-            while ((str = br.readLine()) != null) {
-                // str is one line of text; readLine() strips the newline character(s)
-                ret.add(str);
+            signal.throwIfCanceled();
+            cache.addConditionalHeaders(urlstr, conn);
+
+            UpdateMetrics metrics = UpdateMetrics.getInstance(context);
+            long start = SystemClock.elapsedRealtime();
+            int code = conn.getResponseCode();
+            long fetched = SystemClock.elapsedRealtime();
+            metrics.record(UpdateMetrics.CHECK_FETCH_MS, fetched - start);
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return false;
             }
-        } catch (MalformedURLException e) {
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + code + " for " + urlstr);
+            }
+
+            in = conn.getInputStream();
+            parser.parse(in);
+            signal.throwIfCanceled();
+            metrics.record(UpdateMetrics.CHECK_PARSE_MS, SystemClock.elapsedRealtime() - fetched);
+            cache.update(urlstr, conn);
+            return true;
         } catch (IOException e) {
+            // the connection was closed by the cancellation
+            signal.throwIfCanceled();
+            throw e;
         } finally {
-            if (is != null) {
+            signal.setOnCancelListener(null);
+            if (in != null) {
                 try {
-                    is.close();
-                } catch (IOException e) {
-                    // ignore, not much we can do anyway
-                }
-            }
-            if (br != null) {
-                try {
-                    br.close();
+                    in.close();
                 } catch (IOException e) {
                     // ignore, not much we can do anyway
                 }
             }
+            conn.disconnect();
         }
-        return ret;
     }
 
-    public static String readFile(String urlstr) {
+    /**
+     * Closes a connection when the request using it is cancelled, which also
+     * ends reads that are blocked on the network.
+     */
+    public static class DisconnectOnCancel implements CancellationSignal.OnCancelListener {
+        private final HttpURLConnection mConnection;
+
+        public DisconnectOnCancel(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void onCancel() {
+            mConnection.disconnect();
+        }
+    }
+
+    public static String readFile(Context context, String urlstr) {
         String ret = null;
+        HttpURLConnection conn = null;
         BufferedReader br = null;
         InputStreamReader is = null;
         try {
-            // Create a URL for the desired page
-            URL url = new URL(urlstr);
+            conn = HttpConnector.getInstance(context).open(urlstr);
 
             // Read all the text returned by the server
-            is = new InputStreamReader(url.openStream());
+            is = new InputStreamReader(conn.getInputStream());
             br = new BufferedReader(is);
             ret = br.readLine();
             br.close();
@@ -287,6 +335,9 @@ public class Utils {
                     // ignore, not much we can do anyway
                 }
             }
+            if (conn != null) {
+                conn.disconnect();
+            }
         }
         return ret;
     }
@@ -336,60 +387,34 @@ public class Utils {
         return true;
     }
     
-    public static boolean DownloadChangelog(UpdateInfo Info,Context context) {
-        File f = Info.getChangeLogFile(context);
-        if (!f.exists() ) {
-            f.delete();
-        }
-        String churl=Info.getDownloadUrl() + ".changelog";
-        BufferedReader reader = null;
-        BufferedWriter writer = null;
-        InputStreamReader is = null;
-        boolean finished = false;
+    /**
+     * Fetch and store the change log of a build. Cancelling the signal closes
+     * the connection, a partially received change log is not stored.
+     */
+    public static boolean DownloadChangelog(UpdateInfo Info, Context context,
+            CancellationSignal signal) {
+        String churl=Info.getChangeLogUrl();
+        HttpURLConnection conn = null;
+        InputStream is = null;
         try {
             Log.d(TAG, "Getting change log for " + Info.getFileName() + ", url " + churl);
-            URL url= new URL(churl);
-            writer = new BufferedWriter(new FileWriter(f));
-            is = new InputStreamReader(url.openStream());
-            reader = new BufferedReader(is);
-            boolean categoryMatch = false, hasData = false;
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    continue;
-                }
-                if (line.startsWith("=")) {
-                    categoryMatch = !categoryMatch;
-                } else if (categoryMatch) {
-                    if (hasData) {
-                        writer.append("<br />");
-                    }
-                    writer.append("<b><u>");
-                    writer.append(line);
-                    writer.append("</u></b>");
-                    writer.append("<br />");
-                    hasData = true;
-                } else if (line.startsWith("*")) {
-                    writer.append("<br /><b>");
-                    writer.append(line.replaceAll("\\*", ""));
-                    writer.append("</b>");
-                    writer.append("<br />");
-                    hasData = true;
-                } else {
-                    writer.append("&#8226;&nbsp;");
-                    writer.append(line);
-                    writer.append("<br />");
-                    hasData = true;
-                }
+            conn = HttpConnector.getInstance(context).open(churl);
+            signal.setOnCancelListener(new DisconnectOnCancel(conn));
+            if (signal.isCanceled()) {
+                return false;
             }
-            finished = true;
-        } catch (MalformedURLException e) {    
+            is = conn.getInputStream();
+            return ChangelogStore.getInstance(context).save(Info.getFileName(), is, signal);
+        } catch (MalformedURLException e) {
             Log.e(TAG, "URL failure for " + churl , e);
         } catch (IOException e) {
-            Log.e(TAG, "Downloading change log for " + Info.getFileName() + " failed", e);
-            // keeping finished at false will delete the partially written file below
+            if (signal.isCanceled()) {
+                Log.d(TAG, "Download of change log for " + Info.getFileName() + " cancelled");
+            } else {
+                Log.e(TAG, "Downloading change log for " + Info.getFileName() + " failed", e);
+            }
         } finally {
+            signal.setOnCancelListener(null);
             if (is != null) {
                 try {
                     is.close();
@@ -397,25 +422,86 @@ public class Utils {
                     // ignore, not much we can do anyway
                 }
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // ignore, not much we can do anyway
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fetch the missing change logs of several builds with a single request
+     * to the bundle endpoint. Returns the number of change logs stored, or -1
+     * if the server has no bundle endpoint. Builds left out of the bundle
+     * keep their missing change log, as do builds whose change log was only
+     * partially received when the signal got cancelled.
+     */
+    public static int DownloadChangelogBundle(String bundleUrl, List<UpdateInfo> infos,
+            final Context context, final CancellationSignal signal) {
+        final HashMap<String, UpdateInfo> byName = new HashMap<String, UpdateInfo>();
+        StringBuilder files = new StringBuilder();
+        for (UpdateInfo ui : infos) {
+            byName.put(ui.getFileName(), ui);
+            if (files.length() > 0) {
+                files.append(',');
+            }
+            files.append(Uri.encode(ui.getFileName()));
+        }
+
+        final ChangelogStore store = ChangelogStore.getInstance(context);
+        final int[] saved = new int[1];
+        HttpURLConnection conn = null;
+        InputStream in = null;
+        try {
+            Log.d(TAG, "Getting " + infos.size() + " change logs from " + bundleUrl);
+            conn = HttpConnector.getInstance(context).open(bundleUrl + "?files=" + files);
+            signal.setOnCancelListener(new DisconnectOnCancel(conn));
+            if (signal.isCanceled()) {
+                return 0;
+            }
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                return -1;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + code + " for " + bundleUrl);
+            }
+
+            in = conn.getInputStream();
+            ChangelogBundleReader.read(in, new ChangelogBundleReader.Listener() {
+                @Override
+                public void onChangelog(String fileName, InputStream content) throws IOException {
+                    UpdateInfo ui = byName.remove(fileName);
+                    if (ui == null) {
+                        return;
+                    }
+                    if (!store.save(fileName, content, signal)) {
+                        throw new InterruptedIOException("Change log bundle cancelled");
+                    }
+                    saved[0]++;
                 }
+            });
+        } catch (IOException e) {
+            if (signal.isCanceled()) {
+                Log.d(TAG, "Change log bundle cancelled after " + saved[0] + " builds");
+            } else {
+                Log.e(TAG, "Downloading change log bundle failed after " + saved[0] + " builds",
+                        e);
             }
-            if (writer != null) {
+        } finally {
+            signal.setOnCancelListener(null);
+            if (in != null) {
                 try {
-                    writer.close();
+                    in.close();
                 } catch (IOException e) {
                     // ignore, not much we can do anyway
                 }
             }
-        } 
-        if (!finished) {
-            f.delete();
-        }            
-        return finished;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+        return saved[0];
     }
 
 }